@@ -0,0 +1,19 @@
+#!/bin/sh
+#
+# Builds the JMH benchmarks and runs them, writing JSON results to benchmarks/results/<commit>.json
+# so runs on different commits can be compared. Extra arguments go to JMH, e.g. a benchmark regex
+# or "-prof gc".
+#
+# "run.sh scenario <name> [args...]" runs one of the end-to-end scenarios in Benchmarks instead, e.g.
+# "run.sh scenario swarm", against loopback peers and trackers.
+#
+set -e
+
+cd "$(dirname "$0")"
+mvn -B --quiet package
+if [ "$1" = "scenario" ]; then
+    shift
+    exec java -cp target/benchmarks.jar Benchmarks "$@"
+fi
+mkdir -p results
+exec java -jar target/benchmarks.jar -rf json -rff "results/$(git rev-parse --short HEAD).json" "$@"
@@ -0,0 +1,1003 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+public class Benchmarks {
+
+    // java -cp benchmarks/target/benchmarks.jar Benchmarks <scenario> [args...]
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.out.println("Usage: Benchmarks <scenario> [args...]");
+            return;
+        }
+        run(args[0], Arrays.copyOfRange(args, 1, args.length));
+    }
+
+    public static void run(String name, String[] args) {
+        try {
+            switch (name) {
+                case "pipeline" -> pipeline(args);
+                case "sessions" -> sessions(args);
+                case "executors" -> executors(args);
+                case "torrent_load" -> torrentLoad(args);
+                case "bencode" -> bencode(args);
+                case "alloc" -> alloc(args);
+                case "seed" -> seed(args);
+                case "tracker" -> tracker(args);
+                case "dial" -> dial(args);
+                case "metadata" -> metadata(args);
+                case "depth" -> depth(args);
+                case "metrics" -> metrics(args);
+                case "swarm" -> swarm(args);
+                case "stream" -> stream(args);
+                case "session" -> session(args);
+                case "pex" -> pex(args);
+                default -> System.out.println("Unknown benchmark: " + name);
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("Benchmark " + name + " failed: " + e.getMessage(), e);
+        }
+    }
+
+    // bench pipeline [latencyMillis] [pieces]: downloads from a loopback peer that delays every block
+    private static void pipeline(String[] args) throws Exception {
+        long latencyMillis = args.length > 0 ? Long.parseLong(args[0]) : 20;
+        int numPieces = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int pieceLength = 256 * 1024;
+        byte[] content = LoopbackPeer.syntheticContent(numPieces * pieceLength);
+        Torrent torrent = syntheticTorrent(content, pieceLength);
+        try (LoopbackPeer peer = new LoopbackPeer.Builder()
+                .setInfoHash(Utils.hexStringToByteArray(torrent.getInfoHash()))
+                .setContent(content)
+                .setPieceLength(pieceLength)
+                .setLatencyMillis(latencyMillis)
+                .build()) {
+            List<String> results = new ArrayList<>();
+            for (int window : new int[]{1, 2, 4, 8, 16, 32}) {
+                TorrentDownloader.setConfig(new DownloadConfig.Builder().setPipelineWindow(window)
+                        .setAdaptivePipeline(false).build());
+                long start = System.nanoTime();
+                for (int i = 0; i < numPieces; i++) {
+                    byte[] piece = TorrentDownloader.downloadPieceFromPeer(torrent, peer.getAddress(), i, false);
+                    if (!Arrays.equals(piece, 0, piece.length, content, i * pieceLength, (i + 1) * pieceLength)) {
+                        throw new RuntimeException("Piece " + i + " does not match the seeded content");
+                    }
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                results.add(String.format("window=%-3d %8.2f MiB/s", window, content.length / seconds / (1024 * 1024)));
+            }
+            System.out.println("Pipeline benchmark, latency " + latencyMillis + " ms, " + numPieces + " x " + pieceLength + " byte pieces");
+            results.forEach(System.out::println);
+        } finally {
+            TorrentDownloader.setConfig(DownloadConfig.fromSystemProperties());
+        }
+    }
+
+    // bench sessions [latencyMillis] [pieces]: reconnecting for every piece vs one persistent PeerSession
+    private static void sessions(String[] args) throws Exception {
+        long latencyMillis = args.length > 0 ? Long.parseLong(args[0]) : 5;
+        int numPieces = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int pieceLength = 64 * 1024;
+        byte[] content = LoopbackPeer.syntheticContent(numPieces * pieceLength);
+        Torrent torrent = syntheticTorrent(content, pieceLength);
+        try (LoopbackPeer peer = new LoopbackPeer.Builder()
+                .setInfoHash(Utils.hexStringToByteArray(torrent.getInfoHash()))
+                .setContent(content)
+                .setPieceLength(pieceLength)
+                .setLatencyMillis(latencyMillis)
+                .build()) {
+            long start = System.nanoTime();
+            for (int i = 0; i < numPieces; i++) {
+                TorrentDownloader.downloadPieceFromPeer(torrent, peer.getAddress(), i, false);
+            }
+            double reconnectSeconds = (System.nanoTime() - start) / 1e9;
+            start = System.nanoTime();
+            try (PeerSession session = PeerSession.open(peer.getAddress(), torrent.getInfoHash(), torrent.getPieceCount(),
+                    false)) {
+                for (int i = 0; i < numPieces; i++) {
+                    session.downloadPiece(i, pieceLength, DownloadConfig.DEFAULT_PIPELINE_WINDOW);
+                }
+            }
+            double sessionSeconds = (System.nanoTime() - start) / 1e9;
+            System.out.println("Session benchmark, latency " + latencyMillis + " ms, " + numPieces + " x " + pieceLength + " byte pieces");
+            System.out.printf("reconnect per piece %8.2f MiB/s%n", content.length / reconnectSeconds / (1024 * 1024));
+            System.out.printf("persistent session  %8.2f MiB/s%n", content.length / sessionSeconds / (1024 * 1024));
+        }
+    }
+
+    // bench executors [peerCounts...]: the fixed platform pool vs virtual threads, one task per simulated peer
+    private static void executors(String[] args) throws Exception {
+        int[] peerCounts = args.length > 0 ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray() : new int[]{50, 500, 2000};
+        List<String> results = new ArrayList<>();
+        for (int numPeers : peerCounts) {
+            // one 16 KiB piece per peer so every simulated peer ends up with a live connection
+            int pieceLength = TorrentDownloader.BLOCK_SIZE;
+            byte[] content = LoopbackPeer.syntheticContent(numPeers * pieceLength);
+            Torrent torrent = syntheticTorrent(content, pieceLength);
+            try (LoopbackPeer peer = new LoopbackPeer.Builder()
+                    .setInfoHash(Utils.hexStringToByteArray(torrent.getInfoHash()))
+                    .setContent(content)
+                    .setPieceLength(pieceLength)
+                    .setLatencyMillis(50)
+                    .build()) {
+                List<String> peers = java.util.Collections.nCopies(numPeers, peer.getAddress());
+                for (PeerTaskScope.ExecutionMode mode : PeerTaskScope.ExecutionMode.values()) {
+                    if (!PeerTaskScope.isSupported(mode)) {
+                        results.add(String.format("peers=%-5d %-13s unavailable on Java %s", numPeers, mode, Runtime.version()));
+                        continue;
+                    }
+                    TorrentDownloader.setConfig(new DownloadConfig.Builder().setExecutionMode(mode).build());
+                    java.nio.file.Path target = java.nio.file.Files.createTempFile("bench-executors", ".bin");
+                    ResourceSampler sampler = new ResourceSampler();
+                    long start = System.nanoTime();
+                    try {
+                        TorrentDownloader.downloadFromPeers(torrent, target.toString(), false, peers, List.of());
+                    } finally {
+                        sampler.stop();
+                        java.nio.file.Files.deleteIfExists(target);
+                        java.nio.file.Files.deleteIfExists(ResumeJournal.pathFor(target.toString(), torrent));
+                    }
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    results.add(String.format("peers=%-5d %-13s %8.2f MiB/s  peak worker platform threads %5d  peak JVM threads %5d  peak heap %6.1f MiB",
+                            numPeers, mode, content.length / seconds / (1024 * 1024), sampler.peakWorkerThreads,
+                            sampler.peakThreads, sampler.peakHeapBytes / (1024.0 * 1024)));
+                }
+            }
+        }
+        TorrentDownloader.setConfig(DownloadConfig.fromSystemProperties());
+        System.out.println("Executor benchmark, 50 ms block latency");
+        results.forEach(System.out::println);
+    }
+
+    // bench seed [pieces] [leecherCounts...]: one SeedServer uploading a stored file to many loopback
+    // leechers at once, each a full downloadFromPeers with its own storage
+    private static void seed(String[] args) throws Exception {
+        int numPieces = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int[] leecherCounts = args.length > 1
+                ? Arrays.stream(args, 1, args.length).mapToInt(Integer::parseInt).toArray() : new int[]{1, 4, 16};
+        int pieceLength = 256 * 1024;
+        byte[] content = LoopbackPeer.syntheticContent(numPieces * pieceLength);
+        Torrent torrent = syntheticTorrent(content, pieceLength);
+        java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("bench-seed");
+        java.nio.file.Path source = directory.resolve("source.bin");
+        java.nio.file.Files.write(source, content);
+        BitSet all = new BitSet();
+        all.set(0, torrent.getPieceCount());
+        List<String> results = new ArrayList<>();
+        // the leechers only download, so they don't compete with the seeder for the info hash
+        TorrentDownloader.setConfig(new DownloadConfig.Builder().setSeeding(false).setPipelineWindow(16).build());
+        try (PieceStorage storage = PieceStorage.openReadOnly(source.toString(), torrent);
+             SeedServer server = new SeedServer(0);
+             SeedServer.Registration registration = server.register(torrent, storage, all)) {
+            String seeder = "127.0.0.1:" + server.getPort();
+            for (int leechers : leecherCounts) {
+                long uploadedBefore = registration.getUploadedBytes();
+                List<Thread> threads = new ArrayList<>();
+                long start = System.nanoTime();
+                for (int i = 0; i < leechers; i++) {
+                    String target = directory.resolve("leecher-" + i + ".bin").toString();
+                    Thread thread = new Thread(() -> TorrentDownloader.downloadFromPeers(torrent, target, false,
+                            List.of(seeder), List.of()), "leecher-" + i);
+                    thread.start();
+                    threads.add(thread);
+                }
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                for (int i = 0; i < leechers; i++) {
+                    java.nio.file.Path target = directory.resolve("leecher-" + i + ".bin");
+                    if (!Arrays.equals(java.nio.file.Files.readAllBytes(target), content)) {
+                        throw new RuntimeException("Leecher " + i + " did not get the seeded content");
+                    }
+                    java.nio.file.Files.delete(target);
+                    java.nio.file.Files.deleteIfExists(ResumeJournal.pathFor(target.toString(), torrent));
+                }
+                long uploaded = registration.getUploadedBytes() - uploadedBefore;
+                results.add(String.format("leechers=%-3d uploaded %6.1f MiB in %6.2f s  %8.2f MiB/s aggregate",
+                        leechers, uploaded / (1024.0 * 1024), seconds, uploaded / seconds / (1024 * 1024)));
+            }
+        } finally {
+            TorrentDownloader.setConfig(DownloadConfig.fromSystemProperties());
+            java.nio.file.Files.deleteIfExists(source);
+            java.nio.file.Files.deleteIfExists(directory);
+        }
+        System.out.println("Seeding benchmark, " + numPieces + " x " + pieceLength + " byte pieces");
+        results.forEach(System.out::println);
+    }
+
+    // bench tracker [announces]: announce round trips to loopback HTTP and UDP trackers, then checks the
+    // UDP client's connection ID reuse, a tracker restart, retransmission after lost packets and tracker errors
+    private static void tracker(String[] args) throws Exception {
+        int announces = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        byte[] infoHash = Utils.getRandomBytes(20);
+        List<String> peers = List.of("127.0.0.1:6881", "127.0.0.2:6882", "10.0.0.1:51413");
+        TrackerClient.Progress progress = TrackerClient.progress(0, 0, 1 << 20);
+        UdpTrackerClient client = new UdpTrackerClient(200, 3);
+        try (LoopbackHttpTracker httpTracker = new LoopbackHttpTracker.Builder().setPeers(peers).build();
+             LoopbackUdpTracker udpTracker = new LoopbackUdpTracker.Builder().setPeers(peers).build()) {
+            String httpURL = httpTracker.getURL();
+            for (int round = 0; round < 2; round++) {
+                // the first round only warms up
+                long start = System.nanoTime();
+                for (int i = 0; i < announces; i++) {
+                    if (!TrackerClient.announce(httpURL, infoHash, 6881, progress, TrackerClient.Event.NONE).getPeers().equals(peers)) {
+                        throw new RuntimeException("HTTP tracker returned the wrong peers");
+                    }
+                }
+                long httpNanos = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 0; i < announces; i++) {
+                    if (!client.announce(udpTracker.getURL(), infoHash, 6881, progress, TrackerClient.Event.NONE).getPeers().equals(peers)) {
+                        throw new RuntimeException("UDP tracker returned the wrong peers");
+                    }
+                }
+                long udpNanos = System.nanoTime() - start;
+                if (round == 1) {
+                    System.out.println("Tracker benchmark, " + announces + " announces each over loopback");
+                    System.out.printf("http  %8.1f us/announce%n", httpNanos / 1e3 / announces);
+                    System.out.printf("udp   %8.1f us/announce%n", udpNanos / 1e3 / announces);
+                }
+            }
+            System.out.println("UDP connect transactions: " + udpTracker.getConnects() + " for "
+                    + udpTracker.getAnnounces() + " announces");
+            client.announce(udpTracker.getURL(), infoHash, 6881, progress, TrackerClient.Event.STOPPED);
+            if (udpTracker.getLastEvent() != 3 || udpTracker.getLastLeft() != 1 << 20) {
+                throw new RuntimeException("UDP tracker saw event " + udpTracker.getLastEvent() + ", left " + udpTracker.getLastLeft());
+            }
+            // the cached connection ID is rejected after a restart, so the client connects again
+            udpTracker.forgetConnectionIds();
+            int connects = udpTracker.getConnects();
+            boolean recovered = client.announce(udpTracker.getURL(), infoHash, 6881, progress, TrackerClient.Event.NONE)
+                    .getPeers().equals(peers);
+            System.out.printf("Tracker restart: %s, %d new connects%n", recovered ? "recovered" : "WRONG PEERS",
+                    udpTracker.getConnects() - connects);
+        }
+        // the connect and the first announce are both lost, so each is sent again after 200 ms and 400 ms
+        try (LoopbackUdpTracker lossy = new LoopbackUdpTracker.Builder().setPeers(peers).setPacketsToDrop(2).build()) {
+            long start = System.nanoTime();
+            List<String> received = client.announce(lossy.getURL(), infoHash, 6881, progress, TrackerClient.Event.STARTED).getPeers();
+            System.out.printf("2 lost packets: %s after %d ms, %d connects%n", received.equals(peers) ? "recovered" : "WRONG PEERS",
+                    (System.nanoTime() - start) / 1_000_000, lossy.getConnects());
+        }
+        try (LoopbackUdpTracker failing = new LoopbackUdpTracker.Builder().setErrorMessage("torrent not registered").build()) {
+            client.announce(failing.getURL(), infoHash, 6881, progress, TrackerClient.Event.STARTED);
+            throw new RuntimeException("UDP tracker error was not reported");
+        } catch (java.io.IOException e) {
+            System.out.println("Error response: " + e.getMessage());
+        }
+    }
+
+    // bench dial [silentPeers] [maxHalfOpen]: time to the first working session when the peer list starts
+    // with peers that accept the TCP connection but never answer the handshake, trying them one by one
+    // as before against racing them all through ConnectionManager
+    private static void dial(String[] args) throws Exception {
+        int silentPeers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int maxHalfOpen = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int handshakeTimeoutMillis = 500;
+        int pieceLength = 64 * 1024;
+        byte[] content = LoopbackPeer.syntheticContent(4 * pieceLength);
+        Torrent torrent = syntheticTorrent(content, pieceLength);
+        TorrentDownloader.setConfig(new DownloadConfig.Builder().setHandshakeTimeoutMillis(handshakeTimeoutMillis)
+                .setMaxHalfOpen(maxHalfOpen).build());
+        List<java.net.Socket> accepted = java.util.Collections.synchronizedList(new ArrayList<>());
+        try (java.net.ServerSocket silent = new java.net.ServerSocket(0, 1024, java.net.InetAddress.getLoopbackAddress());
+             LoopbackPeer peer = new LoopbackPeer.Builder()
+                     .setInfoHash(Utils.hexStringToByteArray(torrent.getInfoHash()))
+                     .setContent(content)
+                     .setPieceLength(pieceLength)
+                     .build()) {
+            Thread acceptor = new Thread(() -> {
+                while (!silent.isClosed()) {
+                    try {
+                        accepted.add(silent.accept());
+                    } catch (java.io.IOException e) {
+                        return;
+                    }
+                }
+            }, "silent-peer");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            List<String> peers = new ArrayList<>();
+            for (int i = 0; i < silentPeers; i++) {
+                peers.add("127.0.0.1:" + silent.getLocalPort());
+            }
+            peers.add(peer.getAddress());
+
+            long start = System.nanoTime();
+            PeerSession first = null;
+            for (String candidate : peers) {
+                try {
+                    first = PeerSession.open(candidate, torrent.getInfoHash(), torrent.getPieceCount(), false);
+                    break;
+                } catch (Exception e) {
+                    // the next one, like the old loop
+                }
+            }
+            long sequentialMillis = (System.nanoTime() - start) / 1_000_000;
+            closeQuietly(first);
+
+            int[] peakHalfOpen = new int[1];
+            Thread sampler = new Thread(() -> {
+                while (!Thread.currentThread().isInterrupted()) {
+                    peakHalfOpen[0] = Math.max(peakHalfOpen[0], ConnectionManager.getHalfOpen());
+                    Thread.onSpinWait();
+                }
+            }, "half-open-sampler");
+            sampler.start();
+            start = System.nanoTime();
+            PeerSession raced = ConnectionManager.race(peers, torrent.getInfoHash(), torrent.getPieceCount(), false,
+                    peers.size());
+            long raceMillis = (System.nanoTime() - start) / 1_000_000;
+            sampler.interrupt();
+            sampler.join();
+            if (raced == null || !raced.getPeer().equals(peer.getAddress())) {
+                throw new RuntimeException("Race did not end on the working peer");
+            }
+            closeQuietly(raced);
+            System.out.println("Dial benchmark, " + silentPeers + " silent peers before a working one, handshake timeout "
+                    + handshakeTimeoutMillis + " ms, half-open cap " + maxHalfOpen);
+            System.out.printf("sequential  first session after %6d ms%n", sequentialMillis);
+            System.out.printf("race        first session after %6d ms, peak half-open %d%n", raceMillis, peakHalfOpen[0]);
+        } finally {
+            TorrentDownloader.setConfig(DownloadConfig.fromSystemProperties());
+            for (java.net.Socket socket : accepted) {
+                socket.close();
+            }
+        }
+    }
+
+    // bench metrics [blocks] [threads]: what recording a block costs, a histogram sample from several
+    // threads at once, against building and printing the old per-block line
+    private static void metrics(String[] args) throws Exception {
+        int blocks = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        DownloadMetrics metrics = new DownloadMetrics(syntheticTorrent(new byte[16384], 16384), null);
+        DownloadMetrics.Peer peer = metrics.peerConnected("127.0.0.1:1", PipelineDepth.fixed(5));
+        for (int round = 0; round < 2; round++) {
+            // the first round warms up the JIT
+            long start = System.nanoTime();
+            List<Thread> recorders = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                Thread thread = new Thread(() -> {
+                    for (int i = 0; i < blocks; i++) {
+                        peer.onBlock(TorrentDownloader.BLOCK_SIZE, 1_000_000L + i % 50_000_000);
+                    }
+                });
+                recorders.add(thread);
+                thread.start();
+            }
+            for (Thread thread : recorders) {
+                thread.join();
+            }
+            double recordNanos = (System.nanoTime() - start) / ((double) blocks * threads);
+            java.io.PrintStream discard = new java.io.PrintStream(java.io.OutputStream.nullOutputStream());
+            start = System.nanoTime();
+            for (int i = 0; i < blocks; i++) {
+                discard.println("Received piece message for block: " + i % 64 + " out of " + 64);
+            }
+            double printNanos = (System.nanoTime() - start) / (double) blocks;
+            if (round == 1) {
+                System.out.println("Metrics benchmark, " + blocks + " blocks per thread");
+                System.out.printf("record block, %d threads  %6.1f ns per block%n", threads, recordNanos);
+                System.out.printf("per-block println         %6.1f ns per block (to a null stream)%n", printNanos);
+                System.out.println("block rtt " + metrics.getBlockRtt());
+            }
+        }
+    }
+
+    // bench depth [pieces]: the fixed pipeline window against the adaptive PipelineDepth on a
+    // latency-bound peer, a bandwidth-bound one, and a peer that announces a small reqq
+    private static void depth(String[] args) throws Exception {
+        int numPieces = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int pieceLength = 1024 * 1024;
+        byte[] content = LoopbackPeer.syntheticContent(numPieces * pieceLength);
+        Torrent torrent = syntheticTorrent(content, pieceLength);
+        System.out.println("Pipeline depth benchmark, " + numPieces + " x " + pieceLength + " byte pieces");
+        try {
+            depthRun("50 ms, unlimited", torrent, content, 50, 0, 0, false);
+            depthRun("5 ms, 4 MiB/s", torrent, content, 5, 4 * 1024 * 1024, 0, false);
+            depthRun("50 ms, reqq 8", torrent, content, 50, 0, 8, true);
+        } finally {
+            TorrentDownloader.setConfig(DownloadConfig.fromSystemProperties());
+        }
+    }
+
+    private static void depthRun(String label, Torrent torrent, byte[] content, long latencyMillis, long bandwidth,
+                                 int requestQueue, boolean negotiateExtensions) throws Exception {
+        int pieceLength = (int) torrent.getPieceLength(0);
+        try (LoopbackPeer peer = new LoopbackPeer.Builder()
+                .setInfoHash(Utils.hexStringToByteArray(torrent.getInfoHash()))
+                .setContent(content)
+                .setPieceLength(pieceLength)
+                .setLatencyMillis(latencyMillis)
+                .setBandwidth(bandwidth)
+                .setRequestQueue(requestQueue)
+                .build()) {
+            for (boolean adaptive : new boolean[]{false, true}) {
+                TorrentDownloader.setConfig(new DownloadConfig.Builder().setAdaptivePipeline(adaptive).build());
+                long start = System.nanoTime();
+                PipelineDepth depth;
+                try (PeerSession session = PeerSession.open(peer.getAddress(), torrent.getInfoHash(),
+                        torrent.getPieceCount(), negotiateExtensions)) {
+                    for (int i = 0; i < torrent.getPieceCount(); i++) {
+                        session.downloadPiece(i, pieceLength, () -> false);
+                    }
+                    depth = session.getPipelineDepth();
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("%-18s %-8s %8.2f MiB/s, %s%n", label, adaptive ? "adaptive" : "fixed",
+                        content.length / seconds / (1024 * 1024), depth);
+            }
+        }
+    }
+
+    // bench metadata [peers] [metadataKiB] [latencyMillis]: fetches an info dict over ut_metadata from
+    // one loopback peer and then from all of them at once, and once more with a peer that rejects
+    private static void metadata(String[] args) throws Exception {
+        int numPeers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int metadataKiB = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        long latencyMillis = args.length > 2 ? Long.parseLong(args[2]) : 20;
+        // an info dict whose pieces string brings it to the requested size
+        int numPieces = metadataKiB * 1024 / Torrent.HASH_LENGTH;
+        String head = "d6:lengthi" + (long) numPieces * 16384 + "e4:name5:bench12:piece lengthi16384e6:pieces"
+                + numPieces * Torrent.HASH_LENGTH + ":";
+        java.io.ByteArrayOutputStream dict = new java.io.ByteArrayOutputStream();
+        dict.write(head.getBytes(java.nio.charset.StandardCharsets.ISO_8859_1));
+        dict.write(LoopbackPeer.syntheticContent(numPieces * Torrent.HASH_LENGTH));
+        dict.write('e');
+        byte[] metadata = dict.toByteArray();
+        String infoHash = Utils.byteToHexString(Utils.sha1(metadata, 0, metadata.length));
+        List<LoopbackPeer> loopbackPeers = new ArrayList<>();
+        try {
+            List<String> peers = new ArrayList<>();
+            for (int i = 0; i <= numPeers; i++) {
+                LoopbackPeer peer = new LoopbackPeer.Builder()
+                        .setInfoHash(Utils.hexStringToByteArray(infoHash))
+                        .setContent(new byte[0])
+                        .setPieceLength(16384)
+                        .setLatencyMillis(latencyMillis)
+                        .setMetadata(metadata)
+                        // the extra peer only takes part in the last run
+                        .setRejectMetadata(i == numPeers)
+                        .build();
+                loopbackPeers.add(peer);
+                peers.add(peer.getAddress());
+            }
+            String rejecting = peers.remove(numPeers);
+            List<String> withRejecting = new ArrayList<>(peers);
+            withRejecting.add(0, rejecting);
+            System.out.println("Metadata benchmark, " + metadata.length / 1024 + " KiB info dict in "
+                    + (metadata.length + MetadataFetcher.METADATA_PIECE_SIZE - 1) / MetadataFetcher.METADATA_PIECE_SIZE
+                    + " pieces, " + latencyMillis + " ms latency per reply");
+            fetchMetadata("1 peer", peers, infoHash, 1);
+            fetchMetadata(numPeers + " peers", peers, infoHash, numPeers);
+            fetchMetadata(numPeers + " peers + 1 rejecting", withRejecting, infoHash, numPeers);
+        } finally {
+            for (LoopbackPeer peer : loopbackPeers) {
+                peer.close();
+            }
+        }
+    }
+
+    private static void fetchMetadata(String label, List<String> peers, String infoHash, int maxPeers) throws Exception {
+        long start = System.nanoTime();
+        MetadataFetcher fetcher = new MetadataFetcher(infoHash, maxPeers);
+        byte[] fetched;
+        try (ConnectionManager.Dial dial = ConnectionManager.dial(peers, infoHash, PeerSession.UNKNOWN_PIECE_COUNT, true,
+                peers.size())) {
+            fetched = fetcher.fetch(dial);
+        }
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        Torrent torrent = Torrent.fromMetadata(fetched, null);
+        for (PeerSession session : fetcher.getSessions()) {
+            session.close();
+        }
+        System.out.printf("%-24s %6d ms, %d pieces of content, %d sessions kept%n", label, millis,
+                torrent.getPieceCount(), fetcher.getSessions().size());
+    }
+
+    // bench swarm [seeders] [MiB] [latencyMillis]: full `download` and `magnet_download` runs through Main
+    // against a loopback swarm, once with well-behaved seeders and once with a hostile mix, reporting
+    // throughput, block and piece latency tails, process CPU time and peak heap
+    private static void swarm(String[] args) throws Exception {
+        int numSeeders = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int contentMiB = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        long latencyMillis = args.length > 2 ? Long.parseLong(args[2]) : 10;
+        int pieceLength = 256 * 1024;
+        int numPieces = contentMiB * 1024 * 1024 / pieceLength;
+        List<String> results = new ArrayList<>();
+        LoopbackSwarm.Builder clean = new LoopbackSwarm.Builder().setContentLength(contentMiB * 1024 * 1024)
+                .setPieceLength(pieceLength);
+        for (int i = 0; i < numSeeders; i++) {
+            clean.addSeeder(seeder -> seeder.setLatencyMillis(latencyMillis));
+        }
+        try (LoopbackSwarm swarm = clean.build()) {
+            // warms up the JIT so the first measured run isn't penalised
+            swarmRun("warmup", swarm, "download", "-o", swarm.newOutputPath(), swarm.getTorrentFile());
+            results.add(swarmRun("download", swarm, "download", "-o", swarm.newOutputPath(), swarm.getTorrentFile()));
+            results.add(swarmRun("magnet_download", swarm, "magnet_download", "-o", swarm.newOutputPath(), swarm.getMagnetLink()));
+        }
+        // seeder 0 has everything but keeps choking, seeder 1 corrupts every 8th piece, the rest only have
+        // alternate halves of the pieces and seeder 2 is also slow
+        LoopbackSwarm.Builder hostile = new LoopbackSwarm.Builder().setContentLength(contentMiB * 1024 * 1024)
+                .setPieceLength(pieceLength);
+        BitSet everyEighth = new BitSet();
+        for (int i = 0; i < numPieces; i += 8) {
+            everyEighth.set(i);
+        }
+        for (int i = 0; i < numSeeders; i++) {
+            int seederIndex = i;
+            hostile.addSeeder(seeder -> {
+                seeder.setLatencyMillis(latencyMillis);
+                if (seederIndex == 0) {
+                    seeder.setChoking(64, 200);
+                } else if (seederIndex == 1) {
+                    seeder.setCorruptPieces(everyEighth);
+                } else {
+                    if (seederIndex == 2) {
+                        seeder.setBandwidth(2 * 1024 * 1024);
+                    }
+                    BitSet half = new BitSet();
+                    for (int piece = seederIndex % 2; piece < numPieces; piece += 2) {
+                        half.set(piece);
+                    }
+                    seeder.setPieces(half);
+                }
+            });
+        }
+        try (LoopbackSwarm swarm = hostile.build()) {
+            results.add(swarmRun("download, hostile", swarm, "download", "-o", swarm.newOutputPath(), swarm.getTorrentFile()));
+        }
+        System.out.println("Swarm benchmark, " + numSeeders + " seeders, " + contentMiB + " MiB in " + numPieces
+                + " pieces, " + latencyMillis + " ms latency per block");
+        System.out.println("CPU time includes the seeders, which run in the same process");
+        results.forEach(System.out::println);
+    }
+
+    private static String swarmRun(String label, LoopbackSwarm swarm, String... command) throws Exception {
+        String outputPath = command[2];
+        com.sun.management.OperatingSystemMXBean os =
+                (com.sun.management.OperatingSystemMXBean) java.lang.management.ManagementFactory.getOperatingSystemMXBean();
+        ResourceSampler sampler = new ResourceSampler();
+        long cpuStart = os.getProcessCpuTime();
+        long start = System.nanoTime();
+        Main.main(command);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double cpuSeconds = (os.getProcessCpuTime() - cpuStart) / 1e9;
+        sampler.stop();
+        if (!Arrays.equals(java.nio.file.Files.readAllBytes(java.nio.file.Path.of(outputPath)), swarm.getContent())) {
+            throw new RuntimeException(label + " did not reproduce the seeded content");
+        }
+        DownloadMetrics metrics = TorrentDownloader.getLastMetrics();
+        java.util.Map<String, Double> rtt = metrics.getBlockRtt();
+        java.util.Map<String, Double> piece = metrics.getPieceDownloadLatency();
+        return String.format("%-18s %7.2f MiB/s, rtt p50 %6.1f p99 %6.1f ms, piece p99 %7.1f ms, "
+                        + "cpu %5.2f s, peak heap %4d MiB, %d hash failures",
+                label, swarm.getContent().length / seconds / (1024 * 1024), rtt.get("p50Millis"), rtt.get("p99Millis"),
+                piece.get("p99Millis"), cpuSeconds, sampler.peakHeapBytes / (1024 * 1024), metrics.getHashFailures());
+    }
+
+    // bench session [torrents] [MiB] [maxConnections] [KiBps]: several swarms downloaded by one Session,
+    // checking that the connection cap holds and that a shared rate limit is split evenly
+    private static void session(String[] args) throws Exception {
+        int numTorrents = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int contentMiB = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int maxConnections = args.length > 2 ? Integer.parseInt(args[2]) : 6;
+        long bytesPerSecond = (args.length > 3 ? Long.parseLong(args[3]) : 12 * 1024) * 1024;
+        List<LoopbackSwarm> swarms = new ArrayList<>();
+        try {
+            for (int i = 0; i < numTorrents; i++) {
+                LoopbackSwarm.Builder builder = new LoopbackSwarm.Builder()
+                        .setContentLength(contentMiB * 1024 * 1024 + i * 12345)
+                        .setPieceLength(256 * 1024);
+                for (int j = 0; j < 4; j++) {
+                    builder.addSeeder(seeder -> seeder.setLatencyMillis(5));
+                }
+                swarms.add(builder.build());
+            }
+            System.out.println("Session benchmark, " + numTorrents + " torrents of " + contentMiB + " MiB with 4 seeders each, "
+                    + maxConnections + " connections");
+            sessionRun("unlimited", swarms, maxConnections, 0);
+            sessionRun(bytesPerSecond / 1024 + " KiB/s", swarms, maxConnections, bytesPerSecond);
+        } finally {
+            for (LoopbackSwarm swarm : swarms) {
+                swarm.close();
+            }
+        }
+    }
+
+    private static void sessionRun(String label, List<LoopbackSwarm> swarms, int maxConnections, long bytesPerSecond)
+            throws Exception {
+        java.nio.file.Path outputDirectory = java.nio.file.Files.createTempDirectory("session-bench");
+        int[] peakConnections = new int[1];
+        long start = System.nanoTime();
+        try (Session session = new Session(maxConnections, bytesPerSecond)) {
+            Thread sampler = new Thread(() -> {
+                while (!Thread.currentThread().isInterrupted()) {
+                    peakConnections[0] = Math.max(peakConnections[0], session.getConnectionsInUse());
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+            sampler.start();
+            for (LoopbackSwarm swarm : swarms) {
+                // a subdirectory each, the generated torrents all share a name
+                session.add(swarm.getTorrentFile(), outputDirectory.resolve(String.valueOf(swarms.indexOf(swarm))));
+            }
+            session.awaitAll();
+            sampler.interrupt();
+            sampler.join();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long totalBytes = 0;
+            List<String> rows = new ArrayList<>();
+            for (int i = 0; i < swarms.size(); i++) {
+                Session.Download download = session.getDownloads().get(i);
+                byte[] content = swarms.get(i).getContent();
+                if (download.getError() != null
+                        || !Arrays.equals(java.nio.file.Files.readAllBytes(java.nio.file.Path.of(download.getOutputPath())), content)) {
+                    throw new RuntimeException(label + ": torrent " + i + " did not reproduce the seeded content");
+                }
+                totalBytes += content.length;
+                rows.add(String.format("  torrent %d %7.2f MiB/s over %6d ms", i,
+                        content.length / (download.getElapsedMillis() / 1e3) / (1024 * 1024), download.getElapsedMillis()));
+            }
+            System.out.println(String.format("%-12s %7.2f MiB/s total, peak %d of %d connections", label,
+                    totalBytes / seconds / (1024 * 1024), peakConnections[0], maxConnections));
+            rows.forEach(System.out::println);
+        } finally {
+            try (var paths = java.nio.file.Files.walk(outputDirectory)) {
+                for (java.nio.file.Path path : (Iterable<java.nio.file.Path>) paths.sorted(java.util.Comparator.reverseOrder())::iterator) {
+                    java.nio.file.Files.delete(path);
+                }
+            }
+        }
+    }
+
+    // bench stream [MiB] [bufferMiB] [seederKiBps]: time to first byte of `download`, where nothing is
+    // usable before the end, against a PieceStream read as fast as possible and one read at half the
+    // swarm's rate, whose buffered pieces must stay under the cap
+    private static void stream(String[] args) throws Exception {
+        int contentMiB = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int bufferMiB = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        long seederBandwidth = (args.length > 2 ? Long.parseLong(args[2]) : 2048) * 1024;
+        int numSeeders = 4;
+        LoopbackSwarm.Builder builder = new LoopbackSwarm.Builder().setContentLength(contentMiB * 1024 * 1024);
+        for (int i = 0; i < numSeeders; i++) {
+            builder.addSeeder(seeder -> seeder.setLatencyMillis(10).setBandwidth(seederBandwidth));
+        }
+        List<String> results = new ArrayList<>();
+        try (LoopbackSwarm swarm = builder.build()) {
+            TorrentDownloader.setConfig(new DownloadConfig.Builder().setStreamBufferBytes(bufferMiB * 1024L * 1024).build());
+            Torrent torrent = TorrentUtils.getTorrentFromPath(swarm.getTorrentFile());
+            long start = System.nanoTime();
+            TorrentDownloader.downloadTorrent(torrent, swarm.newOutputPath(), false);
+            long downloadMillis = (System.nanoTime() - start) / 1_000_000;
+            results.add(String.format("%-20s first byte %6d ms, done %6d ms", "download", downloadMillis, downloadMillis));
+            results.add(streamRun("stream, fast reader", swarm, torrent, 0));
+            results.add(streamRun("stream, slow reader", swarm, torrent, seederBandwidth * numSeeders / 2));
+        } finally {
+            TorrentDownloader.setConfig(DownloadConfig.fromSystemProperties());
+        }
+        System.out.println("Stream benchmark, " + contentMiB + " MiB from " + numSeeders + " seeders at "
+                + seederBandwidth / 1024 + " KiB/s each, " + bufferMiB + " MiB stream buffer");
+        results.forEach(System.out::println);
+    }
+
+    // readerBytesPerSecond 0 reads as fast as the stream allows
+    private static String streamRun(String label, LoopbackSwarm swarm, Torrent torrent, long readerBytesPerSecond)
+            throws Exception {
+        byte[] content = swarm.getContent();
+        byte[] buffer = new byte[64 * 1024];
+        long start = System.nanoTime();
+        long read = 0;
+        try (PieceStream stream = TorrentDownloader.stream(torrent, swarm.newOutputPath())) {
+            int n;
+            while ((n = stream.read(buffer)) != -1) {
+                if (!Arrays.equals(buffer, 0, n, content, (int) read, (int) read + n)) {
+                    throw new RuntimeException(label + " returned the wrong bytes at offset " + read);
+                }
+                read += n;
+                if (readerBytesPerSecond > 0) {
+                    long dueNanos = start + read * 1_000_000_000L / readerBytesPerSecond;
+                    long sleepNanos = dueNanos - System.nanoTime();
+                    if (sleepNanos > 0) {
+                        Thread.sleep(sleepNanos / 1_000_000, (int) (sleepNanos % 1_000_000));
+                    }
+                }
+            }
+            if (read != content.length) {
+                throw new RuntimeException(label + " ended after " + read + " of " + content.length + " bytes");
+            }
+            long doneMillis = (System.nanoTime() - start) / 1_000_000;
+            return String.format("%-20s first byte %6d ms, done %6d ms, peak buffered %.1f MiB", label,
+                    stream.getTimeToFirstByteMillis(), doneMillis, stream.getPeakBufferedBytes() / (1024.0 * 1024));
+        }
+    }
+
+    // bench pex [seeders] [MiB] [seederKiBps]: a swarm of slow seeders whose tracker hands out only one of
+    // them, downloaded with and without peer exchange; with it the other seeders are found through the
+    // first one and the download runs at the whole swarm's rate
+    private static void pex(String[] args) throws Exception {
+        int numSeeders = args.length > 0 ? Integer.parseInt(args[0]) : 6;
+        int contentMiB = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        long seederBytesPerSecond = (args.length > 2 ? Long.parseLong(args[2]) : 1024) * 1024;
+        LoopbackSwarm.Builder builder = new LoopbackSwarm.Builder().setContentLength(contentMiB * 1024 * 1024)
+                .setPieceLength(256 * 1024)
+                .setTrackerPeers(1);
+        for (int i = 0; i < numSeeders; i++) {
+            builder.addSeeder(seeder -> seeder.setLatencyMillis(5).setBandwidth(seederBytesPerSecond));
+        }
+        List<String> results = new ArrayList<>();
+        try (LoopbackSwarm swarm = builder.build()) {
+            Torrent torrent = TorrentUtils.getTorrentFromPath(swarm.getTorrentFile());
+            try {
+                for (boolean peerExchange : new boolean[]{false, true}) {
+                    TorrentDownloader.setConfig(new DownloadConfig.Builder().setPeerExchange(peerExchange).build());
+                    String outputPath = swarm.newOutputPath();
+                    int pexBefore = swarm.getPexPeersReceived();
+                    long start = System.nanoTime();
+                    TorrentDownloader.downloadTorrent(torrent, outputPath, false);
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    if (!Arrays.equals(java.nio.file.Files.readAllBytes(java.nio.file.Path.of(outputPath)), swarm.getContent())) {
+                        throw new RuntimeException("Download did not reproduce the seeded content");
+                    }
+                    results.add(String.format("%-18s %6.2f MiB/s, %d announces so far, %d addresses sent to the seeders",
+                            peerExchange ? "peer exchange" : "tracker only", contentMiB / seconds,
+                            swarm.getAnnounces(), swarm.getPexPeersReceived() - pexBefore));
+                }
+            } finally {
+                TorrentDownloader.setConfig(DownloadConfig.fromSystemProperties());
+            }
+        }
+        System.out.println("PEX benchmark, " + numSeeders + " seeders at " + seederBytesPerSecond / 1024
+                + " KiB/s each, the tracker lists one of them, " + contentMiB + " MiB");
+        results.forEach(System.out::println);
+    }
+
+    private static void closeQuietly(PeerSession session) throws java.io.IOException {
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    // bench torrent_load [pieces]: parses a synthetic .torrent with that many pieces and compares the
+    // retained heap of the packed hash table against one hex String per piece, the old representation
+    private static void torrentLoad(String[] args) throws Exception {
+        int numPieces = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        byte[] fileBytes = syntheticTorrentFile(numPieces);
+        System.out.println("Torrent file: " + numPieces + " pieces, " + fileBytes.length / 1024 + " KiB");
+
+        long before = usedHeap();
+        long start = System.nanoTime();
+        Torrent torrent = Torrent.fromBytes(fileBytes);
+        long loadMillis = (System.nanoTime() - start) / 1_000_000;
+        long packedBytes = usedHeap() - before;
+
+        before = usedHeap();
+        start = System.nanoTime();
+        List<String> hexHashes = new ArrayList<>(torrent.getPieceCount());
+        for (int i = 0; i < torrent.getPieceCount(); i++) {
+            hexHashes.add(torrent.getPieceHash(i));
+        }
+        long splitMillis = (System.nanoTime() - start) / 1_000_000;
+        long hexBytes = usedHeap() - before;
+
+        System.out.printf("packed byte[]:      load %d ms, retained %d KiB%n", loadMillis, packedBytes / 1024);
+        System.out.printf("List<String> (hex): +%d ms to split, retained %d KiB%n", splitMillis, hexBytes / 1024);
+        // keep both alive until after the second measurement
+        System.out.println("Pieces: " + torrent.getPieceCount() + " / " + hexHashes.size());
+    }
+
+    // bench bencode [pieces] [iterations]: Torrent.fromBytes with the in-place reader against the old
+    // dampcake path, which decoded the file twice and re-encoded the info dict to hash it
+    private static void bencode(String[] args) throws Exception {
+        int numPieces = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        byte[] fileBytes = syntheticTorrentFile(numPieces);
+        if (!Torrent.fromBytes(fileBytes).getInfoHash().equals(dampcakeInfoHash(fileBytes))) {
+            throw new RuntimeException("Info hashes differ between the two parsers");
+        }
+        System.out.println("Torrent file: " + numPieces + " pieces, " + fileBytes.length / 1024 + " KiB");
+        for (int round = 0; round < 2; round++) {
+            // the first round only warms up the JIT
+            long dampcakeNanos = 0;
+            long readerNanos = 0;
+            for (int i = 0; i < iterations; i++) {
+                long start = System.nanoTime();
+                dampcakeInfoHash(fileBytes);
+                dampcakeNanos += System.nanoTime() - start;
+                start = System.nanoTime();
+                Torrent.fromBytes(fileBytes);
+                readerNanos += System.nanoTime() - start;
+            }
+            if (round == 1) {
+                System.out.printf("dampcake decode x2 + re-encode: %8.2f ms/op%n", dampcakeNanos / 1e6 / iterations);
+                System.out.printf("BencodeReader single pass:      %8.2f ms/op%n", readerNanos / 1e6 / iterations);
+            }
+        }
+    }
+
+    private static String dampcakeInfoHash(byte[] fileBytes) {
+        com.dampcake.bencode.Bencode bencode = new com.dampcake.bencode.Bencode(false);
+        java.util.Map<?, ?> infoDict = (java.util.Map<?, ?>) bencode.decode(fileBytes,
+                com.dampcake.bencode.Type.DICTIONARY).get("info");
+        if (infoDict.get("length") == null) {
+            throw new RuntimeException("Missing length");
+        }
+        com.dampcake.bencode.Bencode bencode2 = new com.dampcake.bencode.Bencode(true);
+        java.util.Map<?, ?> bencodedInfoDict = (java.util.Map<?, ?>) bencode2.decode(fileBytes,
+                com.dampcake.bencode.Type.DICTIONARY).get("info");
+        return Utils.calculateSHA1(bencode2.encode(bencodedInfoDict));
+    }
+
+    // bench alloc [pieces]: bytes allocated on the receive path per block, for the blocking
+    // connection reading blocks straight into the piece, the same connection going through the old
+    // whole-frame copy, and the NIO engine copying blocks out of its read buffer into the piece
+    private static void alloc(String[] args) throws Exception {
+        int numPieces = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int pieceLength = 256 * 1024;
+        byte[] content = LoopbackPeer.syntheticContent(numPieces * pieceLength);
+        Torrent torrent = syntheticTorrent(content, pieceLength);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long blocks = (long) numPieces * (pieceLength / TorrentDownloader.BLOCK_SIZE);
+        List<String> results = new ArrayList<>();
+        try (LoopbackPeer peer = new LoopbackPeer.Builder()
+                .setInfoHash(Utils.hexStringToByteArray(torrent.getInfoHash()))
+                .setContent(content)
+                .setPieceLength(pieceLength)
+                .build()) {
+            String host = peer.getAddress().split(":")[0];
+            int port = Integer.parseInt(peer.getAddress().split(":")[1]);
+            for (String mode : new String[]{"blocking, direct", "blocking, frame copy", "nio"}) {
+                PeerConnection connection = switch (mode) {
+                    case "blocking, direct" -> new TCPService(new java.net.Socket(host, port));
+                    case "blocking, frame copy" -> frameCopying(new TCPService(new java.net.Socket(host, port)));
+                    default -> NioPeerEngine.shared(DownloadConfig.DEFAULT_IO_THREADS).connect(host, port);
+                };
+                try (PeerSession session = PeerSession.open(peer.getAddress(), connection, torrent.getInfoHash(),
+                        torrent.getPieceCount(), false)) {
+                    // one warm-up piece so class loading and JIT work aren't counted
+                    session.downloadPiece(0, pieceLength, 16);
+                    long before = receiveAllocatedBytes(threads);
+                    for (int i = 0; i < numPieces; i++) {
+                        session.downloadPiece(i, pieceLength, 16);
+                    }
+                    long allocated = receiveAllocatedBytes(threads) - before;
+                    results.add(String.format("%-22s %8d bytes/block, of which the piece buffer is %d",
+                            mode, allocated / blocks, pieceLength / (pieceLength / TorrentDownloader.BLOCK_SIZE)));
+                }
+            }
+        }
+        System.out.println("Allocation per 16 KiB block on the downloading and NIO threads, " + blocks + " blocks");
+        results.forEach(System.out::println);
+    }
+
+    // the downloading thread plus the NIO engine's selector threads, which decode frames for it
+    private static long receiveAllocatedBytes(com.sun.management.ThreadMXBean threads) {
+        long total = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("nio-peer-io-")) {
+                total += threads.getThreadAllocatedBytes(thread.getId());
+            }
+        }
+        return total;
+    }
+
+    // hides waitForMessage(BlockTarget) so blocks go through the default whole-frame copy
+    private static PeerConnection frameCopying(PeerConnection connection) {
+        return new PeerConnection() {
+            @Override
+            public byte[] waitForHandshakeResponse() {
+                return connection.waitForHandshakeResponse();
+            }
+
+            @Override
+            public byte[] waitForMessage() {
+                return connection.waitForMessage();
+            }
+
+            @Override
+            public void sendMessage(byte[] message) {
+                connection.sendMessage(message);
+            }
+
+            @Override
+            public void sendMessage(byte messageId, byte[] payload) throws java.io.IOException {
+                connection.sendMessage(messageId, payload);
+            }
+
+            @Override
+            public void close() throws java.io.IOException {
+                connection.close();
+            }
+        };
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // a single-file .torrent with random piece hashes, bencoded by hand so the hashes can be any size
+    private static byte[] syntheticTorrentFile(int numPieces) throws java.io.IOException {
+        int pieceLength = 256 * 1024;
+        byte[] pieceHashes = Utils.getRandomBytes(numPieces * Torrent.HASH_LENGTH);
+        java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream(pieceHashes.length + 256);
+        String announce = "http://127.0.0.1/announce";
+        out.write(("d8:announce" + announce.length() + ":" + announce + "4:infod"
+                + "6:lengthi" + (long) numPieces * pieceLength + "e"
+                + "4:name5:bench"
+                + "12:piece lengthi" + pieceLength + "e"
+                + "6:pieces" + pieceHashes.length + ":").getBytes(java.nio.charset.StandardCharsets.US_ASCII));
+        out.write(pieceHashes);
+        out.write("ee".getBytes(java.nio.charset.StandardCharsets.US_ASCII));
+        return out.toByteArray();
+    }
+
+    // samples thread counts and heap use in the background while a benchmark runs
+    private static class ResourceSampler {
+        private final Thread thread;
+        private volatile boolean running = true;
+        private volatile int peakWorkerThreads;
+        private volatile int peakThreads;
+        private volatile long peakHeapBytes;
+
+        ResourceSampler() throws InterruptedException {
+            // let the previous run's pool threads exit so they aren't counted again
+            for (int i = 0; i < 100 && workerThreadCount() > 0; i++) {
+                Thread.sleep(20);
+            }
+            System.gc();
+            thread = new Thread(() -> {
+                java.lang.management.MemoryMXBean memory = java.lang.management.ManagementFactory.getMemoryMXBean();
+                while (running) {
+                    peakWorkerThreads = Math.max(peakWorkerThreads, workerThreadCount());
+                    peakThreads = Math.max(peakThreads, java.lang.management.ManagementFactory.getThreadMXBean().getThreadCount());
+                    peakHeapBytes = Math.max(peakHeapBytes, memory.getHeapMemoryUsage().getUsed());
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }, "resource-sampler");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private static int workerThreadCount() {
+            return (int) Thread.getAllStackTraces().keySet().stream()
+                    .filter(t -> t.getName().startsWith("peer-worker-")).count();
+        }
+
+        void stop() throws InterruptedException {
+            running = false;
+            thread.join();
+        }
+    }
+
+    static Torrent syntheticTorrent(byte[] content, int pieceLength) {
+        int numPieces = (content.length + pieceLength - 1) / pieceLength;
+        byte[] pieceHashes = new byte[numPieces * Torrent.HASH_LENGTH];
+        for (int i = 0; i < numPieces; i++) {
+            byte[] hash = Utils.sha1(Arrays.copyOfRange(content, i * pieceLength, Math.min(content.length, (i + 1) * pieceLength)));
+            System.arraycopy(hash, 0, pieceHashes, i * Torrent.HASH_LENGTH, Torrent.HASH_LENGTH);
+        }
+        return new Torrent.Builder()
+                .setTrackerURL("http://127.0.0.1/announce")
+                .setLength(content.length)
+                .setInfoHash(Utils.byteToHexString(Utils.getRandomBytes(20)))
+                .setPieceLength(pieceLength)
+                .setPieceHashes(pieceHashes)
+                .build();
+    }
+}
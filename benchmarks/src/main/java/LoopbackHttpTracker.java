@@ -0,0 +1,89 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// a fake HTTP tracker on 127.0.0.1 that answers every announce with a fixed compact peer list, used to
+// run downloads end to end without a real tracker
+public class LoopbackHttpTracker implements Closeable {
+
+    private final HttpServer server;
+    // the default executor runs on a non-daemon thread that would keep the JVM alive
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "loopback-http-tracker");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicInteger announces = new AtomicInteger();
+
+    private LoopbackHttpTracker(Builder builder) throws IOException {
+        byte[] response = announceResponse(builder.peers, builder.interval);
+        // otherwise Nagle's algorithm on the fake tracker adds a delayed-ACK stall to every response
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/announce", exchange -> {
+            announces.incrementAndGet();
+            exchange.sendResponseHeaders(200, response.length);
+            exchange.getResponseBody().write(response);
+            exchange.close();
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    private static byte[] announceResponse(List<String> peers, int interval) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.writeBytes(("d8:intervali" + interval + "e5:peers" + 6 * peers.size() + ":").getBytes(StandardCharsets.US_ASCII));
+        for (String peer : peers) {
+            for (String octet : peer.split(":")[0].split("\\.")) {
+                body.write(Integer.parseInt(octet));
+            }
+            int port = Integer.parseInt(peer.split(":")[1]);
+            body.write(port >> 8);
+            body.write(port);
+        }
+        body.write('e');
+        return body.toByteArray();
+    }
+
+    public String getURL() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/announce";
+    }
+
+    public int getAnnounces() {
+        return announces.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public static class Builder {
+        private List<String> peers = List.of();
+        private int interval = 1800;
+
+        public Builder setPeers(List<String> peers) {
+            this.peers = peers;
+            return this;
+        }
+
+        public Builder setInterval(int interval) {
+            this.interval = interval;
+            return this;
+        }
+
+        public LoopbackHttpTracker build() throws IOException {
+            return new LoopbackHttpTracker(this);
+        }
+    }
+}
@@ -0,0 +1,341 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// a fake seeder on 127.0.0.1 that serves synthetic content, used to benchmark the client without real peers
+public class LoopbackPeer implements Closeable {
+
+    // the ID we ask clients to use for ut_metadata, deliberately not one a client picks for itself
+    private static final int OWN_METADATA_ID = 3;
+    private static final int OWN_PEX_ID = 4;
+
+    private final byte[] infoHash;
+    private final byte[] content;
+    private final int pieceLength;
+    private final long latencyMillis;
+    // upload rate per connection in bytes per second, 0 for unlimited
+    private final long bandwidth;
+    // the reqq announced in the extension handshake, 0 to leave it out
+    private final int requestQueue;
+    // the info dict served over ut_metadata, null for a peer without the extension
+    private final byte[] metadata;
+    private final boolean rejectMetadata;
+    // the pieces in the bitfield, null for all of them; requests for others are ignored
+    private final BitSet pieces;
+    // pieces served with a flipped byte so they fail the hash check
+    private final BitSet corruptPieces;
+    // after every chokeEveryBlocks blocks the client is choked for chokeMillis, 0 to never choke
+    private final int chokeEveryBlocks;
+    private final long chokeMillis;
+    // the addresses sent to clients over ut_pex, null for a peer without the extension
+    private final Supplier<List<String>> pexPeers;
+    // addresses clients have told us about over ut_pex
+    private final AtomicInteger pexPeersReceived = new AtomicInteger();
+    private final ServerSocket serverSocket;
+    private final ExecutorService connectionExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "loopback-peer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private LoopbackPeer(Builder builder) throws IOException {
+        this.infoHash = builder.infoHash;
+        this.content = builder.content;
+        this.pieceLength = builder.pieceLength;
+        this.latencyMillis = builder.latencyMillis;
+        this.bandwidth = builder.bandwidth;
+        this.requestQueue = builder.requestQueue;
+        this.metadata = builder.metadata;
+        this.rejectMetadata = builder.rejectMetadata;
+        this.pieces = builder.pieces;
+        this.corruptPieces = builder.corruptPieces;
+        this.chokeEveryBlocks = builder.chokeEveryBlocks;
+        this.chokeMillis = builder.chokeMillis;
+        this.pexPeers = builder.pexPeers;
+        // a deep backlog so benchmarks can dial thousands of simulated peers at once
+        this.serverSocket = new ServerSocket(0, 4096, InetAddress.getLoopbackAddress());
+        connectionExecutor.submit(this::acceptLoop);
+    }
+
+    public static byte[] syntheticContent(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) (i * 31 + (i >>> 13));
+        }
+        return content;
+    }
+
+    public String getAddress() {
+        return "127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    public int getPexPeersReceived() {
+        return pexPeersReceived.get();
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                connectionExecutor.submit(() -> serve(socket));
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        // all writes go through one scheduler thread so delayed replies never interleave
+        ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+        try (socket) {
+            TCPService tcpService = new TCPService(socket);
+            byte[] handshake = tcpService.waitForHandshakeResponse();
+            if (!Arrays.equals(Arrays.copyOfRange(handshake, 28, 48), infoHash)) {
+                return;
+            }
+            byte[] response = handshake.clone();
+            Arrays.fill(response, 48, 68, (byte) 'L');
+            writer.submit(() -> tcpService.sendMessage(response));
+            writer.submit(() -> sendMessage(tcpService, TorrentDownloader.BITFIELD_MESSAGE_ID, bitfield()));
+            // the client's ID for ut_metadata, learnt from its extension handshake
+            long[] clientMetadataId = {-1};
+            // when the simulated uplink is free again, blocks queue behind each other at the bandwidth
+            long[] linkFreeNanos = {0};
+            // requests queued before a choke are dropped like a real peer does, by bumping the epoch
+            AtomicBoolean choked = new AtomicBoolean();
+            AtomicInteger chokeEpoch = new AtomicInteger();
+            int[] blocksServed = {0};
+            while (true) {
+                byte[] message = tcpService.waitForMessage();
+                if (message.length == 0) {
+                    continue;
+                }
+                if (message[0] == TorrentDownloader.INTERESTED_MESSAGE_ID) {
+                    writer.submit(() -> sendMessage(tcpService, TorrentDownloader.UNCHOKE_MESSAGE_ID, new byte[0]));
+                } else if (message[0] == TorrentDownloader.REQUEST_MESSAGE_ID) {
+                    ByteBuffer request = ByteBuffer.wrap(message, 1, 12);
+                    int index = request.getInt();
+                    int begin = request.getInt();
+                    int length = request.getInt();
+                    if (choked.get() || (pieces != null && !pieces.get(index))) {
+                        continue;
+                    }
+                    int epoch = chokeEpoch.get();
+                    long delayNanos = TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+                    if (bandwidth > 0) {
+                        long now = System.nanoTime();
+                        linkFreeNanos[0] = Math.max(now, linkFreeNanos[0]) + length * 1_000_000_000L / bandwidth;
+                        delayNanos += linkFreeNanos[0] - now;
+                    }
+                    writer.schedule(() -> {
+                        if (epoch != chokeEpoch.get()) {
+                            return;
+                        }
+                        sendMessage(tcpService, TorrentDownloader.PIECE_MESSAGE_ID, block(index, begin, length));
+                        if (chokeEveryBlocks > 0 && ++blocksServed[0] % chokeEveryBlocks == 0) {
+                            choked.set(true);
+                            chokeEpoch.incrementAndGet();
+                            sendMessage(tcpService, TorrentDownloader.CHOKE_MESSAGE_ID, new byte[0]);
+                            writer.schedule(() -> {
+                                choked.set(false);
+                                sendMessage(tcpService, TorrentDownloader.UNCHOKE_MESSAGE_ID, new byte[0]);
+                            }, chokeMillis, TimeUnit.MILLISECONDS);
+                        }
+                    }, delayNanos, TimeUnit.NANOSECONDS);
+                } else if (message[0] == TorrentDownloader.EXTENSION_MESSAGE_ID
+                        && (metadata != null || requestQueue > 0 || pexPeers != null)) {
+                    BencodeReader.Dict dict = BencodeReader.readDict(message, 2, message.length);
+                    if (message[1] == 0) {
+                        BencodeReader.Dict m = dict.getDict("m");
+                        clientMetadataId[0] = m.containsKey("ut_metadata") ? m.getLong("ut_metadata") : -1;
+                        long clientPexId = m.containsKey("ut_pex") ? m.getLong("ut_pex") : -1;
+                        writer.submit(() -> sendMessage(tcpService, TorrentDownloader.EXTENSION_MESSAGE_ID, extensionHandshake()));
+                        if (pexPeers != null && clientPexId > 0) {
+                            List<String> others = new ArrayList<>(pexPeers.get());
+                            others.remove(getAddress());
+                            byte[] pex = PeerExchange.createMessage(clientPexId, others, List.of());
+                            writer.submit(() -> sendMessage(tcpService, TorrentDownloader.EXTENSION_MESSAGE_ID, pex));
+                        }
+                    } else if (message[1] == OWN_PEX_ID && pexPeers != null && dict.isString("added")) {
+                        pexPeersReceived.addAndGet(dict.getBytes("added").remaining() / 6);
+                    } else if (message[1] == OWN_METADATA_ID && metadata != null && dict.getLong("msg_type") == 0
+                            && clientMetadataId[0] > 0) {
+                        int piece = (int) dict.getLong("piece");
+                        writer.schedule(() -> sendMessage(tcpService, TorrentDownloader.EXTENSION_MESSAGE_ID,
+                                metadataReply(clientMetadataId[0], piece)), latencyMillis, TimeUnit.MILLISECONDS);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            // the client hung up
+        } finally {
+            writer.shutdownNow();
+        }
+    }
+
+    private byte[] extensionHandshake() {
+        String dict = "d1:md" + (metadata != null ? "11:ut_metadatai" + OWN_METADATA_ID + "e" : "")
+                + (pexPeers != null ? "6:ut_pexi" + OWN_PEX_ID + "e" : "") + "e"
+                + (metadata != null ? "13:metadata_sizei" + metadata.length + "e" : "")
+                + (requestQueue > 0 ? "4:reqqi" + requestQueue + "e" : "") + "e";
+        byte[] dictBytes = dict.getBytes(StandardCharsets.ISO_8859_1);
+        return ByteBuffer.allocate(1 + dictBytes.length).put((byte) 0).put(dictBytes).array();
+    }
+
+    // a data message with the requested piece, or a reject
+    private byte[] metadataReply(long clientMetadataId, int piece) {
+        int offset = piece * MetadataFetcher.METADATA_PIECE_SIZE;
+        boolean reject = rejectMetadata || piece < 0 || offset >= metadata.length;
+        String header = reject ? "d8:msg_typei2e5:piecei" + piece + "ee"
+                : "d8:msg_typei1e5:piecei" + piece + "e10:total_sizei" + metadata.length + "ee";
+        byte[] headerBytes = header.getBytes(StandardCharsets.ISO_8859_1);
+        int length = reject ? 0 : Math.min(MetadataFetcher.METADATA_PIECE_SIZE, metadata.length - offset);
+        ByteBuffer payload = ByteBuffer.allocate(1 + headerBytes.length + length);
+        payload.put((byte) clientMetadataId).put(headerBytes);
+        if (!reject) {
+            payload.put(metadata, offset, length);
+        }
+        return payload.array();
+    }
+
+    private byte[] bitfield() {
+        int numPieces = (content.length + pieceLength - 1) / pieceLength;
+        byte[] bitfield = new byte[(numPieces + 7) / 8];
+        for (int i = 0; i < numPieces; i++) {
+            if (pieces == null || pieces.get(i)) {
+                bitfield[i / 8] |= (byte) (0x80 >>> (i % 8));
+            }
+        }
+        return bitfield;
+    }
+
+    private byte[] block(int index, int begin, int length) {
+        ByteBuffer payload = ByteBuffer.allocate(8 + length);
+        payload.putInt(index);
+        payload.putInt(begin);
+        payload.put(content, index * pieceLength + begin, length);
+        if (corruptPieces.get(index) && begin == 0) {
+            payload.array()[8] ^= 0x5a;
+        }
+        return payload.array();
+    }
+
+    private static void sendMessage(TCPService tcpService, byte messageId, byte[] payload) {
+        try {
+            tcpService.sendMessage(messageId, payload);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        connectionExecutor.shutdownNow();
+    }
+
+    public static class Builder {
+        private byte[] infoHash;
+        private byte[] content;
+        private int pieceLength;
+        private long latencyMillis;
+        private long bandwidth;
+        private int requestQueue;
+        private byte[] metadata;
+        private boolean rejectMetadata;
+        private BitSet pieces;
+        private BitSet corruptPieces = new BitSet();
+        private int chokeEveryBlocks;
+        private long chokeMillis;
+        private Supplier<List<String>> pexPeers;
+
+        public Builder setInfoHash(byte[] infoHash) {
+            this.infoHash = infoHash;
+            return this;
+        }
+
+        public Builder setContent(byte[] content) {
+            this.content = content;
+            return this;
+        }
+
+        public Builder setPieceLength(int pieceLength) {
+            this.pieceLength = pieceLength;
+            return this;
+        }
+
+        public Builder setLatencyMillis(long latencyMillis) {
+            this.latencyMillis = latencyMillis;
+            return this;
+        }
+
+        public Builder setBandwidth(long bytesPerSecond) {
+            this.bandwidth = bytesPerSecond;
+            return this;
+        }
+
+        // announced as reqq to clients that negotiate extensions, not enforced
+        public Builder setRequestQueue(int requestQueue) {
+            this.requestQueue = requestQueue;
+            return this;
+        }
+
+        // serves this info dict over ut_metadata to clients that negotiate extensions
+        public Builder setMetadata(byte[] metadata) {
+            this.metadata = metadata;
+            return this;
+        }
+
+        // answers every metadata request with a reject
+        public Builder setRejectMetadata(boolean rejectMetadata) {
+            this.rejectMetadata = rejectMetadata;
+            return this;
+        }
+
+        // advertises and serves only these pieces instead of the whole content
+        public Builder setPieces(BitSet pieces) {
+            this.pieces = pieces;
+            return this;
+        }
+
+        // these pieces are served with their first byte altered
+        public Builder setCorruptPieces(BitSet corruptPieces) {
+            this.corruptPieces = corruptPieces;
+            return this;
+        }
+
+        // chokes the client after every `everyBlocks` blocks, dropping its queued requests, and
+        // unchokes it again chokeMillis later
+        public Builder setChoking(int everyBlocks, long chokeMillis) {
+            this.chokeEveryBlocks = everyBlocks;
+            this.chokeMillis = chokeMillis;
+            return this;
+        }
+
+        // tells clients that negotiate ut_pex about these addresses, asked for on every connection so
+        // they can be peers that are only built later
+        public Builder setPexPeers(Supplier<List<String>> pexPeers) {
+            this.pexPeers = pexPeers;
+            return this;
+        }
+
+        public LoopbackPeer build() throws IOException {
+            return new LoopbackPeer(this);
+        }
+    }
+}
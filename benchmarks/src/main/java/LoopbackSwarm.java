@@ -0,0 +1,154 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+// a whole swarm on loopback: a fake HTTP tracker that hands out N LoopbackPeer seeders, plus a .torrent
+// file and a magnet link pointing at it, so `download` and `magnet_download` can run end to end offline.
+// Every seeder serves the same synthetic content and its info dict over ut_metadata and tells clients
+// about the other seeders over ut_pex; how each one misbehaves is up to the options it was added with.
+public class LoopbackSwarm implements Closeable {
+
+    private final byte[] content;
+    private final String infoHash;
+    private final List<LoopbackPeer> seeders = new ArrayList<>();
+    private final LoopbackHttpTracker tracker;
+    private final Path directory;
+    private final Path torrentFile;
+    private int downloads;
+
+    private LoopbackSwarm(Builder builder) throws IOException {
+        this.content = LoopbackPeer.syntheticContent(builder.contentLength);
+        byte[] info = infoDict(content, builder.pieceLength);
+        this.infoHash = Utils.byteToHexString(Utils.sha1(info));
+        try {
+            List<String> addresses = new ArrayList<>();
+            for (Consumer<LoopbackPeer.Builder> options : builder.seeders) {
+                LoopbackPeer.Builder seeder = new LoopbackPeer.Builder()
+                        .setInfoHash(Utils.hexStringToByteArray(infoHash))
+                        .setContent(content)
+                        .setPieceLength(builder.pieceLength)
+                        .setMetadata(info)
+                        .setPexPeers(() -> addresses);
+                options.accept(seeder);
+                seeders.add(seeder.build());
+            }
+            for (LoopbackPeer seeder : seeders) {
+                addresses.add(seeder.getAddress());
+            }
+            int trackerPeers = Math.min(builder.trackerPeers, addresses.size());
+            this.tracker = new LoopbackHttpTracker.Builder().setPeers(addresses.subList(0, trackerPeers)).build();
+        } catch (IOException | RuntimeException e) {
+            closeSeeders();
+            throw e;
+        }
+        this.directory = Files.createTempDirectory("loopback-swarm");
+        this.torrentFile = directory.resolve("swarm.torrent");
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        String announce = tracker.getURL();
+        file.writeBytes(("d8:announce" + announce.length() + ":" + announce + "4:info").getBytes(StandardCharsets.US_ASCII));
+        file.writeBytes(info);
+        file.write('e');
+        Files.write(torrentFile, file.toByteArray());
+    }
+
+    // a single-file info dict with the content's real piece hashes
+    private static byte[] infoDict(byte[] content, int pieceLength) {
+        int numPieces = (content.length + pieceLength - 1) / pieceLength;
+        ByteArrayOutputStream dict = new ByteArrayOutputStream();
+        dict.writeBytes(("d6:lengthi" + content.length + "e4:name9:swarm.bin12:piece lengthi" + pieceLength
+                + "e6:pieces" + numPieces * Torrent.HASH_LENGTH + ":").getBytes(StandardCharsets.US_ASCII));
+        for (int i = 0; i < numPieces; i++) {
+            dict.writeBytes(Utils.sha1(content, i * pieceLength, Math.min(pieceLength, content.length - i * pieceLength)));
+        }
+        dict.write('e');
+        return dict.toByteArray();
+    }
+
+    public byte[] getContent() {
+        return content;
+    }
+
+    public String getTorrentFile() {
+        return torrentFile.toString();
+    }
+
+    public String getMagnetLink() {
+        return "magnet:?xt=urn:btih:" + infoHash + "&dn=swarm.bin&tr=" + URLEncoder.encode(tracker.getURL(), StandardCharsets.UTF_8);
+    }
+
+    // a fresh path in the swarm's directory for a download to write to
+    public String newOutputPath() {
+        return directory.resolve("download-" + ++downloads + ".bin").toString();
+    }
+
+    public int getAnnounces() {
+        return tracker.getAnnounces();
+    }
+
+    // addresses the downloads have told the seeders about over ut_pex
+    public int getPexPeersReceived() {
+        int received = 0;
+        for (LoopbackPeer seeder : seeders) {
+            received += seeder.getPexPeersReceived();
+        }
+        return received;
+    }
+
+    private void closeSeeders() throws IOException {
+        for (LoopbackPeer seeder : seeders) {
+            seeder.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        tracker.close();
+        closeSeeders();
+        try (var files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    public static class Builder {
+        private int contentLength = 16 * 1024 * 1024;
+        private int pieceLength = 256 * 1024;
+        private final List<Consumer<LoopbackPeer.Builder>> seeders = new ArrayList<>();
+        private int trackerPeers = Integer.MAX_VALUE;
+
+        public Builder setContentLength(int contentLength) {
+            this.contentLength = contentLength;
+            return this;
+        }
+
+        public Builder setPieceLength(int pieceLength) {
+            this.pieceLength = pieceLength;
+            return this;
+        }
+
+        // a seeder with the shared content and metadata, configured further by `options`
+        public Builder addSeeder(Consumer<LoopbackPeer.Builder> options) {
+            seeders.add(options);
+            return this;
+        }
+
+        // the tracker hands out only the first `count` seeders, the rest can only be found over ut_pex
+        public Builder setTrackerPeers(int count) {
+            this.trackerPeers = count;
+            return this;
+        }
+
+        public LoopbackSwarm build() throws IOException {
+            return new LoopbackSwarm(this);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// a fake BEP 15 tracker on 127.0.0.1 that hands out a fixed peer list, used to exercise the UDP
+// tracker client without a real tracker. It can drop packets to force retransmissions, and it only
+// accepts announces that carry a connection ID it issued.
+public class LoopbackUdpTracker implements Closeable {
+
+    private final List<String> peers;
+    private final int interval;
+    private final String errorMessage;
+    private final AtomicInteger packetsToDrop;
+    private final DatagramSocket socket;
+    private final Set<Long> connectionIds = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger connects = new AtomicInteger();
+    private final AtomicInteger announces = new AtomicInteger();
+    private volatile int lastEvent = -1;
+    private volatile long lastLeft = -1;
+
+    private LoopbackUdpTracker(Builder builder) throws IOException {
+        this.peers = builder.peers;
+        this.interval = builder.interval;
+        this.errorMessage = builder.errorMessage;
+        this.packetsToDrop = new AtomicInteger(builder.packetsToDrop);
+        this.socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        Thread thread = new Thread(this::serve, "loopback-udp-tracker");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public String getURL() {
+        return "udp://127.0.0.1:" + socket.getLocalPort() + "/announce";
+    }
+
+    public int getConnects() {
+        return connects.get();
+    }
+
+    public int getAnnounces() {
+        return announces.get();
+    }
+
+    // BEP 15 event code of the last announce, -1 before the first
+    public int getLastEvent() {
+        return lastEvent;
+    }
+
+    public long getLastLeft() {
+        return lastLeft;
+    }
+
+    // what a restart does: every connection ID handed out so far is rejected from now on
+    public void forgetConnectionIds() {
+        connectionIds.clear();
+    }
+
+    private void serve() {
+        byte[] buffer = new byte[2048];
+        while (!socket.isClosed()) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                if (packetsToDrop.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+                    continue;
+                }
+                byte[] response = handle(ByteBuffer.wrap(buffer, 0, packet.getLength()));
+                if (response != null) {
+                    send(response, packet.getSocketAddress());
+                }
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private byte[] handle(ByteBuffer request) {
+        if (request.remaining() < 16) {
+            return null;
+        }
+        long connectionId = request.getLong();
+        int action = request.getInt();
+        int transactionId = request.getInt();
+        if (action == 0) {
+            connects.incrementAndGet();
+            long id = ThreadLocalRandom.current().nextLong();
+            connectionIds.add(id);
+            return ByteBuffer.allocate(16).putInt(0).putInt(transactionId).putLong(id).array();
+        }
+        if (action != 1 || request.remaining() < 82) {
+            return null;
+        }
+        if (!connectionIds.contains(connectionId)) {
+            return error(transactionId, "Invalid connection ID");
+        }
+        if (errorMessage != null) {
+            return error(transactionId, errorMessage);
+        }
+        announces.incrementAndGet();
+        // info hash and peer id, then downloaded, left, uploaded, event
+        request.position(request.position() + 40 + 8);
+        lastLeft = request.getLong();
+        request.getLong();
+        lastEvent = request.getInt();
+        ByteBuffer response = ByteBuffer.allocate(20 + 6 * peers.size());
+        response.putInt(1).putInt(transactionId).putInt(interval).putInt(0).putInt(peers.size());
+        for (String peer : peers) {
+            for (String octet : peer.split(":")[0].split("\\.")) {
+                response.put((byte) Integer.parseInt(octet));
+            }
+            response.putShort((short) Integer.parseInt(peer.split(":")[1]));
+        }
+        return response.array();
+    }
+
+    private static byte[] error(int transactionId, String message) {
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(8 + text.length).putInt(3).putInt(transactionId).put(text).array();
+    }
+
+    private void send(byte[] response, SocketAddress address) throws IOException {
+        socket.send(new DatagramPacket(response, response.length, address));
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+
+    public static class Builder {
+        private List<String> peers = List.of();
+        private int interval = 1800;
+        private String errorMessage;
+        private int packetsToDrop;
+
+        public Builder setPeers(List<String> peers) {
+            this.peers = peers;
+            return this;
+        }
+
+        public Builder setInterval(int interval) {
+            this.interval = interval;
+            return this;
+        }
+
+        // every announce is answered with this error
+        public Builder setErrorMessage(String errorMessage) {
+            this.errorMessage = errorMessage;
+            return this;
+        }
+
+        // the first n packets that arrive are ignored
+        public Builder setPacketsToDrop(int packetsToDrop) {
+            this.packetsToDrop = packetsToDrop;
+            return this;
+        }
+
+        public LoopbackUdpTracker build() throws IOException {
+            return new LoopbackUdpTracker(this);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// a whole piece through PeerSession: handshake, bitfield and unchoke, then every block read straight
+// into the piece buffer, with the peer's side replayed from memory
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AssemblyBenchmark {
+
+    @Param({"262144", "1048576"})
+    public int pieceLength;
+
+    @Param({"5", "32"})
+    public int window;
+
+    private String infoHash;
+    private byte[] stream;
+    private final OutputStream discard = OutputStream.nullOutputStream();
+
+    @Setup
+    public void setup() throws Throwable {
+        byte[] infoHashBytes = TestData.randomBytes(20, 1);
+        infoHash = (String) Client.BYTE_TO_HEX.invokeExact(infoHashBytes);
+        stream = TestData.peerStream(infoHashBytes, TestData.randomBytes(pieceLength, pieceLength), 1);
+    }
+
+    @Benchmark
+    public byte[] downloadPiece() throws Throwable {
+        InputStream in = new ByteArrayInputStream(stream);
+        Object connection = (Object) Client.NEW_CONNECTION.invokeExact(in, discard);
+        Object session = (Object) Client.OPEN_SESSION.invokeExact("127.0.0.1:6881", connection, infoHash, false);
+        return (byte[]) Client.DOWNLOAD_PIECE.invokeExact(session, 0, pieceLength, window);
+    }
+}
@@ -0,0 +1,83 @@
+package benchmarks;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+// the client's classes live in the default package, which code in a named package (and JMH needs
+// one) can't refer to. The benchmarks reach them through method handles instead; held in static
+// finals and called with invokeExact they are inlined like direct calls. Client types are erased to
+// Object in the handles' signatures.
+final class Client {
+
+    static final MethodHandle DECODE_BENCODE = method("Codec", "decodeBencodedBytes", true, Object.class, byte[].class);
+    static final MethodHandle TORRENT_FROM_BYTES = method("Torrent", "fromBytes", true, "Torrent", byte[].class);
+    static final MethodHandle BYTE_TO_HEX = method("Utils", "byteToHexString", true, String.class, byte[].class);
+    static final MethodHandle HEX_TO_BYTES = method("Utils", "hexStringToByteArray", true, byte[].class, String.class);
+    static final MethodHandle CALCULATE_SHA1 = method("Utils", "calculateSHA1", true, String.class, byte[].class);
+    static final MethodHandle SHA1 = method("Utils", "sha1", true, byte[].class, byte[].class);
+    static final MethodHandle NEW_CONNECTION = constructor("TCPService", InputStream.class, OutputStream.class);
+    static final MethodHandle WAIT_FOR_MESSAGE = method("TCPService", "waitForMessage", false, byte[].class);
+    static final MethodHandle SEND_MESSAGE = method("TCPService", "sendMessage", false, void.class, byte.class, byte[].class);
+    static final MethodHandle OPEN_SESSION = method("PeerSession", "open", true, "PeerSession",
+            String.class, "PeerConnection", String.class, boolean.class);
+    static final MethodHandle DOWNLOAD_PIECE = method("PeerSession", "downloadPiece", false, byte[].class,
+            int.class, int.class, int.class);
+
+    private Client() {
+    }
+
+    // types are Class objects, or the simple name of a client class
+    private static MethodHandle method(String owner, String name, boolean isStatic, Object returnType, Object... parameterTypes) {
+        try {
+            Class<?> ownerClass = Class.forName(owner);
+            MethodType type = MethodType.methodType(type(returnType), types(parameterTypes));
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            MethodHandle handle = isStatic ? lookup.findStatic(ownerClass, name, type) : lookup.findVirtual(ownerClass, name, type);
+            return erase(handle);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle constructor(String owner, Object... parameterTypes) {
+        try {
+            Class<?> ownerClass = Class.forName(owner);
+            MethodType type = MethodType.methodType(void.class, types(parameterTypes));
+            return erase(MethodHandles.publicLookup().findConstructor(ownerClass, type));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static Class<?> type(Object type) throws ClassNotFoundException {
+        return type instanceof Class ? (Class<?>) type : Class.forName((String) type);
+    }
+
+    private static Class<?>[] types(Object[] types) throws ClassNotFoundException {
+        Class<?>[] classes = new Class<?>[types.length];
+        for (int i = 0; i < types.length; i++) {
+            classes[i] = type(types[i]);
+        }
+        return classes;
+    }
+
+    private static MethodHandle erase(MethodHandle handle) {
+        MethodType type = handle.type();
+        for (int i = 0; i < type.parameterCount(); i++) {
+            if (isClientClass(type.parameterType(i))) {
+                type = type.changeParameterType(i, Object.class);
+            }
+        }
+        if (isClientClass(type.returnType())) {
+            type = type.changeReturnType(Object.class);
+        }
+        return handle.asType(type);
+    }
+
+    private static boolean isClientClass(Class<?> type) {
+        return !type.isPrimitive() && !type.isArray() && type.getPackageName().isEmpty();
+    }
+}
@@ -0,0 +1,45 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// decoding a .torrent with the generic decoder and loading it with Torrent.fromBytes, for a torrent
+// the size of the sample one and for a huge one
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CodecBenchmark {
+
+    @Param({"16", "100000"})
+    public int pieces;
+
+    private byte[] torrentFile;
+
+    @Setup
+    public void setup() {
+        torrentFile = TestData.torrentFile(pieces);
+    }
+
+    @Benchmark
+    public Object decodeBencodedBytes() throws Throwable {
+        return (Object) Client.DECODE_BENCODE.invokeExact(torrentFile);
+    }
+
+    @Benchmark
+    public Object torrentFromBytes() throws Throwable {
+        return (Object) Client.TORRENT_FROM_BYTES.invokeExact(torrentFile);
+    }
+}
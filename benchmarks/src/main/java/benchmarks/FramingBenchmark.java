@@ -0,0 +1,68 @@
+package benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// TCPService framing over in-memory streams: reading a mix of 16 KiB PIECE and HAVE messages, and
+// writing REQUESTs. Scores are per message.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FramingBenchmark {
+
+    private static final int MESSAGES = 128;
+
+    private byte[] stream;
+    private byte[] requestPayload;
+    private final OutputStream discard = OutputStream.nullOutputStream();
+
+    @Setup
+    public void setup() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] block = TestData.randomBytes(8 + TestData.BLOCK_SIZE, 7);
+        for (int i = 0; i < MESSAGES / 2; i++) {
+            TestData.frame(out, TestData.PIECE, block);
+            TestData.frame(out, TestData.HAVE, ByteBuffer.allocate(4).putInt(i).array());
+        }
+        stream = out.toByteArray();
+        requestPayload = ByteBuffer.allocate(12).putInt(1).putInt(0).putInt(TestData.BLOCK_SIZE).array();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void readMessages(Blackhole blackhole) throws Throwable {
+        InputStream in = new ByteArrayInputStream(stream);
+        Object connection = (Object) Client.NEW_CONNECTION.invokeExact(in, discard);
+        for (int i = 0; i < MESSAGES; i++) {
+            blackhole.consume((byte[]) Client.WAIT_FOR_MESSAGE.invokeExact(connection));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void sendRequests() throws Throwable {
+        Object connection = (Object) Client.NEW_CONNECTION.invokeExact((InputStream) InputStream.nullInputStream(), discard);
+        for (int i = 0; i < MESSAGES; i++) {
+            Client.SEND_MESSAGE.invokeExact(connection, TestData.REQUEST, requestPayload);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// hex conversion of an info hash or piece hash (20 bytes) and of a larger buffer
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HexBenchmark {
+
+    @Param({"20", "4096"})
+    public int length;
+
+    private byte[] bytes;
+    private String hex;
+
+    @Setup
+    public void setup() throws Throwable {
+        bytes = TestData.randomBytes(length, 20);
+        hex = (String) Client.BYTE_TO_HEX.invokeExact(bytes);
+    }
+
+    @Benchmark
+    public String byteToHexString() throws Throwable {
+        return (String) Client.BYTE_TO_HEX.invokeExact(bytes);
+    }
+
+    @Benchmark
+    public byte[] hexStringToByteArray() throws Throwable {
+        return (byte[]) Client.HEX_TO_BYTES.invokeExact(hex);
+    }
+}
@@ -0,0 +1,44 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// hashing one piece at common piece sizes, as a raw digest and as the hex string calculateSHA1 returns
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class Sha1Benchmark {
+
+    @Param({"16384", "262144", "1048576", "4194304"})
+    public int pieceSize;
+
+    private byte[] piece;
+
+    @Setup
+    public void setup() {
+        piece = TestData.randomBytes(pieceSize, pieceSize);
+    }
+
+    @Benchmark
+    public byte[] sha1() throws Throwable {
+        return (byte[]) Client.SHA1.invokeExact(piece);
+    }
+
+    @Benchmark
+    public String calculateSHA1() throws Throwable {
+        return (String) Client.CALCULATE_SHA1.invokeExact(piece);
+    }
+}
@@ -0,0 +1,65 @@
+package benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+// inputs built from fixed seeds, so every run measures exactly the same bytes
+final class TestData {
+
+    static final int BLOCK_SIZE = 16 * 1024;
+    static final byte PIECE = 7;
+    static final byte HAVE = 4;
+    static final byte REQUEST = 6;
+
+    private TestData() {
+    }
+
+    static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    // a single-file .torrent with numPieces 256 KiB pieces
+    static byte[] torrentFile(int numPieces) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long pieceLength = 256 * 1024;
+        write(out, "d8:announce35:http://tracker.example.com/announce4:infod6:lengthi" + numPieces * pieceLength
+                + "e4:name9:bench.bin12:piece lengthi" + pieceLength + "e6:pieces" + numPieces * 20 + ":");
+        out.writeBytes(randomBytes(numPieces * 20, numPieces));
+        write(out, "ee");
+        return out.toByteArray();
+    }
+
+    static void write(ByteArrayOutputStream out, String text) {
+        out.writeBytes(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    static void frame(ByteArrayOutputStream out, byte id, byte[] payload) {
+        out.writeBytes(ByteBuffer.allocate(5).putInt(1 + payload.length).put(id).array());
+        out.writeBytes(payload);
+    }
+
+    // what a seeder sends for one piece after the handshake: bitfield, unchoke, then every block in order
+    static byte[] peerStream(byte[] infoHash, byte[] piece, int numPieces) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(19);
+        write(out, "BitTorrent protocol");
+        out.writeBytes(new byte[8]);
+        out.writeBytes(infoHash);
+        write(out, "-JM0001-000000000000");
+        byte[] bitfield = new byte[(numPieces + 7) / 8];
+        java.util.Arrays.fill(bitfield, (byte) 0xff);
+        frame(out, (byte) 5, bitfield);
+        frame(out, (byte) 1, new byte[0]);
+        for (int begin = 0; begin < piece.length; begin += BLOCK_SIZE) {
+            int length = Math.min(BLOCK_SIZE, piece.length - begin);
+            ByteBuffer block = ByteBuffer.allocate(8 + length).putInt(0).putInt(begin);
+            block.put(piece, begin, length);
+            frame(out, PIECE, block.array());
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,211 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// keeps one torrent announced to every tier of its announce-list. Tiers are announced to in parallel;
+// within a tier trackers are tried in order and the first one that answers is moved to the front
+// (BEP 12). Each tier then re-announces on its own schedule, the tracker's interval but never sooner
+// than its min interval, backing off while every tracker in the tier is failing. Peers from all tiers
+// go into one PeerStore.
+public class Announcer implements Closeable {
+
+    private static final long FIRST_RETRY_SECONDS = 30;
+    private static final long MAX_RETRY_SECONDS = 1800;
+    // a tracker that asks for announces more often than this, or sends 0 or a negative interval, gets
+    // them this often; requestPeers() never goes below FIRST_RETRY_SECONDS either
+    private static final long MIN_INTERVAL_SECONDS = 60;
+    // how long close() waits for the stopped announces
+    private static final long STOP_TIMEOUT_MILLIS = 2000;
+
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+
+    private final byte[] infoHash;
+    private final int port;
+    private final PeerStore peers;
+    private final List<Tier> tiers = new ArrayList<>();
+    private final ScheduledThreadPoolExecutor scheduler;
+    private volatile TrackerClient.Progress progress;
+    private volatile boolean closed;
+
+    public Announcer(Torrent torrent, int port, PeerStore peers, TrackerClient.Progress progress) {
+        this.infoHash = Utils.hexStringToByteArray(torrent.getInfoHash());
+        this.port = port;
+        this.peers = peers;
+        this.progress = progress;
+        for (List<String> trackers : torrent.getTrackerTiers()) {
+            tiers.add(new Tier(trackers));
+        }
+        this.scheduler = new ScheduledThreadPoolExecutor(Math.max(1, tiers.size()), runnable -> {
+            Thread thread = new Thread(runnable, "tracker-announce-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    // switched once the download is set up and can report real counters
+    public void setProgress(TrackerClient.Progress progress) {
+        this.progress = progress;
+    }
+
+    // announces to every tier and returns as soon as one of them has answered, leaving the others to
+    // add their peers when they get through; false if no tracker answered at all
+    public boolean start() throws InterruptedException {
+        CompletionService<Boolean> announces = new ExecutorCompletionService<>(scheduler);
+        for (Tier tier : tiers) {
+            announces.submit(() -> announce(tier, TrackerClient.Event.STARTED));
+        }
+        for (int i = 0; i < tiers.size(); i++) {
+            try {
+                if (announces.take().get()) {
+                    return true;
+                }
+            } catch (ExecutionException e) {
+                System.out.println("Error announcing to tracker: " + e.getCause().getMessage());
+            }
+        }
+        return false;
+    }
+
+    // tells every tier the download finished, once
+    public void completed() {
+        announceAll(TrackerClient.Event.COMPLETED);
+    }
+
+    // brings forward the next announce of every tier to the earliest moment its min interval allows,
+    // for when the download is running short of peers
+    public void requestPeers() {
+        for (Tier tier : tiers) {
+            synchronized (tier) {
+                if (tier.next == null || !tier.started) {
+                    continue;
+                }
+                long earliest = tier.lastAnnounceMillis + tier.minIntervalSeconds * 1000 - System.currentTimeMillis();
+                if (tier.next.getDelay(TimeUnit.MILLISECONDS) > earliest) {
+                    schedule(tier, Math.max(0, earliest), TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    // one announce per tier in parallel, waiting a bounded time for them
+    private void announceAll(TrackerClient.Event event) {
+        List<Future<Boolean>> announces = new ArrayList<>();
+        for (Tier tier : tiers) {
+            if (tier.started) {
+                announces.add(scheduler.submit(() -> announce(tier, event)));
+            }
+        }
+        long deadline = System.currentTimeMillis() + STOP_TIMEOUT_MILLIS;
+        for (Future<Boolean> announce : announces) {
+            try {
+                announce.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                // the tracker will drop us once our interval runs out
+            }
+        }
+    }
+
+    // returns true if one of the tier's trackers answered. The requests themselves run outside the tier's
+    // lock, so requestPeers() never waits on a slow tracker.
+    private boolean announce(Tier tier, TrackerClient.Event event) throws InterruptedException {
+        List<String> trackers;
+        synchronized (tier) {
+            if (closed && event != TrackerClient.Event.STOPPED) {
+                return false;
+            }
+            if (event == TrackerClient.Event.NONE && !tier.started) {
+                event = TrackerClient.Event.STARTED;
+            }
+            tier.lastAnnounceMillis = System.currentTimeMillis();
+            trackers = List.copyOf(tier.trackers);
+        }
+        for (String trackerURL : trackers) {
+            TrackerClient.Response response;
+            try {
+                response = TrackerClient.announce(trackerURL, infoHash, port, progress, event);
+            } catch (IOException e) {
+                System.out.println("Error announcing to tracker " + trackerURL + ": " + e.getMessage());
+                continue;
+            }
+            long nextSeconds = Math.max(MIN_INTERVAL_SECONDS,
+                    Math.max(response.getInterval(), response.getMinInterval()));
+            synchronized (tier) {
+                tier.trackers.remove(trackerURL);
+                tier.trackers.add(0, trackerURL);
+                tier.failures = 0;
+                if (event == TrackerClient.Event.STOPPED) {
+                    tier.started = false;
+                    return true;
+                }
+                tier.started = true;
+                tier.minIntervalSeconds = Math.max(FIRST_RETRY_SECONDS, response.getMinInterval());
+                schedule(tier, nextSeconds, TimeUnit.SECONDS);
+            }
+            int added = peers.addAll(response.getPeers(), trackerURL);
+            if (Log.INFO) {
+                System.out.println("Tracker " + trackerURL + " returned " + response.getPeers().size() + " peers ("
+                        + added + " new), next announce in " + nextSeconds + "s");
+            }
+            return true;
+        }
+        if (event != TrackerClient.Event.STOPPED) {
+            synchronized (tier) {
+                tier.failures++;
+                schedule(tier, Math.min(MAX_RETRY_SECONDS, FIRST_RETRY_SECONDS << Math.min(tier.failures - 1, 10)),
+                        TimeUnit.SECONDS);
+            }
+        }
+        return false;
+    }
+
+    private void schedule(Tier tier, long delay, TimeUnit unit) {
+        if (closed) {
+            return;
+        }
+        if (tier.next != null) {
+            tier.next.cancel(false);
+        }
+        tier.next = scheduler.schedule(() -> announce(tier, TrackerClient.Event.NONE), delay, unit);
+    }
+
+    private static final class Tier {
+        final List<String> trackers;
+        // the rest is only touched under the tier's lock, these two are also read by close()
+        volatile boolean started;
+        volatile ScheduledFuture<?> next;
+        int failures;
+        long minIntervalSeconds;
+        long lastAnnounceMillis;
+
+        Tier(List<String> trackers) {
+            this.trackers = new ArrayList<>(trackers);
+            // BEP 12: each tier is shuffled once, after that whichever tracker answers moves to the front
+            Collections.shuffle(this.trackers);
+        }
+    }
+
+    // sends stopped to every tier we announced to
+    @Override
+    public void close() {
+        closed = true;
+        for (Tier tier : tiers) {
+            ScheduledFuture<?> next = tier.next;
+            if (next != null) {
+                next.cancel(false);
+            }
+        }
+        announceAll(TrackerClient.Event.STOPPED);
+        scheduler.shutdownNow();
+    }
+}
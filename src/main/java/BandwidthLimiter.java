@@ -0,0 +1,104 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// a download rate cap shared by the torrents of a Session: a token bucket refilled at bytesPerSecond,
+// with every torrent drawing on it through its own Share. When several shares are waiting the one that
+// has been granted the least goes first, so torrents that want more than their part split the rate
+// evenly while one that needs less leaves the rest to the others. A share that was idle, or joins late,
+// starts level with the least served share rather than at zero so it can't claim the whole rate to
+// catch up.
+public class BandwidthLimiter {
+
+    private final long bytesPerSecond;
+    private final long burstBytes;
+    private final List<Share> shares = new ArrayList<>();
+    private double tokens;
+    private long lastRefillNanos = System.nanoTime();
+
+    public BandwidthLimiter(long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("Bandwidth limit must be positive, got " + bytesPerSecond);
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        // a tenth of a second's worth, but always at least a few blocks
+        this.burstBytes = Math.max(bytesPerSecond / 10, 4L * TorrentDownloader.BLOCK_SIZE);
+        this.tokens = burstBytes;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public synchronized Share newShare() {
+        Share share = new Share();
+        share.granted = leastGranted(null);
+        shares.add(share);
+        return share;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burstBytes, tokens + (now - lastRefillNanos) * bytesPerSecond / 1e9);
+        lastRefillNanos = now;
+    }
+
+    // the least any waiting share other than `except` has been granted, 0 if none is waiting
+    private long leastGranted(Share except) {
+        long least = Long.MAX_VALUE;
+        for (Share share : shares) {
+            if (share != except && share.waiting > 0) {
+                least = Math.min(least, share.granted);
+            }
+        }
+        return least == Long.MAX_VALUE ? 0 : least;
+    }
+
+    // one torrent's claim on the limiter, used by all of its connections
+    public final class Share implements AutoCloseable {
+        private long granted;
+        private int waiting;
+
+        // blocks until `bytes` may be requested
+        public void acquire(int bytes) throws InterruptedException {
+            synchronized (BandwidthLimiter.this) {
+                if (waiting == 0) {
+                    granted = Math.max(granted, leastGranted(this));
+                }
+                waiting++;
+                try {
+                    while (true) {
+                        refill();
+                        if (tokens >= bytes && isNextInLine()) {
+                            tokens -= bytes;
+                            granted += bytes;
+                            BandwidthLimiter.this.notifyAll();
+                            return;
+                        }
+                        long waitNanos = tokens >= bytes ? 1_000_000 : (long) ((bytes - tokens) * 1e9 / bytesPerSecond);
+                        BandwidthLimiter.this.wait(Math.max(1, waitNanos / 1_000_000));
+                    }
+                } finally {
+                    waiting--;
+                }
+            }
+        }
+
+        // no other waiting share has been granted less
+        private boolean isNextInLine() {
+            for (Share share : shares) {
+                if (share != this && share.waiting > 0 && share.granted < granted) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void close() {
+            synchronized (BandwidthLimiter.this) {
+                shares.remove(this);
+                BandwidthLimiter.this.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,261 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// reads bencoded data in place: nothing is decoded until a value is asked for, lookups skip over
+// everything else without building maps or lists, and every value keeps its byte span so callers can
+// hash the original encoding instead of re-encoding a decoded copy
+public final class BencodeReader {
+
+    private BencodeReader() {
+    }
+
+    public static Dict readDict(byte[] data) {
+        return readDict(data, 0, data.length);
+    }
+
+    public static Dict readDict(byte[] data, int offset, int limit) {
+        if (offset >= limit || data[offset] != 'd') {
+            throw new RuntimeException("Expected a bencoded dictionary at offset " + offset);
+        }
+        return new Dict(data, offset, skip(data, offset, limit));
+    }
+
+    // returns the offset just past the value starting at offset. Every step must move forward and stay
+    // within limit, so hostile input fails instead of looping.
+    public static int skip(byte[] data, int offset, int limit) {
+        int pos = offset;
+        int depth = 0;
+        do {
+            if (pos >= limit) {
+                throw new RuntimeException("Truncated bencode value starting at offset " + offset);
+            }
+            int previous = pos;
+            byte b = data[pos];
+            if (b == 'd' || b == 'l') {
+                depth++;
+                pos++;
+            } else if (b == 'e') {
+                if (depth == 0) {
+                    throw new RuntimeException("Unexpected end marker at offset " + pos);
+                }
+                depth--;
+                pos++;
+            } else if (b == 'i') {
+                pos = indexOf(data, 'e', pos + 1, limit) + 1;
+            } else {
+                pos = stringSpan(data, pos, limit)[1];
+            }
+            if (pos <= previous || pos > limit) {
+                throw new RuntimeException("Malformed bencode value at offset " + previous);
+            }
+        } while (depth > 0);
+        return pos;
+    }
+
+    // the string starting at pos as {offset of its first byte, offset just past it}. The length must be
+    // plain digits without a sign or leading zeros, and the string must end within limit.
+    private static int[] stringSpan(byte[] data, int pos, int limit) {
+        int colon = indexOf(data, ':', pos, limit);
+        if (colon == pos || !Character.isDigit(data[pos]) || (data[pos] == '0' && colon > pos + 1)) {
+            throw new RuntimeException("Invalid string length at offset " + pos);
+        }
+        long length = parseLong(data, pos, colon);
+        if (length > limit - colon - 1) {
+            throw new RuntimeException("String at offset " + pos + " runs past the end of the data");
+        }
+        return new int[]{colon + 1, colon + 1 + (int) length};
+    }
+
+    private static int indexOf(byte[] data, char c, int from, int limit) {
+        for (int i = from; i < limit; i++) {
+            if (data[i] == c) {
+                return i;
+            }
+        }
+        throw new RuntimeException("Missing '" + c + "' after offset " + from);
+    }
+
+    private static long parseLong(byte[] data, int from, int to) {
+        if (from == to) {
+            throw new RuntimeException("Empty number at offset " + from);
+        }
+        boolean negative = data[from] == '-';
+        if (negative && to == from + 1) {
+            throw new RuntimeException("Invalid number at offset " + from);
+        }
+        long value = 0;
+        try {
+            for (int i = negative ? from + 1 : from; i < to; i++) {
+                int digit = data[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new RuntimeException("Invalid digit at offset " + i);
+                }
+                // accumulated as a negative number so Long.MIN_VALUE fits too
+                value = Math.subtractExact(Math.multiplyExact(value, 10), digit);
+            }
+        } catch (ArithmeticException e) {
+            throw new RuntimeException("Number out of range at offset " + from);
+        }
+        if (!negative && value == Long.MIN_VALUE) {
+            throw new RuntimeException("Number out of range at offset " + from);
+        }
+        return negative ? value : -value;
+    }
+
+    public static final class Dict {
+        private final byte[] data;
+        private final int start;
+        private final int end;
+
+        private Dict(byte[] data, int start, int end) {
+            this.data = data;
+            this.start = start;
+            this.end = end;
+        }
+
+        // offset of the value stored under key, or -1; keys are compared as raw bytes
+        private int find(String key) {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            int pos = start + 1;
+            while (pos < end && data[pos] != 'e') {
+                int[] keySpan = stringSpan(data, pos, end);
+                int keyStart = keySpan[0];
+                int valueStart = keySpan[1];
+                if (valueStart >= end) {
+                    throw new RuntimeException("Missing value for key at offset " + pos);
+                }
+                if (valueStart - keyStart == keyBytes.length
+                        && Arrays.equals(data, keyStart, valueStart, keyBytes, 0, keyBytes.length)) {
+                    return valueStart;
+                }
+                pos = skip(data, valueStart, end);
+            }
+            return -1;
+        }
+
+        private int require(String key, char type) {
+            int pos = find(key);
+            if (pos < 0) {
+                throw new RuntimeException("Missing key: " + key);
+            }
+            boolean matches = type == 's' ? Character.isDigit(data[pos]) : data[pos] == type;
+            if (!matches) {
+                throw new RuntimeException("Unexpected type for key: " + key);
+            }
+            return pos;
+        }
+
+        public boolean containsKey(String key) {
+            return find(key) >= 0;
+        }
+
+        public long getLong(String key) {
+            int pos = require(key, 'i');
+            return parseLong(data, pos + 1, indexOf(data, 'e', pos + 1, end));
+        }
+
+        // a view of the string's bytes in the underlying array, nothing is copied
+        public ByteBuffer getBytes(String key) {
+            int[] span = stringSpan(data, require(key, 's'), end);
+            return ByteBuffer.wrap(data, span[0], span[1] - span[0]).slice();
+        }
+
+        public byte[] getByteArray(String key) {
+            ByteBuffer bytes = getBytes(key);
+            byte[] copy = new byte[bytes.remaining()];
+            bytes.get(copy);
+            return copy;
+        }
+
+        public String getString(String key) {
+            ByteBuffer bytes = getBytes(key);
+            return new String(data, bytes.arrayOffset(), bytes.remaining(), StandardCharsets.UTF_8);
+        }
+
+        public Dict getDict(String key) {
+            return readDict(data, require(key, 'd'), end);
+        }
+
+        public List<Dict> getDictList(String key) {
+            List<Dict> dicts = new ArrayList<>();
+            for (int pos : listElements(require(key, 'l'))) {
+                dicts.add(readDict(data, pos, end));
+            }
+            return dicts;
+        }
+
+        public List<String> getStringList(String key) {
+            return stringList(require(key, 'l'), key);
+        }
+
+        // a list of lists of strings, e.g. announce-list tiers
+        public List<List<String>> getStringLists(String key) {
+            List<List<String>> lists = new ArrayList<>();
+            for (int pos : listElements(require(key, 'l'))) {
+                if (data[pos] != 'l') {
+                    throw new RuntimeException("Unexpected type in list: " + key);
+                }
+                lists.add(stringList(pos, key));
+            }
+            return lists;
+        }
+
+        public boolean isString(String key) {
+            int pos = find(key);
+            return pos >= 0 && Character.isDigit(data[pos]);
+        }
+
+        public boolean isLong(String key) {
+            int pos = find(key);
+            return pos >= 0 && data[pos] == 'i';
+        }
+
+        public boolean isList(String key) {
+            int pos = find(key);
+            return pos >= 0 && data[pos] == 'l';
+        }
+
+        private List<String> stringList(int listStart, String key) {
+            List<String> strings = new ArrayList<>();
+            for (int pos : listElements(listStart)) {
+                if (!Character.isDigit(data[pos])) {
+                    throw new RuntimeException("Unexpected type in list: " + key);
+                }
+                int[] span = stringSpan(data, pos, end);
+                strings.add(new String(data, span[0], span[1] - span[0], StandardCharsets.UTF_8));
+            }
+            return strings;
+        }
+
+        // offsets of the elements of the list starting at listStart
+        private List<Integer> listElements(int listStart) {
+            List<Integer> elements = new ArrayList<>();
+            int pos = listStart + 1;
+            while (pos < end && data[pos] != 'e') {
+                elements.add(pos);
+                pos = skip(data, pos, end);
+            }
+            return elements;
+        }
+
+        // the dictionary's own encoding, e.g. to SHA-1 an info dict
+        public int start() {
+            return start;
+        }
+
+        public int end() {
+            return end;
+        }
+
+        public int length() {
+            return end - start;
+        }
+
+        public byte[] data() {
+            return data;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// a cap on peer connections split evenly between the torrents of a Session. Each torrent holds a Share
+// and starts a peer worker only once the share grants a slot; when a torrent joins, the others' quotas
+// shrink as their workers finish, and when one leaves the rest are told they may start more.
+public class ConnectionBudget {
+
+    private final int maxConnections;
+    private final List<Share> shares = new ArrayList<>();
+
+    public ConnectionBudget(int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("Need at least one connection, got " + maxConnections);
+        }
+        this.maxConnections = maxConnections;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public synchronized int getInUse() {
+        int inUse = 0;
+        for (Share share : shares) {
+            inUse += share.inUse;
+        }
+        return inUse;
+    }
+
+    public synchronized Share newShare() {
+        Share share = new Share();
+        shares.add(share);
+        return share;
+    }
+
+    // an equal part of the cap, the first max % n shares get one extra so the whole cap is used
+    private int quota(Share share) {
+        int n = shares.size();
+        int quota = maxConnections / n + (shares.indexOf(share) < maxConnections % n ? 1 : 0);
+        return Math.max(1, quota);
+    }
+
+    // the listeners of shares that are below their quota
+    private List<Runnable> availableListeners() {
+        List<Runnable> listeners = new ArrayList<>();
+        for (Share share : shares) {
+            if (share.onAvailable != null && share.inUse < quota(share)) {
+                listeners.add(share.onAvailable);
+            }
+        }
+        return listeners;
+    }
+
+    // one torrent's part of the budget
+    public final class Share implements AutoCloseable {
+        private int inUse;
+        private Runnable onAvailable;
+
+        public boolean tryAcquire() {
+            synchronized (ConnectionBudget.this) {
+                if (inUse >= quota(this)) {
+                    return false;
+                }
+                inUse++;
+                return true;
+            }
+        }
+
+        public void release() {
+            synchronized (ConnectionBudget.this) {
+                inUse--;
+            }
+        }
+
+        // called when the quota grows because another torrent left
+        public void setOnAvailable(Runnable onAvailable) {
+            synchronized (ConnectionBudget.this) {
+                this.onAvailable = onAvailable;
+            }
+        }
+
+        @Override
+        public void close() {
+            List<Runnable> listeners;
+            synchronized (ConnectionBudget.this) {
+                shares.remove(this);
+                listeners = availableListeners();
+            }
+            // outside the lock, a listener usually acquires again
+            listeners.forEach(Runnable::run);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// sets up peer sessions: every connect and handshake is bounded by the configured timeouts, and a
+// process-wide cap on half-open connections (dialing or still handshaking) keeps a long peer list
+// from exhausting sockets. dial() tries many candidates at once and hands sessions back in the order
+// their handshakes complete, so the fastest peer wins a race.
+public final class ConnectionManager {
+
+    private static final Object halfOpenLock = new Object();
+    private static int halfOpen;
+
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+    private static final ExecutorService dialers = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "peer-dialer-" + threadCounter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ConnectionManager() {
+    }
+
+    // connects and handshakes, waiting first for a half-open slot if the cap is reached
+    public static PeerSession open(String peer, String infoHash, int pieceCount, boolean isMagnetHandshake)
+            throws IOException {
+        DownloadConfig config = TorrentDownloader.getConfig();
+        try {
+            acquireHalfOpen(config.getMaxHalfOpen());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to connect to " + peer);
+        }
+        try {
+            PeerConnection connection = TorrentDownloader.connectToPeer(peer);
+            try {
+                connection.setReadTimeout(config.getHandshakeTimeoutMillis());
+                PeerSession session = PeerSession.open(peer, connection, infoHash, pieceCount, isMagnetHandshake);
+                // an established peer may go quiet for as long as it likes while we have nothing requested,
+                // e.g. while it has nothing we need; downloadPiece bounds the wait for requested blocks
+                connection.setReadTimeout(0);
+                return session;
+            } catch (IOException | RuntimeException e) {
+                connection.close();
+                throw e;
+            }
+        } finally {
+            releaseHalfOpen();
+        }
+    }
+
+    private static void acquireHalfOpen(int limit) throws InterruptedException {
+        synchronized (halfOpenLock) {
+            while (halfOpen >= limit) {
+                halfOpenLock.wait();
+            }
+            halfOpen++;
+        }
+    }
+
+    private static void releaseHalfOpen() {
+        synchronized (halfOpenLock) {
+            halfOpen--;
+            halfOpenLock.notifyAll();
+        }
+    }
+
+    public static int getHalfOpen() {
+        synchronized (halfOpenLock) {
+            return halfOpen;
+        }
+    }
+
+    // starts dialing every candidate, at most `parallel` at a time (the half-open cap still applies)
+    public static Dial dial(List<String> peers, String infoHash, int pieceCount, boolean isMagnetHandshake,
+                            int parallel) {
+        return new Dial(peers, infoHash, pieceCount, isMagnetHandshake, parallel);
+    }
+
+    // the first candidate to complete its handshake, or null if none did; the others are dropped
+    public static PeerSession race(List<String> peers, String infoHash, int pieceCount, boolean isMagnetHandshake,
+                                   int parallel) throws InterruptedException {
+        try (Dial dial = dial(peers, infoHash, pieceCount, isMagnetHandshake, parallel)) {
+            return dial.next();
+        }
+    }
+
+    // sessions from one dial in the order they connect. Closing it stops dialing and closes every
+    // session that nobody took.
+    public static final class Dial implements Closeable {
+        private static final Object DONE = new Object();
+
+        private final ConcurrentLinkedQueue<String> candidates;
+        private final BlockingQueue<Object> results = new LinkedBlockingQueue<>();
+        private final List<Future<?>> tasks = new ArrayList<>();
+        private final int dialerCount;
+        private int finishedDialers;
+        private volatile boolean closed;
+
+        private Dial(List<String> peers, String infoHash, int pieceCount, boolean isMagnetHandshake, int parallel) {
+            this.candidates = new ConcurrentLinkedQueue<>(peers);
+            this.dialerCount = Math.max(1, Math.min(parallel, peers.size()));
+            for (int i = 0; i < dialerCount; i++) {
+                tasks.add(dialers.submit(() -> {
+                    String peer;
+                    while (!closed && (peer = candidates.poll()) != null) {
+                        try {
+                            offer(open(peer, infoHash, pieceCount, isMagnetHandshake));
+                        } catch (IOException | RuntimeException e) {
+                            if (!closed) {
+                                System.out.println("Failed to connect to peer: " + peer + " - " + e.getMessage());
+                            }
+                        }
+                    }
+                    results.add(DONE);
+                }));
+            }
+        }
+
+        // a session that finishes its handshake after close() is closed straight away
+        private void offer(PeerSession session) {
+            synchronized (this) {
+                if (!closed) {
+                    results.add(session);
+                    return;
+                }
+            }
+            closeQuietly(session);
+        }
+
+        // blocks until the next session is up, null once every candidate has failed
+        public PeerSession next() throws InterruptedException {
+            return next(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+
+        // null also if nothing connected within the timeout
+        public PeerSession next(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (finishedDialers < dialerCount) {
+                Object result = results.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if (result == null) {
+                    return null;
+                }
+                if (result == DONE) {
+                    finishedDialers++;
+                    continue;
+                }
+                return (PeerSession) result;
+            }
+            return null;
+        }
+
+        // true once next() has reported that every candidate was tried
+        public boolean isExhausted() {
+            return finishedDialers == dialerCount;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                closed = true;
+                for (Object result : results) {
+                    if (result != DONE) {
+                        closeQuietly((PeerSession) result);
+                    }
+                }
+                results.clear();
+            }
+            for (Future<?> task : tasks) {
+                // interrupts a dialer that is waiting for a half-open slot
+                task.cancel(true);
+            }
+        }
+
+        private static void closeQuietly(PeerSession session) {
+            try {
+                session.close();
+            } catch (IOException e) {
+                // it was never used
+            }
+        }
+    }
+}
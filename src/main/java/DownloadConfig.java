@@ -0,0 +1,358 @@
+import java.util.Arrays;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+public final class DownloadConfig {
+
+    public enum NetworkEngine {
+        // one blocking java.net.Socket per peer
+        BLOCKING,
+        // SocketChannels multiplexed over a few selector threads
+        NIO
+    }
+
+    public static final int DEFAULT_PIPELINE_WINDOW = 5;
+    public static final int DEFAULT_IO_THREADS = 2;
+    public static final int DEFAULT_ENDGAME_BLOCKS = 32;
+    public static final int DEFAULT_VERIFY_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+    public static final int DEFAULT_HANDSHAKE_TIMEOUT_MILLIS = 10000;
+    public static final int DEFAULT_REQUEST_TIMEOUT_MILLIS = 30000;
+    public static final int DEFAULT_MAX_HALF_OPEN = 16;
+    public static final int DEFAULT_STREAM_BUFFER_MIB = 64;
+    public static final int DEFAULT_MAX_CONNECTIONS = 200;
+
+    // with adaptivePipeline the window is only where each peer's PipelineDepth starts
+    private final int pipelineWindow;
+    private final boolean adaptivePipeline;
+    private final PieceStorage.Mode storageMode;
+    private final NetworkEngine networkEngine;
+    private final int ioThreads;
+    private final PeerTaskScope.ExecutionMode executionMode;
+    private final int endgameBlocks;
+    private final int verifyThreads;
+    // indexes into the torrent's file list that should not be downloaded
+    private final Set<Integer> skippedFiles;
+    // serve our pieces to incoming peers on listenPort while downloading; off unless asked for, so a
+    // download never needs the port
+    private final boolean seeding;
+    private final int listenPort;
+    private final int connectTimeoutMillis;
+    // from the TCP connect until the peer's bitfield (and extension handshake) has arrived
+    private final int handshakeTimeoutMillis;
+    // how long a peer may go silent while block requests are outstanding before the piece goes back to
+    // the picker, 0 to wait forever
+    private final int requestTimeoutMillis;
+    // connections still being set up at any one time, across all downloads
+    private final int maxHalfOpen;
+    // seconds between [stats] summary lines while downloading, 0 for none
+    private final int statsIntervalSeconds;
+    // when streaming, how far past the read cursor pieces may be fetched and held in memory
+    private final long streamBufferBytes;
+    // peer connections across every torrent of a Session, split evenly between them
+    private final int maxConnections;
+    // download rate across every torrent of a Session, 0 for unlimited
+    private final long maxDownloadBytesPerSecond;
+    // learn peers from connected peers over ut_pex and tell them ours; never done for private torrents
+    private final boolean peerExchange;
+
+    private DownloadConfig(Builder builder) {
+        this.pipelineWindow = builder.pipelineWindow;
+        this.adaptivePipeline = builder.adaptivePipeline;
+        this.storageMode = builder.storageMode;
+        this.networkEngine = builder.networkEngine;
+        this.ioThreads = builder.ioThreads;
+        this.executionMode = builder.executionMode;
+        this.endgameBlocks = builder.endgameBlocks;
+        this.verifyThreads = builder.verifyThreads;
+        this.skippedFiles = builder.skippedFiles;
+        this.seeding = builder.seeding;
+        this.listenPort = builder.listenPort;
+        this.connectTimeoutMillis = builder.connectTimeoutMillis;
+        this.handshakeTimeoutMillis = builder.handshakeTimeoutMillis;
+        this.requestTimeoutMillis = builder.requestTimeoutMillis;
+        this.maxHalfOpen = builder.maxHalfOpen;
+        this.statsIntervalSeconds = builder.statsIntervalSeconds;
+        this.streamBufferBytes = builder.streamBufferBytes;
+        this.maxConnections = builder.maxConnections;
+        this.maxDownloadBytesPerSecond = builder.maxDownloadBytesPerSecond;
+        this.peerExchange = builder.peerExchange;
+    }
+
+    public static DownloadConfig defaults() {
+        return new Builder().build();
+    }
+
+    // values can be overridden on the command line, e.g. java -DpipelineWindow=16 -jar ...
+    public static DownloadConfig fromSystemProperties() {
+        return new Builder()
+                .setPipelineWindow(Integer.getInteger("pipelineWindow", DEFAULT_PIPELINE_WINDOW))
+                .setAdaptivePipeline(Boolean.parseBoolean(System.getProperty("adaptivePipeline", "true")))
+                .setStorageMode(PieceStorage.Mode.valueOf(System.getProperty("storageMode", PieceStorage.Mode.CHANNEL.name())))
+                .setNetworkEngine(NetworkEngine.valueOf(System.getProperty("networkEngine", NetworkEngine.BLOCKING.name())))
+                .setIoThreads(Integer.getInteger("ioThreads", DEFAULT_IO_THREADS))
+                .setExecutionMode(PeerTaskScope.ExecutionMode.valueOf(
+                        System.getProperty("executionMode", PeerTaskScope.ExecutionMode.PLATFORM_POOL.name())))
+                .setEndgameBlocks(Integer.getInteger("endgameBlocks", DEFAULT_ENDGAME_BLOCKS))
+                .setVerifyThreads(Integer.getInteger("verifyThreads", DEFAULT_VERIFY_THREADS))
+                .setSkippedFiles(parseIndexes(System.getProperty("skipFiles", "")))
+                .setSeeding(Boolean.parseBoolean(System.getProperty("seeding", "false")))
+                .setListenPort(Integer.getInteger("listenPort", TorrentDownloader.PORT))
+                .setConnectTimeoutMillis(Integer.getInteger("connectTimeout", DEFAULT_CONNECT_TIMEOUT_MILLIS))
+                .setHandshakeTimeoutMillis(Integer.getInteger("handshakeTimeout", DEFAULT_HANDSHAKE_TIMEOUT_MILLIS))
+                .setRequestTimeoutMillis(Integer.getInteger("requestTimeout", DEFAULT_REQUEST_TIMEOUT_MILLIS))
+                .setMaxHalfOpen(Integer.getInteger("maxHalfOpen", DEFAULT_MAX_HALF_OPEN))
+                .setStatsIntervalSeconds(Integer.getInteger("statsInterval", 0))
+                .setStreamBufferBytes(Integer.getInteger("streamBufferMiB", DEFAULT_STREAM_BUFFER_MIB) * 1024L * 1024)
+                .setMaxConnections(Integer.getInteger("maxConnections", DEFAULT_MAX_CONNECTIONS))
+                .setMaxDownloadBytesPerSecond(Long.getLong("maxDownloadKiBps", 0) * 1024)
+                .setPeerExchange(Boolean.parseBoolean(System.getProperty("peerExchange", "true")))
+                .build();
+    }
+
+    // a comma separated list such as "0,3"
+    private static Set<Integer> parseIndexes(String indexes) {
+        return Arrays.stream(indexes.split(","))
+                .map(String::trim)
+                .filter(index -> !index.isEmpty())
+                .map(Integer::valueOf)
+                .collect(Collectors.toUnmodifiableSet());
+    }
+
+    public int getPipelineWindow() {
+        return pipelineWindow;
+    }
+
+    public boolean isAdaptivePipeline() {
+        return adaptivePipeline;
+    }
+
+    public PieceStorage.Mode getStorageMode() {
+        return storageMode;
+    }
+
+    public NetworkEngine getNetworkEngine() {
+        return networkEngine;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public PeerTaskScope.ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    public int getEndgameBlocks() {
+        return endgameBlocks;
+    }
+
+    public int getVerifyThreads() {
+        return verifyThreads;
+    }
+
+    public Set<Integer> getSkippedFiles() {
+        return skippedFiles;
+    }
+
+    public boolean isSeeding() {
+        return seeding;
+    }
+
+    public int getListenPort() {
+        return listenPort;
+    }
+
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public int getHandshakeTimeoutMillis() {
+        return handshakeTimeoutMillis;
+    }
+
+    public int getRequestTimeoutMillis() {
+        return requestTimeoutMillis;
+    }
+
+    public int getMaxHalfOpen() {
+        return maxHalfOpen;
+    }
+
+    public int getStatsIntervalSeconds() {
+        return statsIntervalSeconds;
+    }
+
+    public long getStreamBufferBytes() {
+        return streamBufferBytes;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public long getMaxDownloadBytesPerSecond() {
+        return maxDownloadBytesPerSecond;
+    }
+
+    public boolean isPeerExchange() {
+        return peerExchange;
+    }
+
+    public static class Builder {
+        private int pipelineWindow = DEFAULT_PIPELINE_WINDOW;
+        private boolean adaptivePipeline = true;
+        private PieceStorage.Mode storageMode = PieceStorage.Mode.CHANNEL;
+        private NetworkEngine networkEngine = NetworkEngine.BLOCKING;
+        private int ioThreads = DEFAULT_IO_THREADS;
+        private PeerTaskScope.ExecutionMode executionMode = PeerTaskScope.ExecutionMode.PLATFORM_POOL;
+        private int endgameBlocks = DEFAULT_ENDGAME_BLOCKS;
+        private int verifyThreads = DEFAULT_VERIFY_THREADS;
+        private Set<Integer> skippedFiles = Set.of();
+        private boolean seeding;
+        private int listenPort = TorrentDownloader.PORT;
+        private int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+        private int handshakeTimeoutMillis = DEFAULT_HANDSHAKE_TIMEOUT_MILLIS;
+        private int requestTimeoutMillis = DEFAULT_REQUEST_TIMEOUT_MILLIS;
+        private int maxHalfOpen = DEFAULT_MAX_HALF_OPEN;
+        private int statsIntervalSeconds;
+        private long streamBufferBytes = DEFAULT_STREAM_BUFFER_MIB * 1024L * 1024;
+        private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+        private long maxDownloadBytesPerSecond;
+        private boolean peerExchange = true;
+
+        public Builder setPipelineWindow(int pipelineWindow) {
+            this.pipelineWindow = pipelineWindow;
+            return this;
+        }
+
+        public Builder setAdaptivePipeline(boolean adaptivePipeline) {
+            this.adaptivePipeline = adaptivePipeline;
+            return this;
+        }
+
+        public Builder setStorageMode(PieceStorage.Mode storageMode) {
+            this.storageMode = storageMode;
+            return this;
+        }
+
+        public Builder setNetworkEngine(NetworkEngine networkEngine) {
+            this.networkEngine = networkEngine;
+            return this;
+        }
+
+        public Builder setIoThreads(int ioThreads) {
+            this.ioThreads = ioThreads;
+            return this;
+        }
+
+        public Builder setExecutionMode(PeerTaskScope.ExecutionMode executionMode) {
+            this.executionMode = executionMode;
+            return this;
+        }
+
+        public Builder setEndgameBlocks(int endgameBlocks) {
+            this.endgameBlocks = endgameBlocks;
+            return this;
+        }
+
+        public Builder setVerifyThreads(int verifyThreads) {
+            this.verifyThreads = verifyThreads;
+            return this;
+        }
+
+        public Builder setSkippedFiles(Set<Integer> skippedFiles) {
+            this.skippedFiles = Set.copyOf(skippedFiles);
+            return this;
+        }
+
+        public Builder setSeeding(boolean seeding) {
+            this.seeding = seeding;
+            return this;
+        }
+
+        public Builder setListenPort(int listenPort) {
+            this.listenPort = listenPort;
+            return this;
+        }
+
+        public Builder setConnectTimeoutMillis(int connectTimeoutMillis) {
+            this.connectTimeoutMillis = connectTimeoutMillis;
+            return this;
+        }
+
+        public Builder setHandshakeTimeoutMillis(int handshakeTimeoutMillis) {
+            this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+            return this;
+        }
+
+        public Builder setRequestTimeoutMillis(int requestTimeoutMillis) {
+            this.requestTimeoutMillis = requestTimeoutMillis;
+            return this;
+        }
+
+        public Builder setMaxHalfOpen(int maxHalfOpen) {
+            this.maxHalfOpen = maxHalfOpen;
+            return this;
+        }
+
+        public Builder setStatsIntervalSeconds(int statsIntervalSeconds) {
+            this.statsIntervalSeconds = statsIntervalSeconds;
+            return this;
+        }
+
+        public Builder setStreamBufferBytes(long streamBufferBytes) {
+            this.streamBufferBytes = streamBufferBytes;
+            return this;
+        }
+
+        public Builder setMaxConnections(int maxConnections) {
+            this.maxConnections = maxConnections;
+            return this;
+        }
+
+        public Builder setMaxDownloadBytesPerSecond(long maxDownloadBytesPerSecond) {
+            this.maxDownloadBytesPerSecond = maxDownloadBytesPerSecond;
+            return this;
+        }
+
+        public Builder setPeerExchange(boolean peerExchange) {
+            this.peerExchange = peerExchange;
+            return this;
+        }
+
+        public DownloadConfig build() {
+            if (pipelineWindow < 1) {
+                throw new IllegalArgumentException("Pipeline window must be at least 1, got " + pipelineWindow);
+            }
+            if (verifyThreads < 1) {
+                throw new IllegalArgumentException("Need at least one verification thread, got " + verifyThreads);
+            }
+            if (ioThreads < 1) {
+                throw new IllegalArgumentException("Need at least one I/O thread, got " + ioThreads);
+            }
+            if (listenPort < 0 || listenPort > 65535) {
+                throw new IllegalArgumentException("Invalid listen port " + listenPort);
+            }
+            if (connectTimeoutMillis < 0 || handshakeTimeoutMillis < 0 || requestTimeoutMillis < 0) {
+                throw new IllegalArgumentException("Timeouts can't be negative");
+            }
+            if (statsIntervalSeconds < 0) {
+                throw new IllegalArgumentException("Stats interval can't be negative, got " + statsIntervalSeconds);
+            }
+            if (maxHalfOpen < 1) {
+                throw new IllegalArgumentException("Need at least one half-open connection, got " + maxHalfOpen);
+            }
+            if (streamBufferBytes < 1) {
+                throw new IllegalArgumentException("Stream buffer must be positive, got " + streamBufferBytes);
+            }
+            if (maxConnections < 1) {
+                throw new IllegalArgumentException("Need at least one connection, got " + maxConnections);
+            }
+            if (maxDownloadBytesPerSecond < 0) {
+                throw new IllegalArgumentException("Download rate limit can't be negative, got " + maxDownloadBytesPerSecond);
+            }
+            return new DownloadConfig(this);
+        }
+    }
+}
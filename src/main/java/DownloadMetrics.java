@@ -0,0 +1,242 @@
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// counters and latency histograms for one download. Recording is a LongAdder or histogram bucket
+// increment, cheap enough for every block. Everything is readable over JMX while the download runs,
+// and with -DstatsInterval=<seconds> a one-line summary is printed on that schedule.
+public class DownloadMetrics implements DownloadMetricsMXBean, Closeable {
+
+    private final Torrent torrent;
+    private final PiecePicker picker;
+    private final long startNanos = System.nanoTime();
+    private final LongAdder bytesDownloaded = new LongAdder();
+    private final LongAdder hashFailures = new LongAdder();
+    private final LongAdder requeues = new LongAdder();
+    private final LongAdder peerFailures = new LongAdder();
+    private final AtomicInteger connectedPeers = new AtomicInteger();
+    private final Histogram blockRtt = new Histogram();
+    private final Histogram pieceDownload = new Histogram();
+    private final Histogram pieceVerify = new Histogram();
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    private volatile IntSupplier verifyQueueLength = () -> 0;
+    private ObjectName objectName;
+    private ScheduledExecutorService summaryPrinter;
+    private long lastSummaryBytes;
+    private long lastSummaryNanos = startNanos;
+
+    public DownloadMetrics(Torrent torrent, PiecePicker picker) {
+        this.torrent = torrent;
+        this.picker = picker;
+    }
+
+    // registers the MBean and starts the summary line if statsIntervalSeconds is positive
+    public static DownloadMetrics start(Torrent torrent, PiecePicker picker, int statsIntervalSeconds) {
+        DownloadMetrics metrics = new DownloadMetrics(torrent, picker);
+        metrics.register();
+        if (statsIntervalSeconds > 0) {
+            metrics.summaryPrinter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "download-stats");
+                thread.setDaemon(true);
+                return thread;
+            });
+            metrics.summaryPrinter.scheduleAtFixedRate(() -> System.out.println(metrics.summaryLine()),
+                    statsIntervalSeconds, statsIntervalSeconds, TimeUnit.SECONDS);
+        }
+        return metrics;
+    }
+
+    private void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("bittorrent:type=Download,infoHash=" + torrent.getInfoHash());
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+                objectName = name;
+            }
+        } catch (JMException e) {
+            System.out.println("Download metrics not available over JMX: " + e.getMessage());
+        }
+    }
+
+    // one connected peer's share of the counters; a reconnect to the same address reuses it
+    public final class Peer {
+        private final LongAdder bytes = new LongAdder();
+        private final AtomicBoolean connected = new AtomicBoolean();
+        private volatile PipelineDepth depth;
+
+        public void onBlock(int length, long rttNanos) {
+            bytes.add(length);
+            bytesDownloaded.add(length);
+            if (rttNanos > 0) {
+                blockRtt.recordNanos(rttNanos);
+            }
+        }
+
+        // safe to call more than once per connection, only the first call counts
+        public void disconnected() {
+            if (connected.compareAndSet(true, false)) {
+                connectedPeers.decrementAndGet();
+            }
+        }
+    }
+
+    public Peer peerConnected(String peer, PipelineDepth depth) {
+        Peer stats = peers.computeIfAbsent(peer, address -> new Peer());
+        stats.depth = depth;
+        if (stats.connected.compareAndSet(false, true)) {
+            connectedPeers.incrementAndGet();
+        }
+        return stats;
+    }
+
+    public void setVerifyQueueLength(IntSupplier verifyQueueLength) {
+        this.verifyQueueLength = verifyQueueLength;
+    }
+
+    public void pieceDownloaded(long nanos) {
+        pieceDownload.recordNanos(nanos);
+    }
+
+    public void pieceVerified(long nanos) {
+        pieceVerify.recordNanos(nanos);
+    }
+
+    public void hashFailed() {
+        hashFailures.increment();
+        requeues.increment();
+    }
+
+    public void pieceFailed() {
+        peerFailures.increment();
+        requeues.increment();
+    }
+
+    @Override
+    public String getName() {
+        return torrent.getName();
+    }
+
+    @Override
+    public int getPiecesTotal() {
+        return torrent.getPieceCount();
+    }
+
+    @Override
+    public int getPiecesCompleted() {
+        return picker.completedCount();
+    }
+
+    @Override
+    public long getBytesDownloaded() {
+        return bytesDownloaded.sum();
+    }
+
+    @Override
+    public double getAverageBytesPerSecond() {
+        return bytesDownloaded.sum() * 1e9 / Math.max(1, System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public int getConnectedPeers() {
+        return connectedPeers.get();
+    }
+
+    @Override
+    public long getHashFailures() {
+        return hashFailures.sum();
+    }
+
+    @Override
+    public long getRequeues() {
+        return requeues.sum();
+    }
+
+    @Override
+    public long getPeerFailures() {
+        return peerFailures.sum();
+    }
+
+    @Override
+    public int getVerifyQueueLength() {
+        return verifyQueueLength.getAsInt();
+    }
+
+    @Override
+    public Map<String, Double> getBlockRtt() {
+        return blockRtt.summary();
+    }
+
+    @Override
+    public Map<String, Double> getPieceDownloadLatency() {
+        return pieceDownload.summary();
+    }
+
+    @Override
+    public Map<String, Double> getPieceVerifyLatency() {
+        return pieceVerify.summary();
+    }
+
+    @Override
+    public Map<String, Double> getPeerBytesPerSecond() {
+        Map<String, Double> rates = new TreeMap<>();
+        peers.forEach((peer, stats) -> {
+            if (stats.connected.get() && stats.depth != null) {
+                rates.put(peer, stats.depth.getBytesPerSecond());
+            }
+        });
+        return rates;
+    }
+
+    @Override
+    public Map<String, Integer> getPeerQueueDepths() {
+        Map<String, Integer> depths = new TreeMap<>();
+        peers.forEach((peer, stats) -> {
+            if (stats.connected.get() && stats.depth != null) {
+                depths.put(peer, stats.depth.current());
+            }
+        });
+        return depths;
+    }
+
+    // e.g. "[stats] 37/128 pieces, 4.21 MiB/s, 5 peers, rtt p50 48.0 ms p99 120.0 ms, piece p50 310.0 ms, ..."
+    synchronized String summaryLine() {
+        long now = System.nanoTime();
+        long bytes = bytesDownloaded.sum();
+        double rate = (bytes - lastSummaryBytes) * 1e9 / Math.max(1, now - lastSummaryNanos);
+        lastSummaryBytes = bytes;
+        lastSummaryNanos = now;
+        return String.format("[stats] %d/%d pieces, %.2f MiB/s, %d peers, rtt p50 %.1f ms p99 %.1f ms, "
+                        + "piece p50 %.1f ms, verify p50 %.1f ms, verify queue %d, requeues %d, failures %d",
+                picker.completedCount(), torrent.getPieceCount(), rate / (1024 * 1024), connectedPeers.get(),
+                blockRtt.percentileMillis(50), blockRtt.percentileMillis(99), pieceDownload.percentileMillis(50),
+                pieceVerify.percentileMillis(50), verifyQueueLength.getAsInt(), requeues.sum(), peerFailures.sum());
+    }
+
+    @Override
+    public void close() {
+        if (summaryPrinter != null) {
+            summaryPrinter.shutdownNow();
+            System.out.println(summaryLine());
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                // already gone
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+import java.util.Map;
+
+// what a running download exposes over JMX, under bittorrent:type=Download,infoHash=<hex>
+public interface DownloadMetricsMXBean {
+
+    String getName();
+
+    int getPiecesTotal();
+
+    int getPiecesCompleted();
+
+    long getBytesDownloaded();
+
+    // since the download started
+    double getAverageBytesPerSecond();
+
+    int getConnectedPeers();
+
+    long getHashFailures();
+
+    // pieces handed back to the picker after a failed download or hash check
+    long getRequeues();
+
+    // piece downloads that failed on the network
+    long getPeerFailures();
+
+    int getVerifyQueueLength();
+
+    Map<String, Double> getBlockRtt();
+
+    Map<String, Double> getPieceDownloadLatency();
+
+    Map<String, Double> getPieceVerifyLatency();
+
+    // delivery rate of each connected peer as measured by its PipelineDepth
+    Map<String, Double> getPeerBytesPerSecond();
+
+    Map<String, Integer> getPeerQueueDepths();
+}
@@ -0,0 +1,120 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Set;
+
+// where the torrent's byte stream lands on disk: the files are laid end to end, and any piece or block
+// maps to one (file, offset, length) segment per file it touches. File start offsets are precomputed so
+// finding the first file is a binary search rather than a scan over the file list.
+public final class FileLayout {
+
+    public interface SegmentVisitor {
+        // `length` bytes at `bufferOffset` in the piece or block belong at `fileOffset` in file `fileIndex`
+        void visit(int fileIndex, long fileOffset, int bufferOffset, int length) throws IOException;
+    }
+
+    private final long[] fileStarts;
+    private final long[] fileLengths;
+    private final long pieceLength;
+    private final long totalLength;
+
+    public FileLayout(long[] fileLengths, long pieceLength) {
+        this.fileLengths = fileLengths.clone();
+        this.fileStarts = new long[fileLengths.length];
+        this.pieceLength = pieceLength;
+        long offset = 0;
+        for (int i = 0; i < fileLengths.length; i++) {
+            fileStarts[i] = offset;
+            offset += fileLengths[i];
+        }
+        this.totalLength = offset;
+    }
+
+    public int getFileCount() {
+        return fileLengths.length;
+    }
+
+    public long getFileLength(int fileIndex) {
+        return fileLengths[fileIndex];
+    }
+
+    public long getTotalLength() {
+        return totalLength;
+    }
+
+    // the file containing the byte at offset; zero-length files never contain anything
+    public int fileAt(long offset) {
+        if (offset < 0 || offset >= totalLength) {
+            throw new IllegalArgumentException("Offset " + offset + " is outside the torrent");
+        }
+        int index = Arrays.binarySearch(fileStarts, offset);
+        if (index < 0) {
+            return -index - 2;
+        }
+        // several files start here when some of them are empty, the data is in the last of them
+        while (index + 1 < fileStarts.length && fileStarts[index + 1] == offset) {
+            index++;
+        }
+        return index;
+    }
+
+    public void forEachSegment(long offset, int length, SegmentVisitor visitor) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        if (offset + length > totalLength) {
+            throw new IllegalArgumentException("Range at " + offset + " ends past the end of the torrent");
+        }
+        int done = 0;
+        for (int fileIndex = fileAt(offset); done < length; fileIndex++) {
+            long fileOffset = offset + done - fileStarts[fileIndex];
+            int chunk = (int) Math.min(length - done, fileLengths[fileIndex] - fileOffset);
+            if (chunk > 0) {
+                visitor.visit(fileIndex, fileOffset, done, chunk);
+                done += chunk;
+            }
+        }
+    }
+
+    public void forEachPieceSegment(int pieceIndex, int length, SegmentVisitor visitor) throws IOException {
+        forEachSegment(pieceIndex * pieceLength, length, visitor);
+    }
+
+    // pieces with at least one byte in the given files
+    public BitSet piecesTouching(Set<Integer> files) {
+        BitSet pieces = new BitSet();
+        for (int fileIndex : files) {
+            if (fileIndex < 0 || fileIndex >= fileLengths.length || fileLengths[fileIndex] == 0) {
+                continue;
+            }
+            long end = fileStarts[fileIndex] + fileLengths[fileIndex];
+            pieces.set((int) (fileStarts[fileIndex] / pieceLength), (int) ((end + pieceLength - 1) / pieceLength));
+        }
+        return pieces;
+    }
+
+    // pieces with no byte outside the given files, i.e. the ones not worth fetching if those files are
+    // deselected; pieces that straddle into a wanted file still have to be downloaded
+    public BitSet piecesOnlyIn(Set<Integer> files) {
+        BitSet pieces = new BitSet();
+        if (files.isEmpty() || totalLength == 0) {
+            return pieces;
+        }
+        int numPieces = (int) ((totalLength + pieceLength - 1) / pieceLength);
+        for (int piece = 0; piece < numPieces; piece++) {
+            long start = piece * pieceLength;
+            long end = Math.min(totalLength, start + pieceLength);
+            boolean onlyIn = true;
+            for (int fileIndex = fileAt(start); fileIndex < fileLengths.length && fileStarts[fileIndex] < end; fileIndex++) {
+                if (fileLengths[fileIndex] > 0 && !files.contains(fileIndex)) {
+                    onlyIn = false;
+                    break;
+                }
+            }
+            if (onlyIn) {
+                pieces.set(piece);
+            }
+        }
+        return pieces;
+    }
+}
@@ -8,13 +8,27 @@ import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.List;
 
 public class HttpClientService {
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(15);
+
+    // one client for every tracker request, so connections to a tracker are pooled and reused
+    private static final HttpClientService shared = new HttpClientService();
+
     private final HttpClient client;
 
     public HttpClientService() {
-        this.client = HttpClient.newHttpClient();
+        this.client = HttpClient.newBuilder()
+                .connectTimeout(CONNECT_TIMEOUT)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+    }
+
+    public static HttpClientService shared() {
+        return shared;
     }
 
     public RequestURLBuilder newRequestURLBuilder(String baseURL) {
@@ -24,6 +38,7 @@ public class HttpClientService {
     public HttpResponse<byte[]> sendGetRequest(String url) throws URISyntaxException, IOException, InterruptedException {
         HttpRequest request = HttpRequest.newBuilder()
                 .uri(new URI(url))
+                .timeout(REQUEST_TIMEOUT)
                 .GET()
                 .build();
         return client.send(request, HttpResponse.BodyHandlers.ofByteArray());
@@ -0,0 +1,21 @@
+// console verbosity, set once per run with -DlogLevel=QUIET|INFO|DEBUG (INFO by default). The flags
+// are static finals, so a guarded per-block print such as if (Log.DEBUG) { ... } is folded away by the
+// JIT when its level is off and costs nothing on the hot path, string building included.
+public final class Log {
+
+    public enum Level {
+        // errors and the final summary only
+        QUIET,
+        // progress per piece and per peer
+        INFO,
+        // every block and protocol message
+        DEBUG
+    }
+
+    public static final Level LEVEL = Level.valueOf(System.getProperty("logLevel", Level.INFO.name()).toUpperCase());
+    public static final boolean INFO = LEVEL.compareTo(Level.INFO) >= 0;
+    public static final boolean DEBUG = LEVEL.compareTo(Level.DEBUG) >= 0;
+
+    private Log() {
+    }
+}
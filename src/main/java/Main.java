@@ -1,12 +1,17 @@
-import com.dampcake.bencode.Bencode;
 import org.apache.commons.lang3.tuple.Pair;
 
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.nio.ByteBuffer;
-import java.util.ArrayList;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 public class Main {
 
@@ -65,7 +70,7 @@ public class Main {
         }
         case "magnet_info" -> {
             magnetURL = args[1];
-            torrent = getTorrentFromMagnetURL(magnetURL).getLeft();
+            torrent = TorrentDownloader.getTorrentFromMagnetURL(magnetURL).getLeft();
             torrent.printInfo();
         }
         case "download_piece" -> {
@@ -80,12 +85,19 @@ public class Main {
             pieceStoragePath = args[2];
             magnetURL = args[3];
             int pieceIndex = Integer.parseInt(args[4]);
-            Pair<Torrent, TCPService> pair = getTorrentFromMagnetURL(magnetURL);
+            Pair<Torrent, List<PeerSession>> pair = TorrentDownloader.getTorrentFromMagnetURL(magnetURL);
             torrent = pair.getLeft();
             torrent.printInfo();
-            TCPService tcpService = pair.getRight();
-            try {
-                byte[] piece = TorrentDownloader.downloadPieceHelper(tcpService, (int) torrent.getPieceLength(pieceIndex), pieceIndex);
+            List<PeerSession> sessions = pair.getRight();
+            for (PeerSession spare : sessions.subList(1, sessions.size())) {
+                try {
+                    spare.close();
+                } catch (IOException e) {
+                    // only one session is needed for a single piece
+                }
+            }
+            try (PeerSession session = sessions.get(0)) {
+                byte[] piece = session.downloadPiece(pieceIndex, (int) torrent.getPieceLength(pieceIndex), () -> false);
                 Utils.writePieceToFile(pieceStoragePath, piece);
             } catch (Exception e) {
                 throw new RuntimeException(e);
@@ -96,54 +108,89 @@ public class Main {
             torrentFilePath = args[3];
             torrent = TorrentUtils.getTorrentFromPath(torrentFilePath);
             // sout number of pieces
-            System.out.println("Number of pieces: " + torrent.getPieces().size());
+            System.out.println("Number of pieces: " + torrent.getPieceCount());
             TorrentDownloader.downloadTorrent(torrent, storageFilePath, false);
         }
         case "magnet_download" -> {
             String storageFilePath = args[2];
             magnetURL = args[3];
-            Pair<Torrent, TCPService> pair = getTorrentFromMagnetURL(magnetURL);
+            Pair<Torrent, List<PeerSession>> pair = TorrentDownloader.getTorrentFromMagnetURL(magnetURL);
             torrent = pair.getLeft();
-            TCPService tcpService = pair.getRight();
+            System.out.println("downloadTorrent");
+            // keep downloading over the connections the metadata came from
+            TorrentDownloader.downloadTorrent(torrent, storageFilePath, true, pair.getRight());
+        }
+        case "stream" -> {
+            String storageFilePath = args[2];
+            torrentFilePath = args[3];
+            torrent = TorrentUtils.getTorrentFromPath(torrentFilePath);
+            // stdout carries the content, so the log goes to stderr
+            OutputStream content = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16);
+            System.setOut(System.err);
+            try (PieceStream stream = TorrentDownloader.stream(torrent, storageFilePath)) {
+                byte[] buffer = new byte[1 << 16];
+                int n;
+                while ((n = stream.read(buffer)) != -1) {
+                    try {
+                        content.write(buffer, 0, n);
+                    } catch (IOException e) {
+                        // whatever reads stdout has gone away (e.g. `| head`), closing the stream stops the download
+                        System.out.println("Output closed: " + e.getMessage());
+                        break;
+                    }
+                }
+                try {
+                    content.flush();
+                } catch (IOException e) {
+                    // same as above, nothing left to deliver to
+                }
+                System.out.println("First byte after " + stream.getTimeToFirstByteMillis() + " ms");
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        case "batch" -> {
+            // one .torrent path or magnet link per line, blank lines and # comments are skipped
+            String listPath = args[1];
+            Path outputDirectory = Paths.get(args[2]);
+            List<String> sources;
             try {
-                tcpService.close();
+                sources = Files.readAllLines(Paths.get(listPath)).stream()
+                        .map(String::trim)
+                        .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                        .collect(Collectors.toList());
+                Files.createDirectories(outputDirectory);
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
-            System.out.println("downloadTorrent");
-            TorrentDownloader.downloadTorrent(torrent, storageFilePath, true);
+            long start = System.nanoTime();
+            try (Session session = Session.fromConfig(TorrentDownloader.getConfig())) {
+                for (String source : sources) {
+                    session.add(source, outputDirectory);
+                }
+                session.awaitAll();
+                int succeeded = 0;
+                for (Session.Download download : session.getDownloads()) {
+                    if (download.getError() == null) {
+                        succeeded++;
+                        System.out.println("ok      " + download.getOutputPath() + " in " + download.getElapsedMillis() + " ms");
+                    } else {
+                        System.out.println("failed  " + download.getSource() + ": " + download.getError());
+                    }
+                }
+                System.out.println(succeeded + " of " + sources.size() + " downloads finished in "
+                        + (System.nanoTime() - start) / 1_000_000 + " ms");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        case "seed" -> {
+            String storageFilePath = args[1];
+            torrentFilePath = args[2];
+            torrent = TorrentUtils.getTorrentFromPath(torrentFilePath);
+            TorrentDownloader.seed(torrent, storageFilePath);
         }
         default -> System.out.println("Unknown command: " + command);
     }
   }
-
-    private static Pair<Torrent, TCPService> getTorrentFromMagnetURL(String magnetURL) {
-        Map<String, String> params = TorrentUtils.getParamsFromMagnetURL(magnetURL);
-        String infoHash = params.get("xt").split(":")[2];
-        String trackerURL = params.get("tr");
-        Pair<TCPService, Long> handshakeResult = TorrentDownloader.performMagnetHandshake(magnetURL);
-        TCPService tcpService = handshakeResult.getLeft();
-        long extensionId = handshakeResult.getRight();
-        if (tcpService == null) {
-            throw new RuntimeException("Failed to connect to any peers");
-        }
-        System.out.println("Extension ID: " + extensionId);
-        byte[] metadataRequestMessage = TorrentDownloader.createMetadataRequestMessage(0, 0, extensionId);
-        tcpService.sendMessage(metadataRequestMessage);
-        byte[] metadataResponse = tcpService.waitForMessage();
-        Map<String, Object> metadataPieceDict = TorrentDownloader.getMetadataFromMessage(metadataResponse);
-        String calculatedInfoHash = Utils.calculateSHA1(new Bencode(true).encode(metadataPieceDict));
-        if (!calculatedInfoHash.equals(infoHash)) {
-            throw new RuntimeException("Info hash mismatch, expected " + infoHash + " but got " + calculatedInfoHash);
-        }
-        byte[] pieceHashBytes = ((ByteBuffer) metadataPieceDict.get("pieces")).array();
-        List<String> pieceHashes = TorrentUtils.splitPieceHashes(pieceHashBytes, 20, new ArrayList<>());
-        return Pair.of(new Torrent.Builder()
-                .setTrackerURL(trackerURL)
-                .setLength(((Number) metadataPieceDict.get("length")).longValue())
-                .setInfoHash(infoHash)
-                .setPieceLength(((Number) metadataPieceDict.get("piece length")).longValue())
-                .setPieces(pieceHashes)
-                .build(), tcpService);
-    }
     }
@@ -0,0 +1,289 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// fetches a magnet link's info dict over ut_metadata (BEP 9). The size comes from the peers'
+// extension handshakes, the dict is requested in 16 KiB pieces spread over several peers at once,
+// and a peer that rejects a piece or stops answering has its pieces handed to the others. The
+// reassembled dict must hash to the magnet's info hash; if it doesn't, the size it was fetched at is
+// ruled out and the fetch starts over with the peers that announced a different one. Sessions that
+// are still healthy afterwards are kept so the download can carry on over them.
+public class MetadataFetcher {
+
+    public static final int METADATA_PIECE_SIZE = 16384;
+    public static final int DEFAULT_MAX_PEERS = 4;
+    // far above any real info dict, just keeps a hostile metadata_size from allocating gigabytes
+    static final int MAX_METADATA_SIZE = 64 * 1024 * 1024;
+    // pieces requested from one peer before waiting for an answer
+    private static final int REQUESTS_PER_PEER = 4;
+    private static final long DIAL_POLL_MILLIS = 100;
+
+    private static final int MSG_REQUEST = 0;
+    private static final int MSG_DATA = 1;
+    private static final int MSG_REJECT = 2;
+
+    private final String infoHash;
+    private final int maxPeers;
+    private final int localExtensionId = TorrentDownloader.localExtensionId("ut_metadata");
+    private final List<PeerSession> sessions = new ArrayList<>();
+    // peers that announced a size other than the one being fetched, in case that one turns out wrong
+    private final Deque<PeerSession> deferred = new ArrayDeque<>();
+    // sizes whose fetched dict didn't match the info hash
+    private final Set<Long> failedSizes = new HashSet<>();
+
+    // the rest is guarded by this
+    private byte[] metadata;
+    private int pieceCount;
+    private int received;
+    private boolean[] receivedPieces;
+    private final Deque<Integer> pending = new ArrayDeque<>();
+    private int activeWorkers;
+    private boolean finished;
+
+    public MetadataFetcher(String infoHash, int maxPeers) {
+        this.infoHash = infoHash;
+        this.maxPeers = Math.max(1, maxPeers);
+    }
+
+    // takes sessions from the dial as they connect until the whole dict has arrived and matches the
+    // info hash; throws if every candidate was used up first
+    public byte[] fetch(ConnectionManager.Dial dial) throws InterruptedException {
+        while (true) {
+            fetchAtOneSize(dial);
+            String fetchedHash = Utils.byteToHexString(Utils.sha1(metadata, 0, metadata.length));
+            if (fetchedHash.equals(infoHash)) {
+                break;
+            }
+            System.out.println("Metadata of " + metadata.length + " bytes doesn't match the info hash, expected "
+                    + infoHash + " but got " + fetchedHash + ", trying the other announced sizes");
+            synchronized (this) {
+                failedSizes.add((long) metadata.length);
+                metadata = null;
+                received = 0;
+                pending.clear();
+                finished = false;
+            }
+        }
+        sessions.addAll(deferred);
+        deferred.clear();
+        System.out.println("Fetched " + metadata.length + " bytes of metadata in " + pieceCount + " pieces");
+        return metadata;
+    }
+
+    // one attempt at the size the first admitted peer announces, with the peers that agree on it
+    private void fetchAtOneSize(ConnectionManager.Dial dial) throws InterruptedException {
+        DownloadConfig config = TorrentDownloader.getConfig();
+        List<Future<PeerSession>> workers = new ArrayList<>();
+        try (PeerTaskScope scope = new PeerTaskScope(config.getExecutionMode(), maxPeers)) {
+            try {
+                while (true) {
+                    synchronized (this) {
+                        while (activeWorkers >= maxPeers && !isComplete()) {
+                            wait();
+                        }
+                        if (isComplete()) {
+                            break;
+                        }
+                    }
+                    // peers put aside by an earlier attempt go first
+                    PeerSession session = deferred.isEmpty() ? dial.next(DIAL_POLL_MILLIS, TimeUnit.MILLISECONDS)
+                            : deferred.poll();
+                    if (session != null) {
+                        if (admit(session)) {
+                            workers.add(scope.fork(() -> work(session, config.getHandshakeTimeoutMillis())));
+                        }
+                    } else if (dial.isExhausted()) {
+                        synchronized (this) {
+                            while (activeWorkers > 0 && !isComplete()) {
+                                wait();
+                            }
+                            if (!isComplete()) {
+                                throw new RuntimeException("No peer could provide the metadata, got " + received
+                                        + " of " + (metadata == null ? "?" : pieceCount) + " pieces");
+                            }
+                        }
+                        break;
+                    }
+                }
+            } finally {
+                synchronized (this) {
+                    // lets idle workers hand their sessions back
+                    finished = true;
+                    notifyAll();
+                }
+            }
+            for (Future<PeerSession> worker : workers) {
+                try {
+                    PeerSession session = worker.get();
+                    if (session != null) {
+                        sessions.add(session);
+                    }
+                } catch (ExecutionException e) {
+                    // the worker closed its own session
+                }
+            }
+        } catch (InterruptedException | RuntimeException e) {
+            closeSessions();
+            throw e;
+        }
+    }
+
+    // the sessions still open after fetch(), including peers that had no metadata to offer
+    public List<PeerSession> getSessions() {
+        return sessions;
+    }
+
+    private synchronized boolean isComplete() {
+        return metadata != null && received == pieceCount;
+    }
+
+    // the first peer to announce a plausible size that hasn't failed yet decides it. Peers without
+    // ut_metadata are kept for the download; peers with a different size are put aside for the next
+    // attempt, in case the first peer was wrong.
+    private synchronized boolean admit(PeerSession session) {
+        long size = session.getMetadataSize();
+        if (session.getMetadataExtensionId() <= 0 || size <= 0 || size > MAX_METADATA_SIZE
+                || failedSizes.contains(size)) {
+            if (Log.INFO) {
+                System.out.println("Peer " + session.getPeer() + " cannot provide metadata");
+            }
+            sessions.add(session);
+            return false;
+        }
+        if (metadata == null) {
+            metadata = new byte[(int) size];
+            pieceCount = (int) ((size + METADATA_PIECE_SIZE - 1) / METADATA_PIECE_SIZE);
+            receivedPieces = new boolean[pieceCount];
+            for (int i = 0; i < pieceCount; i++) {
+                pending.add(i);
+            }
+        } else if (size != metadata.length) {
+            if (Log.INFO) {
+                System.out.println("Peer " + session.getPeer() + " announced metadata size " + size + ", expected "
+                        + metadata.length + ", keeping it in case that size fails");
+            }
+            deferred.add(session);
+            return false;
+        }
+        activeWorkers++;
+        return true;
+    }
+
+    private int pieceLength(int piece) {
+        return Math.min(METADATA_PIECE_SIZE, metadata.length - piece * METADATA_PIECE_SIZE);
+    }
+
+    // keeps a few pieces requested from one peer until nothing is left to ask for. Returns the session
+    // once it is no longer needed, or null if it failed and was closed.
+    private PeerSession work(PeerSession session, int timeoutMillis) throws InterruptedException {
+        PeerConnection connection = session.getConnection();
+        long peerExtensionId = session.getMetadataExtensionId();
+        Deque<Integer> outstanding = new ArrayDeque<>();
+        try {
+            // a peer that stops answering must not hold its pieces forever
+            connection.setReadTimeout(timeoutMillis);
+            while (true) {
+                List<Integer> toRequest = new ArrayList<>();
+                synchronized (this) {
+                    while (outstanding.isEmpty() && pending.isEmpty() && !finished && !isComplete()) {
+                        wait();
+                    }
+                    if (outstanding.isEmpty() && pending.isEmpty()) {
+                        connection.setReadTimeout(0);
+                        return session;
+                    }
+                    while (outstanding.size() + toRequest.size() < REQUESTS_PER_PEER && !pending.isEmpty()) {
+                        toRequest.add(pending.poll());
+                    }
+                    outstanding.addAll(toRequest);
+                }
+                for (int piece : toRequest) {
+                    connection.sendMessage(TorrentDownloader.createMetadataRequestMessage(MSG_REQUEST, piece, peerExtensionId));
+                }
+                byte[] message = session.awaitExtensionMessage(localExtensionId);
+                BencodeReader.Dict header = BencodeReader.readDict(message, 2, message.length);
+                int type = (int) header.getLong("msg_type");
+                int piece = (int) header.getLong("piece");
+                if (type == MSG_REQUEST) {
+                    // we have nothing to serve yet
+                    connection.sendMessage(TorrentDownloader.createMetadataRequestMessage(MSG_REJECT, piece, peerExtensionId));
+                } else if (type == MSG_REJECT) {
+                    if (Log.INFO) {
+                        System.out.println("Peer " + session.getPeer() + " rejected metadata piece " + piece);
+                    }
+                    requeue(outstanding);
+                    connection.setReadTimeout(0);
+                    return session;
+                } else if (type == MSG_DATA) {
+                    if (!outstanding.remove(piece)) {
+                        throw new IOException("Unrequested metadata piece " + piece);
+                    }
+                    int length = message.length - header.end();
+                    if (length != pieceLength(piece)) {
+                        throw new IOException("Metadata piece " + piece + " has " + length + " bytes, expected " + pieceLength(piece));
+                    }
+                    store(piece, message, header.end());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Metadata fetch from " + session.getPeer() + " failed: " + e.getMessage());
+            requeue(outstanding);
+            try {
+                session.close();
+            } catch (IOException closeError) {
+                // already broken
+            }
+            return null;
+        } finally {
+            synchronized (this) {
+                activeWorkers--;
+                notifyAll();
+            }
+        }
+    }
+
+    private synchronized void store(int piece, byte[] message, int offset) {
+        if (receivedPieces[piece]) {
+            return;
+        }
+        System.arraycopy(message, offset, metadata, piece * METADATA_PIECE_SIZE, message.length - offset);
+        receivedPieces[piece] = true;
+        received++;
+        if (Log.DEBUG) {
+            System.out.println("Received metadata piece " + piece + " out of " + pieceCount);
+        }
+        if (received == pieceCount) {
+            notifyAll();
+        }
+    }
+
+    private synchronized void requeue(Deque<Integer> outstanding) {
+        for (int piece : outstanding) {
+            if (!receivedPieces[piece]) {
+                pending.addFirst(piece);
+            }
+        }
+        outstanding.clear();
+        notifyAll();
+    }
+
+    private void closeSessions() {
+        sessions.addAll(deferred);
+        deferred.clear();
+        for (PeerSession session : sessions) {
+            try {
+                session.close();
+            } catch (IOException e) {
+                // nothing else to do with it
+            }
+        }
+        sessions.clear();
+    }
+}
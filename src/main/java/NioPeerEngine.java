@@ -0,0 +1,428 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// multiplexes every peer connection over a small fixed set of selector threads; each connection
+// still offers the blocking message-level PeerConnection API, decoding frames out of its read buffer
+public class NioPeerEngine implements Closeable {
+
+    private static final int HANDSHAKE_LENGTH = 68;
+    private static final int INITIAL_READ_BUFFER_SIZE = 64 * 1024;
+    // a busy peer's buffer grows to hold a full pipeline of blocks, so its reads rarely have to pause
+    private static final int MAX_READ_BUFFER_SIZE = 256 * 1024;
+    // nothing legitimate comes close to this: the largest message is a 16 KiB block or a bitfield
+    private static final int MAX_FRAME_LENGTH = 1 << 24;
+    private static final byte[] KEEP_ALIVE = new byte[0];
+    // control messages up to this length (choke, have, request, cancel, port) reuse one array per length
+    private static final int MAX_REUSED_FRAME_LENGTH = 13;
+
+    private static NioPeerEngine shared;
+
+    private final IoLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    public NioPeerEngine(int ioThreads) throws IOException {
+        loops = new IoLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            loops[i] = new IoLoop("nio-peer-io-" + i);
+        }
+    }
+
+    public static synchronized NioPeerEngine shared(int ioThreads) {
+        if (shared == null) {
+            try {
+                shared = new NioPeerEngine(ioThreads);
+            } catch (IOException e) {
+                throw new RuntimeException("Error starting NIO peer engine: " + e.getMessage());
+            }
+        }
+        return shared;
+    }
+
+    public PeerConnection connect(String host, int port) throws IOException {
+        return connect(host, port, 0);
+    }
+
+    // gives up if the connection isn't established within timeoutMillis, 0 waits forever
+    public PeerConnection connect(String host, int port, int timeoutMillis) throws IOException {
+        IoLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        // pipelined requests are small writes that must not wait on Nagle's algorithm
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        NioConnection connection = new NioConnection(channel, loop);
+        try {
+            channel.connect(new InetSocketAddress(host, port));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        loop.execute(() -> loop.register(connection));
+        connection.awaitConnected(timeoutMillis);
+        return connection;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (IoLoop loop : loops) {
+            loop.selector.close();
+        }
+    }
+
+    private static class IoLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        IoLoop(String name) throws IOException {
+            selector = Selector.open();
+            Thread thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(NioConnection connection) {
+            try {
+                boolean connected = connection.channel.isConnected();
+                int ops = connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT;
+                connection.key = connection.channel.register(selector, ops, connection);
+                if (connected) {
+                    connection.connected.complete(null);
+                }
+            } catch (IOException e) {
+                connection.fail(e);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (selector.isOpen()) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        handle(key);
+                    }
+                } catch (Exception e) {
+                    if (selector.isOpen()) {
+                        System.out.println("Error in NIO peer loop: " + e.getMessage());
+                    }
+                }
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            NioConnection connection = (NioConnection) key.attachment();
+            try {
+                if (!key.isValid()) {
+                    return;
+                }
+                if (key.isConnectable()) {
+                    if (!connection.channel.finishConnect()) {
+                        return;
+                    }
+                    key.interestOps(SelectionKey.OP_READ | (connection.outbound.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+                    connection.connected.complete(null);
+                }
+                if (key.isValid() && key.isReadable()) {
+                    connection.onReadable();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.onWritable();
+                }
+            } catch (IOException e) {
+                connection.fail(e);
+            }
+        }
+    }
+
+    private static class NioConnection implements PeerConnection {
+        private final SocketChannel channel;
+        private final IoLoop loop;
+        private final CompletableFuture<Void> connected = new CompletableFuture<>();
+        private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean writeScheduled = new AtomicBoolean();
+        private volatile SelectionKey key;
+        private volatile int readTimeoutMillis;
+        // the loop thread reads into the buffer and the reader decodes frames out of it, both under this lock
+        private IOException failure;
+        private boolean readPaused;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+        private boolean awaitingHandshake = true;
+        // only touched by the reader
+        private final byte[] pieceHeader = new byte[1 + 8];
+        private final byte[][] reusedFrames = new byte[MAX_REUSED_FRAME_LENGTH + 1][];
+
+        NioConnection(SocketChannel channel, IoLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        void awaitConnected(int timeoutMillis) throws IOException {
+            try {
+                if (timeoutMillis > 0) {
+                    connected.get(timeoutMillis, TimeUnit.MILLISECONDS);
+                } else {
+                    connected.get();
+                }
+            } catch (TimeoutException e) {
+                close();
+                throw new SocketTimeoutException("Connect timed out");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new IOException("Interrupted while connecting");
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to connect: " + e.getCause().getMessage());
+            }
+        }
+
+        synchronized void onReadable() throws IOException {
+            if (channel.read(readBuffer) < 0) {
+                throw new EOFException("Peer closed the connection");
+            }
+            if (!readBuffer.hasRemaining()) {
+                // the reader resumes once it has drained the buffer or grown it for a larger frame
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                readPaused = true;
+                notifyAll();
+            } else if (hasCompleteFrame()) {
+                notifyAll();
+            }
+        }
+
+        // whether the first frame in the buffer has fully arrived, so a partial block doesn't wake the reader
+        private boolean hasCompleteFrame() {
+            if (awaitingHandshake) {
+                return readBuffer.position() >= HANDSHAKE_LENGTH;
+            }
+            return readBuffer.position() >= 4 && readBuffer.position() - 4 >= readBuffer.getInt(0);
+        }
+
+        // the next complete frame in the buffer, or null if it hasn't all arrived yet. With a target, the block
+        // of a PIECE message is copied straight into it and small messages come back in reused arrays.
+        private byte[] decodeFrame(BlockTarget target) throws IOException {
+            if (awaitingHandshake) {
+                if (readBuffer.remaining() < HANDSHAKE_LENGTH) {
+                    return null;
+                }
+                byte[] handshake = new byte[HANDSHAKE_LENGTH];
+                readBuffer.get(handshake);
+                awaitingHandshake = false;
+                return handshake;
+            }
+            if (readBuffer.remaining() < 4) {
+                return null;
+            }
+            int length = readBuffer.getInt(readBuffer.position());
+            if (length < 0 || length > MAX_FRAME_LENGTH) {
+                throw new IOException("Invalid message length: " + length);
+            }
+            if (readBuffer.remaining() < 4 + length) {
+                return null;
+            }
+            readBuffer.position(readBuffer.position() + 4);
+            if (length == 0) {
+                return KEEP_ALIVE;
+            }
+            byte messageId = readBuffer.get(readBuffer.position());
+            if (target != null && length >= 9 && messageId == TorrentDownloader.PIECE_MESSAGE_ID) {
+                int index = readBuffer.getInt(readBuffer.position() + 1);
+                int begin = readBuffer.getInt(readBuffer.position() + 5);
+                readBuffer.get(pieceHeader);
+                byte[] buffer = target.bufferFor(index, begin, length - 9);
+                if (buffer == null) {
+                    readBuffer.position(readBuffer.position() + length - 9);
+                } else {
+                    readBuffer.get(buffer, begin, length - 9);
+                }
+                return pieceHeader;
+            }
+            byte[] frame;
+            if (target != null && length <= MAX_REUSED_FRAME_LENGTH) {
+                if (reusedFrames[length] == null) {
+                    reusedFrames[length] = new byte[length];
+                }
+                frame = reusedFrames[length];
+            } else {
+                frame = new byte[length];
+            }
+            readBuffer.get(frame);
+            return frame;
+        }
+
+        // grows a buffer that filled up, to fit a frame that didn't or to stop pausing a busy peer, then keeps
+        // reusing it
+        private void growFullBuffer() {
+            int neededCapacity = readBuffer.capacity();
+            if (!readBuffer.hasRemaining()) {
+                neededCapacity = Math.min(2 * neededCapacity, MAX_READ_BUFFER_SIZE);
+            }
+            if (!awaitingHandshake && readBuffer.position() >= 4) {
+                neededCapacity = Math.max(neededCapacity, 4 + readBuffer.getInt(0));
+            }
+            if (neededCapacity > readBuffer.capacity()) {
+                ByteBuffer larger = ByteBuffer.allocate(neededCapacity);
+                readBuffer.flip();
+                larger.put(readBuffer);
+                readBuffer = larger;
+            }
+        }
+
+        void onWritable() throws IOException {
+            ByteBuffer buffer;
+            while ((buffer = outbound.peek()) != null) {
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    return;
+                }
+                outbound.poll();
+            }
+            writeScheduled.set(false);
+            // a sender may have queued a message after the loop above saw an empty queue
+            if (outbound.isEmpty() || !writeScheduled.compareAndSet(false, true)) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        }
+
+        private synchronized void resumeReading() {
+            if (key.isValid() && readPaused && readBuffer.hasRemaining()) {
+                readPaused = false;
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        void fail(IOException e) {
+            synchronized (this) {
+                if (failure == null) {
+                    failure = e;
+                    connected.completeExceptionally(e);
+                }
+                notifyAll();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // already failing
+            }
+        }
+
+        // frames that arrived before a failure are still handed out, then every read throws
+        private synchronized byte[] take(BlockTarget target) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(readTimeoutMillis);
+            try {
+                while (true) {
+                    byte[] frame;
+                    readBuffer.flip();
+                    try {
+                        frame = decodeFrame(target);
+                    } catch (IOException e) {
+                        fail(e);
+                        throw new RuntimeException(e);
+                    } finally {
+                        readBuffer.compact();
+                    }
+                    if (readPaused) {
+                        growFullBuffer();
+                        if (readBuffer.hasRemaining()) {
+                            loop.execute(this::resumeReading);
+                        }
+                    }
+                    if (frame != null) {
+                        return frame;
+                    }
+                    if (failure != null) {
+                        throw new RuntimeException(failure);
+                    }
+                    if (readTimeoutMillis <= 0) {
+                        wait();
+                    } else if (deadline - System.nanoTime() > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(this, deadline - System.nanoTime());
+                    } else {
+                        fail(new SocketTimeoutException("Read timed out"));
+                        throw new RuntimeException(failure);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public byte[] waitForHandshakeResponse() {
+            return take(null);
+        }
+
+        @Override
+        public void setReadTimeout(int timeoutMillis) {
+            readTimeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public byte[] waitForMessage() {
+            return take(null);
+        }
+
+        @Override
+        public byte[] waitForMessage(BlockTarget target) {
+            return take(target);
+        }
+
+        @Override
+        public void sendMessage(byte[] message) {
+            if (failure != null) {
+                throw new RuntimeException(failure);
+            }
+            outbound.add(ByteBuffer.wrap(message));
+            if (writeScheduled.compareAndSet(false, true)) {
+                loop.execute(() -> {
+                    if (key.isValid()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void sendMessage(byte messageId, byte[] payload) {
+            ByteBuffer buffer = ByteBuffer.allocate(4 + 1 + payload.length);
+            buffer.putInt(1 + payload.length);
+            buffer.put(messageId);
+            buffer.put(payload);
+            sendMessage(buffer.array());
+        }
+
+        @Override
+        public void close() throws IOException {
+            fail(new ClosedChannelException());
+        }
+    }
+}
@@ -0,0 +1,44 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// the message-level API the download code talks to, implemented by the blocking TCPService
+// and by the selector-based NioPeerEngine
+public interface PeerConnection extends Closeable {
+
+    byte[] waitForHandshakeResponse();
+
+    byte[] waitForMessage();
+
+    // says where the block of an incoming PIECE message should land: the array to read it into at
+    // `begin`, or null to discard it
+    interface BlockTarget {
+        byte[] bufferFor(int index, int begin, int length);
+    }
+
+    // like waitForMessage, except the block of a PIECE message is handed to the target. Only the first
+    // 9 bytes of a returned PIECE message (id, index, begin) are meaningful, and an implementation may
+    // reuse the returned array, whatever the message, for the next read. This default copies the block
+    // out of a whole frame.
+    default byte[] waitForMessage(BlockTarget target) {
+        byte[] message = waitForMessage();
+        if (message.length >= 9 && message[0] == TorrentDownloader.PIECE_MESSAGE_ID) {
+            ByteBuffer header = ByteBuffer.wrap(message, 1, 8);
+            int index = header.getInt();
+            int begin = header.getInt();
+            byte[] buffer = target.bufferFor(index, begin, message.length - 9);
+            if (buffer != null) {
+                System.arraycopy(message, 9, buffer, begin, message.length - 9);
+            }
+        }
+        return message;
+    }
+
+    void sendMessage(byte[] message);
+
+    // how long a read may wait before the connection is given up on, 0 to wait forever
+    default void setReadTimeout(int timeoutMillis) throws IOException {
+    }
+
+    void sendMessage(byte messageId, byte[] payload) throws IOException;
+}
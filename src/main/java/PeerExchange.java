@@ -0,0 +1,171 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+// BEP 11 peer exchange for one download. Peers that support ut_pex send us the addresses of their own
+// peers: "added" in compact form with one flag byte each in "added.f", and "dropped" for those they
+// disconnected from. New addresses go into the PeerStore, which starts workers for them just like for
+// tracker peers, so the swarm keeps growing while the trackers are slow or down. In return each of
+// those peers is told which peers we are connected to, first in full and then as changes, at most once
+// a minute and with no more than 50 entries of each kind per message.
+public class PeerExchange {
+
+    static final int MAX_ENTRIES = 50;
+    private static final long SEND_INTERVAL_NANOS = 60_000_000_000L;
+    // a peer that sends more often than this gets its extra messages ignored
+    private static final long MIN_RECEIVE_INTERVAL_NANOS = 30_000_000_000L;
+    // added.f bits
+    static final int FLAG_SEED = 0x02;
+    static final int FLAG_CONNECTABLE = 0x10;
+
+    private final PeerStore peerStore;
+
+    public PeerExchange(PeerStore peerStore) {
+        this.peerStore = peerStore;
+    }
+
+    public Link link(PeerSession session) {
+        return new Link(session);
+    }
+
+    // "ip:port" as 6 compact bytes, or null for an address that has no IPv4 form
+    static byte[] compactPeer(String peer) {
+        String[] hostAndPort = peer.split(":");
+        if (hostAndPort.length != 2) {
+            return null;
+        }
+        String[] octets = hostAndPort[0].split("\\.");
+        if (octets.length != 4) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(6);
+        try {
+            for (String octet : octets) {
+                buffer.put((byte) Integer.parseInt(octet));
+            }
+            buffer.putShort((short) Integer.parseInt(hostAndPort[1]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return buffer.array();
+    }
+
+    // the payload of a ut_pex message, keys in sorted order as bencoding requires
+    static byte[] createMessage(long extensionId, List<String> added, List<String> dropped) {
+        ByteArrayOutputStream addedBytes = new ByteArrayOutputStream();
+        ByteArrayOutputStream flags = new ByteArrayOutputStream();
+        for (String peer : added) {
+            addedBytes.writeBytes(compactPeer(peer));
+            // every peer we advertise is one we dialed, so it accepts connections
+            flags.write(FLAG_CONNECTABLE);
+        }
+        ByteArrayOutputStream droppedBytes = new ByteArrayOutputStream();
+        for (String peer : dropped) {
+            droppedBytes.writeBytes(compactPeer(peer));
+        }
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        message.write((int) extensionId);
+        message.writeBytes("d".getBytes(StandardCharsets.ISO_8859_1));
+        writeString(message, "added", addedBytes.toByteArray());
+        writeString(message, "added.f", flags.toByteArray());
+        writeString(message, "dropped", droppedBytes.toByteArray());
+        message.writeBytes("e".getBytes(StandardCharsets.ISO_8859_1));
+        return message.toByteArray();
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String key, byte[] value) {
+        out.writeBytes((key.length() + ":" + key + value.length + ":").getBytes(StandardCharsets.ISO_8859_1));
+        out.writeBytes(value);
+    }
+
+    // one connection's side of the exchange. Both calls come from the session's worker thread, so
+    // sending never races the worker's own requests on the socket.
+    public final class Link {
+        private final PeerSession session;
+        // the peers this one was last told we are connected to
+        private final Set<String> advertised = new HashSet<>();
+        private long lastSentNanos;
+        private long lastReceivedNanos;
+
+        private Link(PeerSession session) {
+            this.session = session;
+        }
+
+        void onMessage(byte[] message) {
+            long now = System.nanoTime();
+            if (lastReceivedNanos != 0 && now - lastReceivedNanos < MIN_RECEIVE_INTERVAL_NANOS) {
+                return;
+            }
+            lastReceivedNanos = now;
+            List<String> added = new ArrayList<>();
+            int seeds = 0;
+            int dropped;
+            try {
+                BencodeReader.Dict dict = BencodeReader.readDict(message, 2, message.length);
+                if (dict.isString("added")) {
+                    ByteBuffer peers = dict.getBytes("added");
+                    ByteBuffer flags = dict.isString("added.f") ? dict.getBytes("added.f") : ByteBuffer.allocate(0);
+                    while (peers.remaining() >= 6 && added.size() < MAX_ENTRIES) {
+                        // the flags line up with the addresses, so each is read even if its address is skipped
+                        int flag = flags.hasRemaining() ? flags.get() & 0xff : 0;
+                        List<String> peer = TrackerClient.parseCompactPeers(peers.slice().limit(6));
+                        peers.position(peers.position() + 6);
+                        if (!peer.isEmpty()) {
+                            added.add(peer.get(0));
+                            seeds += (flag & FLAG_SEED) != 0 ? 1 : 0;
+                        }
+                    }
+                }
+                // a peer another client lost says nothing about whether we can reach it, so these are
+                // only counted
+                dropped = dict.isString("dropped") ? dict.getBytes("dropped").remaining() / 6 : 0;
+            } catch (RuntimeException e) {
+                System.out.println("Ignoring malformed PEX message from " + session.getPeer() + ": " + e.getMessage());
+                return;
+            }
+            int fresh = peerStore.addAll(added, "pex via " + session.getPeer());
+            if (Log.INFO) {
+                System.out.println("Peer " + session.getPeer() + " exchanged " + added.size() + " peers (" + fresh
+                        + " new, " + seeds + " seeds), " + dropped + " dropped");
+            }
+        }
+
+        // sends the changes since the last message once the interval has passed, if the peer takes PEX
+        void maybeSend() throws IOException {
+            long extensionId = session.getPexExtensionId();
+            long now = System.nanoTime();
+            if (extensionId <= 0 || (lastSentNanos != 0 && now - lastSentNanos < SEND_INTERVAL_NANOS)) {
+                return;
+            }
+            Set<String> connected = new LinkedHashSet<>(peerStore.getConnected());
+            connected.remove(session.getPeer());
+            List<String> added = new ArrayList<>();
+            for (String peer : connected) {
+                if (added.size() < MAX_ENTRIES && !advertised.contains(peer) && compactPeer(peer) != null) {
+                    added.add(peer);
+                }
+            }
+            List<String> dropped = new ArrayList<>();
+            for (String peer : advertised) {
+                if (dropped.size() < MAX_ENTRIES && !connected.contains(peer)) {
+                    dropped.add(peer);
+                }
+            }
+            if (added.isEmpty() && dropped.isEmpty()) {
+                // nothing to say yet, the first message goes out as soon as there is
+                return;
+            }
+            session.getConnection().sendMessage(TorrentDownloader.EXTENSION_MESSAGE_ID,
+                    createMessage(extensionId, added, dropped));
+            advertised.addAll(added);
+            dropped.forEach(advertised::remove);
+            lastSentNanos = now;
+        }
+    }
+}
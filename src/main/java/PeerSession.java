@@ -0,0 +1,486 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.function.BooleanSupplier;
+
+// a long-lived connection to one peer: the handshake, bitfield and interest negotiation happen once,
+// then any number of pieces can be downloaded over the same socket
+public class PeerSession implements Closeable {
+
+    private static final int PEX_ID = TorrentDownloader.localExtensionId("ut_pex");
+    // for magnet links, whose piece count is only known once the metadata has arrived
+    public static final int UNKNOWN_PIECE_COUNT = -1;
+    // the most pieces an info dict within MetadataFetcher's size cap can describe, 20 bytes of hash each;
+    // bounds what a peer can make us record before the real count is known
+    private static final int MAX_UNKNOWN_PIECES = MetadataFetcher.MAX_METADATA_SIZE / 20;
+
+    private final String peer;
+    private final PeerConnection connection;
+    // hex, from the peer's handshake
+    private String peerId;
+    private final BitSet peerPieces = new BitSet();
+    private int pieceCount;
+    // bytes in the peer's bitfield message, -1 until one arrives
+    private int bitfieldLength = -1;
+    private boolean choked = true;
+    private boolean interested = false;
+    private long metadataExtensionId = -1;
+    private volatile long pexExtensionId = -1;
+    // size of the info dict in bytes as the peer announced it, -1 if it didn't
+    private long metadataSize = -1;
+    private boolean extensionHandshakeReceived;
+    private final PipelineDepth pipelineDepth;
+    // the depth last written to the log, so only changes are printed
+    private int loggedDepth;
+    private volatile PiecePicker picker;
+    private volatile DownloadMetrics.Peer metrics;
+    // the torrent's part of a Session's rate cap, null when there is none
+    private volatile BandwidthLimiter.Share bandwidth;
+    // null unless the torrent allows peer exchange
+    private volatile PeerExchange.Link peerExchange;
+
+    private PeerSession(String peer, PeerConnection connection, int pieceCount) {
+        this.peer = peer;
+        this.connection = connection;
+        this.pieceCount = pieceCount;
+        this.pipelineDepth = PipelineDepth.fromConfig(TorrentDownloader.getConfig());
+        this.loggedDepth = pipelineDepth.current();
+    }
+
+    // dials the peer with the configured timeouts, see ConnectionManager
+    // pieceCount is the torrent's, or UNKNOWN_PIECE_COUNT until attach() for a magnet link
+    public static PeerSession open(String peer, String infoHash, int pieceCount, boolean isMagnetHandshake)
+            throws IOException {
+        return ConnectionManager.open(peer, infoHash, pieceCount, isMagnetHandshake);
+    }
+
+    public static PeerSession open(String peer, PeerConnection connection, String infoHash, int pieceCount,
+                                   boolean isMagnetHandshake) {
+        PeerSession session = new PeerSession(peer, connection, pieceCount);
+        // the extension bit goes out on every handshake, for reqq and ut_pex; magnet downloads need it back
+        byte[] handshake = TorrentDownloader.performHandshake(infoHash, connection, isMagnetHandshake, true);
+        session.peerId = TorrentDownloader.peerIdOf(handshake);
+        if (Log.DEBUG) {
+            System.out.println("Peer ID: " + session.peerId);
+        }
+        byte[] firstMessage = session.readMessage();
+        if (firstMessage.length == 0 || firstMessage[0] != TorrentDownloader.BITFIELD_MESSAGE_ID) {
+            if (Log.INFO) {
+                System.out.println("Expected bitfield message, received different message type: "
+                        + (firstMessage.length == 0 ? "keep-alive" : firstMessage[0]));
+            }
+        } else {
+            if (Log.DEBUG) {
+                System.out.println("Received bitfield message");
+            }
+        }
+        if (isMagnetHandshake) {
+            session.negotiateExtensions();
+        } else if (TorrentDownloader.supportsExtensions(handshake)) {
+            // nothing here depends on the reply, it is picked up whenever it arrives
+            connection.sendMessage(TorrentDownloader.createExtensionHandshakeMessage(TorrentDownloader.SUPPORTED_EXTENSIONS));
+        }
+        return session;
+    }
+
+    private void negotiateExtensions() {
+        connection.sendMessage(TorrentDownloader.createExtensionHandshakeMessage(TorrentDownloader.SUPPORTED_EXTENSIONS));
+        while (!extensionHandshakeReceived) {
+            readMessage();
+        }
+        if (Log.DEBUG) {
+            System.out.println("Peer " + peer + " metadata extension ID: " + metadataExtensionId);
+        }
+    }
+
+    // a peer may send its extension handshake again at any time to update it
+    private void onExtensionHandshake(byte[] message) {
+        BencodeReader.Dict handshake = BencodeReader.readDict(message, 2, message.length);
+        if (handshake.containsKey("m") && handshake.getDict("m").containsKey("ut_metadata")) {
+            metadataExtensionId = handshake.getDict("m").getLong("ut_metadata");
+        }
+        if (handshake.containsKey("m") && handshake.getDict("m").containsKey("ut_pex")) {
+            // 0 means the peer turned it off again
+            pexExtensionId = handshake.getDict("m").getLong("ut_pex");
+        }
+        if (handshake.containsKey("metadata_size")) {
+            metadataSize = handshake.getLong("metadata_size");
+        }
+        if (handshake.containsKey("reqq")) {
+            // the most requests the peer queues before it starts dropping them
+            pipelineDepth.setPeerLimit((int) Math.min(Integer.MAX_VALUE, handshake.getLong("reqq")));
+        }
+        extensionHandshakeReceived = true;
+    }
+
+    // reads the next message and keeps the choke state and the peer's piece set current
+    byte[] readMessage() {
+        return readMessage(null);
+    }
+
+    private byte[] readMessage(PeerConnection.BlockTarget target) {
+        byte[] message = target == null ? connection.waitForMessage() : connection.waitForMessage(target);
+        if (message.length == 0) {
+            return message;
+        }
+        switch (message[0]) {
+            case TorrentDownloader.CHOKE_MESSAGE_ID -> choked = true;
+            case TorrentDownloader.UNCHOKE_MESSAGE_ID -> choked = false;
+            case TorrentDownloader.HAVE_MESSAGE_ID -> {
+                int index = ByteBuffer.wrap(message, 1, 4).getInt();
+                if (index < 0 || index >= (pieceCount == UNKNOWN_PIECE_COUNT ? MAX_UNKNOWN_PIECES : pieceCount)) {
+                    throw new RuntimeException("Peer " + peer + " sent HAVE for nonexistent piece " + index);
+                }
+                addPeerPiece(index);
+            }
+            case TorrentDownloader.BITFIELD_MESSAGE_ID -> {
+                bitfieldLength = message.length - 1;
+                if (pieceCount == UNKNOWN_PIECE_COUNT ? bitfieldLength > (MAX_UNKNOWN_PIECES + 7) / 8
+                        : bitfieldLength != (pieceCount + 7) / 8) {
+                    throw new RuntimeException("Peer " + peer + " sent a bitfield of " + bitfieldLength + " bytes");
+                }
+                int limit = Math.min(bitfieldLength * 8,
+                        pieceCount == UNKNOWN_PIECE_COUNT ? MAX_UNKNOWN_PIECES : pieceCount);
+                for (int i = limit; i < bitfieldLength * 8; i++) {
+                    if ((message[1 + i / 8] & (0x80 >>> (i % 8))) != 0) {
+                        throw new RuntimeException("Peer " + peer + " sent a bitfield with spare bits set");
+                    }
+                }
+                for (int i = 0; i < limit; i++) {
+                    if ((message[1 + i / 8] & (0x80 >>> (i % 8))) != 0) {
+                        addPeerPiece(i);
+                    }
+                }
+            }
+            case TorrentDownloader.EXTENSION_MESSAGE_ID -> {
+                if (message.length > 1 && message[1] == 0) {
+                    onExtensionHandshake(message);
+                } else if (message.length > 1 && message[1] == PEX_ID && peerExchange != null) {
+                    peerExchange.onMessage(message);
+                }
+            }
+            default -> {
+            }
+        }
+        return message;
+    }
+
+    // skips over state messages until the next extension message that is not a handshake
+    public byte[] awaitExtensionMessage() {
+        while (true) {
+            byte[] message = readMessage();
+            if (message.length > 1 && message[0] == TorrentDownloader.EXTENSION_MESSAGE_ID && message[1] != 0) {
+                return message;
+            }
+        }
+    }
+
+    // the next message for one of our extensions, by the ID we gave it in our extension handshake
+    public byte[] awaitExtensionMessage(int localExtensionId) {
+        while (true) {
+            byte[] message = awaitExtensionMessage();
+            if (message[1] == localExtensionId) {
+                return message;
+            }
+        }
+    }
+
+    private void addPeerPiece(int index) {
+        if (peerPieces.get(index)) {
+            return;
+        }
+        peerPieces.set(index);
+        if (picker != null) {
+            picker.onHave(index);
+        }
+    }
+
+    // what a peer sent before the piece count was known has to fit it once it is: BEP 3 wants the bitfield
+    // to be exactly one bit per piece, rounded up to whole bytes with the spare bits clear
+    private void checkPieceCount() {
+        if (bitfieldLength >= 0 && bitfieldLength != (pieceCount + 7) / 8) {
+            throw new RuntimeException("Peer " + peer + " sent a bitfield of " + bitfieldLength + " bytes");
+        }
+        if (peerPieces.length() > pieceCount) {
+            throw new RuntimeException("Peer " + peer + " has nonexistent piece " + (peerPieces.length() - 1));
+        }
+    }
+
+    // counts this peer's pieces in the picker's availability index and keeps them current from now on. A
+    // session opened for a magnet link learns the piece count here and drops the peer if what it already
+    // sent doesn't fit.
+    public void attach(PiecePicker piecePicker) {
+        if (pieceCount == UNKNOWN_PIECE_COUNT) {
+            pieceCount = piecePicker.getNumPieces();
+            checkPieceCount();
+        }
+        this.picker = piecePicker;
+        piecePicker.addPeer(peerPieces);
+    }
+
+    public synchronized void detach() {
+        if (picker != null) {
+            picker.removePeer(peerPieces);
+            picker = null;
+        }
+    }
+
+    private void awaitUnchoke() throws IOException {
+        if (!interested) {
+            connection.sendMessage(new byte[]{0, 0, 0, 1, TorrentDownloader.INTERESTED_MESSAGE_ID});
+            interested = true;
+        }
+        while (choked) {
+            readMessage();
+        }
+        if (Log.DEBUG) {
+            System.out.println("Received unchoke message");
+        }
+    }
+
+    public byte[] downloadPiece(int index, int pieceLength, int window) throws IOException {
+        return downloadPiece(index, pieceLength, window, () -> false);
+    }
+
+    public byte[] downloadPiece(int index, int pieceLength, int window, BooleanSupplier abandoned) throws IOException {
+        return downloadPiece(index, pieceLength, PipelineDepth.fixed(window), abandoned);
+    }
+
+    // with as many requests outstanding as this session's PipelineDepth currently wants
+    public byte[] downloadPiece(int index, int pieceLength, BooleanSupplier abandoned) throws IOException {
+        byte[] piece = downloadPiece(index, pieceLength, pipelineDepth, abandoned);
+        int depth = pipelineDepth.current();
+        if (depth != loggedDepth) {
+            if (Log.DEBUG) {
+                System.out.println("Peer " + peer + " pipeline " + pipelineDepth);
+            }
+            loggedDepth = depth;
+        }
+        return piece;
+    }
+
+    // keeps up to `depth` block requests outstanding and fills the piece in by begin offset,
+    // so blocks may arrive in any order. Returns null if `abandoned` turns true first (another peer
+    // delivered the piece in endgame), after sending CANCEL for every block still outstanding.
+    // A peer that stays silent for the request timeout meanwhile fails the read, and with it the piece,
+    // which the worker hands back to the picker; a session that throws is not used again.
+    private byte[] downloadPiece(int index, int pieceLength, PipelineDepth depth, BooleanSupplier abandoned) throws IOException {
+        connection.setReadTimeout(TorrentDownloader.getConfig().getRequestTimeoutMillis());
+        PieceAssembly assembly = new PieceAssembly(index, pieceLength, depth, metrics);
+        while (assembly.received < assembly.blocks) {
+            if (abandoned.getAsBoolean()) {
+                cancelOutstanding(assembly);
+                connection.setReadTimeout(0);
+                return null;
+            }
+            if (choked) {
+                // a choke discards every outstanding request, so they have to be sent again
+                for (int i = 0; i < assembly.blocks; i++) {
+                    assembly.requestedBlocks[i] = assembly.receivedBlocks[i];
+                }
+                assembly.inFlight = 0;
+                awaitUnchoke();
+            }
+            // top the window back up before waiting for the next block
+            int window = depth.current();
+            for (int blockIndex = 0; blockIndex < assembly.blocks && assembly.inFlight < window; blockIndex++) {
+                if (assembly.requestedBlocks[blockIndex]) {
+                    continue;
+                }
+                int offset = blockIndex * TorrentDownloader.BLOCK_SIZE;
+                int blockLength = Math.min(TorrentDownloader.BLOCK_SIZE, pieceLength - offset);
+                acquireBandwidth(blockLength);
+                connection.sendMessage(TorrentDownloader.REQUEST_MESSAGE_ID, TCPService.createRequestPayload(index, offset, blockLength));
+                assembly.requestedBlocks[blockIndex] = true;
+                assembly.sentNanos[blockIndex] = System.nanoTime();
+                assembly.deliveredAtSend[blockIndex] = depth.deliveredBytes();
+                assembly.inFlight++;
+            }
+            // blocks are read straight into the piece by the assembly, other messages just update state
+            readMessage(assembly);
+        }
+        // with nothing requested the peer may be quiet for as long as it likes
+        connection.setReadTimeout(0);
+        return assembly.piece;
+    }
+
+    // holding back requests is what keeps the peer's replies under the cap
+    private void acquireBandwidth(int bytes) throws IOException {
+        BandwidthLimiter.Share share = bandwidth;
+        if (share == null) {
+            return;
+        }
+        try {
+            share.acquire(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+        }
+    }
+
+    // the piece being downloaded and which of its blocks have been requested and received
+    private static class PieceAssembly implements PeerConnection.BlockTarget {
+        final int index;
+        final int pieceLength;
+        final int blocks;
+        final byte[] piece;
+        final boolean[] requestedBlocks;
+        final boolean[] receivedBlocks;
+        // when each block was last requested and how much the peer had delivered by then, 0 if it
+        // arrived without a request of ours still standing
+        final long[] sentNanos;
+        final long[] deliveredAtSend;
+        final PipelineDepth depth;
+        final DownloadMetrics.Peer metrics;
+        int inFlight;
+        int received;
+
+        PieceAssembly(int index, int pieceLength, PipelineDepth depth, DownloadMetrics.Peer metrics) {
+            this.index = index;
+            this.pieceLength = pieceLength;
+            this.depth = depth;
+            this.metrics = metrics;
+            this.blocks = (pieceLength + TorrentDownloader.BLOCK_SIZE - 1) / TorrentDownloader.BLOCK_SIZE;
+            this.piece = new byte[pieceLength];
+            this.requestedBlocks = new boolean[blocks];
+            this.receivedBlocks = new boolean[blocks];
+            this.sentNanos = new long[blocks];
+            this.deliveredAtSend = new long[blocks];
+        }
+
+        @Override
+        public byte[] bufferFor(int pieceIndex, int begin, int blockLength) {
+            int blockSize = TorrentDownloader.BLOCK_SIZE;
+            int blockIndex = begin / blockSize;
+            if (pieceIndex != index) {
+                // a block we cancelled earlier that was already on the wire
+                return null;
+            }
+            if (begin < 0 || begin % blockSize != 0 || blockIndex >= blocks
+                    || blockLength != Math.min(blockSize, pieceLength - begin)) {
+                throw new RuntimeException("Unexpected block from peer: piece " + pieceIndex + ", begin " + begin + ", length " + blockLength);
+            }
+            if (receivedBlocks[blockIndex]) {
+                return null;
+            }
+            if (Log.DEBUG) {
+                System.out.println("Received piece message for block: " + blockIndex + " out of " + blocks);
+            }
+            // a failed read of the block fails the whole piece, so it can be counted before it arrives
+            receivedBlocks[blockIndex] = true;
+            received++;
+            long rttNanos = 0;
+            if (requestedBlocks[blockIndex]) {
+                inFlight--;
+                rttNanos = System.nanoTime() - sentNanos[blockIndex];
+                depth.onBlock(blockLength, sentNanos[blockIndex], deliveredAtSend[blockIndex]);
+            } else {
+                depth.onBlock(blockLength, 0, 0);
+                // a block that was already on the wire when the peer choked us
+                requestedBlocks[blockIndex] = true;
+            }
+            if (metrics != null) {
+                metrics.onBlock(blockLength, rttNanos);
+            }
+            return piece;
+        }
+    }
+
+    private void cancelOutstanding(PieceAssembly assembly) throws IOException {
+        int blockSize = TorrentDownloader.BLOCK_SIZE;
+        for (int blockIndex = 0; blockIndex < assembly.blocks; blockIndex++) {
+            if (assembly.requestedBlocks[blockIndex] && !assembly.receivedBlocks[blockIndex]) {
+                int offset = blockIndex * blockSize;
+                int blockLength = Math.min(blockSize, assembly.pieceLength - offset);
+                // CANCEL carries the same index, begin, length payload as the REQUEST it withdraws
+                connection.sendMessage(TorrentDownloader.CANCEL_MESSAGE_ID, TCPService.createRequestPayload(assembly.index, offset, blockLength));
+            }
+        }
+    }
+
+    public String getPeer() {
+        return peer;
+    }
+
+    public PeerConnection getConnection() {
+        return connection;
+    }
+
+    public String getPeerId() {
+        return peerId;
+    }
+
+    public long getMetadataExtensionId() {
+        return metadataExtensionId;
+    }
+
+    public long getMetadataSize() {
+        return metadataSize;
+    }
+
+    public PipelineDepth getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    // counts this session's blocks towards a download's metrics until it is closed
+    public void setMetrics(DownloadMetrics.Peer metrics) {
+        this.metrics = metrics;
+    }
+
+    public void setBandwidth(BandwidthLimiter.Share bandwidth) {
+        this.bandwidth = bandwidth;
+    }
+
+    public void setPeerExchange(PeerExchange.Link peerExchange) {
+        this.peerExchange = peerExchange;
+    }
+
+    public boolean hasPeerExchange() {
+        return peerExchange != null;
+    }
+
+    // tells the peer about our other connections if it takes PEX and the last update is old enough
+    public void exchangePeers() throws IOException {
+        PeerExchange.Link link = peerExchange;
+        if (link != null) {
+            link.maybeSend();
+        }
+    }
+
+    // the ID the peer wants ut_pex messages sent with, -1 or 0 if it doesn't take them
+    public long getPexExtensionId() {
+        return pexExtensionId;
+    }
+
+    public boolean isAttached() {
+        return picker != null;
+    }
+
+    public boolean hasMetrics() {
+        return metrics != null;
+    }
+
+    public boolean isChoked() {
+        return choked;
+    }
+
+    public boolean hasPiece(int index) {
+        return peerPieces.get(index);
+    }
+
+    BitSet getPeerPieces() {
+        return peerPieces;
+    }
+
+    @Override
+    public void close() throws IOException {
+        detach();
+        DownloadMetrics.Peer peerMetrics = metrics;
+        if (peerMetrics != null) {
+            peerMetrics.disconnected();
+        }
+        connection.close();
+    }
+}
@@ -0,0 +1,163 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+// every peer address heard of for one torrent, from any tracker or from peer exchange, kept once each
+// in the order it was first seen. Addresses that are new are handed to the subscribers, so a running
+// download can start workers for peers that a re-announce or a PEX message turns up. The store also
+// keeps each peer's connection history: a peer whose worker gave up is handed out again when a source
+// mentions it after a backoff that doubles with every failure, and never after MAX_FAILURES.
+public class PeerStore {
+
+    private static final int MAX_FAILURES = 5;
+    private static final long RETRY_BACKOFF_NANOS = 30_000_000_000L;
+
+    private static final class Entry {
+        // where we first heard of the peer
+        final String source;
+        int attempts;
+        int failures;
+        long lastAttemptNanos;
+        // a worker is running for it
+        boolean active;
+        // a handshaken session is open right now
+        boolean connected;
+
+        Entry(String source) {
+            this.source = source;
+        }
+    }
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private final List<Consumer<String>> subscribers = new CopyOnWriteArrayList<>();
+
+    public PeerStore() {
+    }
+
+    public PeerStore(Collection<String> peers) {
+        addAll(peers, "initial");
+    }
+
+    // returns how many of the peers were new; known peers that are due for a retry are handed to the
+    // subscribers again without counting as new
+    public int addAll(Collection<String> peers, String source) {
+        List<String> added = new ArrayList<>();
+        List<Consumer<String>> notify;
+        int fresh = 0;
+        synchronized (this) {
+            long now = System.nanoTime();
+            for (String peer : peers) {
+                Entry entry = entries.get(peer);
+                if (entry == null) {
+                    entries.put(peer, new Entry(source));
+                    added.add(peer);
+                    fresh++;
+                } else if (isRetryDue(entry, now)) {
+                    // counts as an attempt already, so a second source in the same moment doesn't add another
+                    entry.lastAttemptNanos = now;
+                    added.add(peer);
+                }
+            }
+            notify = List.copyOf(subscribers);
+        }
+        // outside the lock, subscribers may start connections
+        for (String peer : added) {
+            for (Consumer<String> subscriber : notify) {
+                subscriber.accept(peer);
+            }
+        }
+        return fresh;
+    }
+
+    private static boolean isRetryDue(Entry entry, long now) {
+        if (entry.active || entry.failures == 0 || entry.failures >= MAX_FAILURES) {
+            return false;
+        }
+        return now - entry.lastAttemptNanos >= RETRY_BACKOFF_NANOS << (entry.failures - 1);
+    }
+
+    // returns the peers known so far; every peer added after that is passed to the subscriber
+    public synchronized List<String> subscribe(Consumer<String> subscriber) {
+        subscribers.add(subscriber);
+        return new ArrayList<>(entries.keySet());
+    }
+
+    public void unsubscribe(Consumer<String> subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    // a worker is taking the peer on, whether it dials or reuses an open session
+    public synchronized void workerStarted(String peer) {
+        Entry entry = entries.computeIfAbsent(peer, key -> new Entry("unknown"));
+        entry.attempts++;
+        entry.lastAttemptNanos = System.nanoTime();
+        entry.active = true;
+    }
+
+    // failed means the worker gave up on the peer while there was still something to download
+    public synchronized void workerFinished(String peer, boolean failed) {
+        Entry entry = entries.get(peer);
+        if (entry == null) {
+            return;
+        }
+        entry.active = false;
+        entry.connected = false;
+        entry.failures = failed ? entry.failures + 1 : 0;
+    }
+
+    public synchronized void connected(String peer) {
+        Entry entry = entries.get(peer);
+        if (entry != null) {
+            entry.connected = true;
+        }
+    }
+
+    public synchronized void disconnected(String peer) {
+        Entry entry = entries.get(peer);
+        if (entry != null) {
+            entry.connected = false;
+        }
+    }
+
+    // the peers with an open session, which is what we tell others about over peer exchange
+    public synchronized List<String> getConnected() {
+        List<String> connected = new ArrayList<>();
+        entries.forEach((peer, entry) -> {
+            if (entry.connected) {
+                connected.add(peer);
+            }
+        });
+        return connected;
+    }
+
+    public synchronized List<String> getPeers() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    public synchronized String getSource(String peer) {
+        Entry entry = entries.get(peer);
+        return entry == null ? null : entry.source;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // how many peers each kind of source contributed, and how many were ever tried and gave up
+    public synchronized String summary() {
+        Map<String, Integer> bySource = new LinkedHashMap<>();
+        int tried = 0;
+        int failed = 0;
+        for (Entry entry : entries.values()) {
+            // trackers count by their URL, every "pex via <peer>" counts as "pex"
+            bySource.merge(entry.source.split(" ")[0], 1, Integer::sum);
+            tried += entry.attempts > 0 ? 1 : 0;
+            failed += entry.failures > 0 ? 1 : 0;
+        }
+        return "Knew " + entries.size() + " peers " + bySource + ", tried " + tried + ", " + failed + " failed";
+    }
+}
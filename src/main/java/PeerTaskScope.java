@@ -0,0 +1,170 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// a structured scope for peer and tracker tasks, modelled on StructuredTaskScope.ShutdownOnFailure:
+// the first failing subtask shuts the scope down, shutdown interrupts every other subtask and closes
+// the connections they registered, and close() does not return until all of them have exited
+public class PeerTaskScope implements AutoCloseable {
+
+    public enum ExecutionMode {
+        // a fixed pool with one platform thread per task, the original behaviour
+        PLATFORM_POOL,
+        // one virtual thread per task, needs Java 21 or newer
+        VIRTUAL
+    }
+
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+
+    private final ExecutorService executor;
+    private final List<Future<?>> subtasks = new CopyOnWriteArrayList<>();
+    private final Set<Closeable> resources = ConcurrentHashMap.newKeySet();
+    private volatile Throwable failure;
+    private volatile boolean shutdown;
+
+    public PeerTaskScope(ExecutionMode mode, int platformThreads) {
+        this.executor = mode == ExecutionMode.VIRTUAL
+                ? newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(Math.max(1, platformThreads), runnable -> {
+                    Thread thread = new Thread(runnable, "peer-worker-" + threadCounter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    public static boolean isSupported(ExecutionMode mode) {
+        if (mode != ExecutionMode.VIRTUAL) {
+            return true;
+        }
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    // looked up reflectively so the build keeps targeting older JDKs; the mode simply fails on them
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads need Java 21 or newer, running on " + Runtime.version());
+        }
+    }
+
+    public <T> Future<T> fork(Callable<T> task) {
+        if (shutdown) {
+            // like StructuredTaskScope, forking into a shut down scope is allowed but the task never runs
+            CompletableFuture<T> skipped = new CompletableFuture<>();
+            skipped.cancel(false);
+            return skipped;
+        }
+        Future<T> future;
+        try {
+            future = executor.submit(() -> {
+                try {
+                    return task.call();
+                } catch (Exception | Error e) {
+                    fail(e);
+                    throw e;
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // forked from another thread while the scope was closing
+            CompletableFuture<T> skipped = new CompletableFuture<>();
+            skipped.cancel(false);
+            return skipped;
+        }
+        subtasks.add(future);
+        return future;
+    }
+
+    // blocking reads on a closed connection fail immediately, which is what lets shutdown reach
+    // subtasks that an interrupt alone would not wake
+    public void register(Closeable resource) {
+        resources.add(resource);
+        if (shutdown) {
+            closeQuietly(resource);
+        }
+    }
+
+    public void unregister(Closeable resource) {
+        resources.remove(resource);
+    }
+
+    // also waits for subtasks forked while joining, e.g. workers for peers a re-announce turned up
+    public void join() throws InterruptedException {
+        for (int i = 0; i < subtasks.size(); i++) {
+            Future<?> subtask = subtasks.get(i);
+            try {
+                subtask.get();
+            } catch (ExecutionException | CancellationException e) {
+                // recorded by the subtask itself, see throwIfFailed
+            }
+        }
+    }
+
+    // fails the scope from outside a subtask, e.g. from a pipeline stage the subtasks feed
+    public void fail(Throwable t) {
+        if (!shutdown) {
+            failure = t;
+            shutdown();
+        }
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        for (Future<?> subtask : subtasks) {
+            subtask.cancel(true);
+        }
+        for (Closeable resource : resources) {
+            closeQuietly(resource);
+        }
+    }
+
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    public void throwIfFailed() {
+        if (failure != null) {
+            throw new RuntimeException("Subtask failed: " + failure.getMessage(), failure);
+        }
+    }
+
+    private static void closeQuietly(Closeable resource) {
+        try {
+            resource.close();
+        } catch (IOException e) {
+            // the scope is going away, nothing left to report to
+        }
+    }
+
+    @Override
+    public void close() {
+        shutdown();
+        executor.shutdownNow();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                // keep closing anything a straggler registered after the first sweep
+                resources.forEach(PeerTaskScope::closeQuietly);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,265 @@
+import java.util.BitSet;
+import java.util.concurrent.ThreadLocalRandom;
+
+// tracks which peers have which pieces and hands each worker the rarest piece its own peer can serve
+public class PiecePicker {
+
+    private final int numPieces;
+    private final int blocksPerPiece;
+    private final int lastPieceBlocks;
+    private final long pieceLength;
+    private final long lastPieceLength;
+    // endgame starts once no more than this many blocks are left
+    private final int endgameBlocks;
+    // how many connected peers have each piece
+    private final int[] availability;
+    // how many workers are currently fetching each piece, more than one only in endgame
+    private final int[] downloaders;
+    private final BitSet pending = new BitSet();
+    private final BitSet inProgress = new BitSet();
+    private final BitSet completed = new BitSet();
+    // fully received and waiting on the hash check, never worth duplicating
+    private final BitSet downloaded = new BitSet();
+    // in sequential mode only pieces in [windowStart, windowStart + sequentialWindow) are handed out,
+    // lowest first; 0 for the usual rarest-first order over everything
+    private int sequentialWindow;
+    private int windowStart;
+    private long remainingBlocks;
+    // bytes of the pieces not yet completed, what trackers are told is left
+    private long remainingBytes;
+    private long duplicateRequests;
+    private final long startNanos = System.nanoTime();
+    private long endgameStartNanos;
+    private long ninetyFivePercentNanos;
+    private long completeNanos;
+
+    public PiecePicker(int numPieces, long pieceLength, long totalLength, int endgameBlocks) {
+        this.numPieces = numPieces;
+        this.blocksPerPiece = blocks(pieceLength);
+        this.lastPieceBlocks = blocks(totalLength - (numPieces - 1) * pieceLength);
+        this.pieceLength = pieceLength;
+        this.lastPieceLength = totalLength - (numPieces - 1) * pieceLength;
+        this.remainingBytes = totalLength;
+        this.endgameBlocks = endgameBlocks;
+        this.availability = new int[numPieces];
+        this.downloaders = new int[numPieces];
+        this.remainingBlocks = (long) (numPieces - 1) * blocksPerPiece + lastPieceBlocks;
+        pending.set(0, numPieces);
+    }
+
+    private static int blocks(long length) {
+        return (int) ((length + TorrentDownloader.BLOCK_SIZE - 1) / TorrentDownloader.BLOCK_SIZE);
+    }
+
+    // pieces that are already on disk from an earlier run never get handed out
+    public synchronized void markAlreadyHave(BitSet pieces) {
+        for (int i = pieces.nextSetBit(0); i >= 0 && i < numPieces; i = pieces.nextSetBit(i + 1)) {
+            if (!completed.get(i)) {
+                pending.clear(i);
+                completed.set(i);
+                remainingBlocks -= i == numPieces - 1 ? lastPieceBlocks : blocksPerPiece;
+                remainingBytes -= i == numPieces - 1 ? lastPieceLength : pieceLength;
+            }
+        }
+        if (completed.cardinality() == numPieces) {
+            completeNanos = System.nanoTime();
+            ninetyFivePercentNanos = completeNanos;
+        }
+    }
+
+    // pieces that only cover deselected files are never handed out and count as done
+    public synchronized void skip(BitSet pieces) {
+        markAlreadyHave(pieces);
+    }
+
+    public synchronized void addPeer(BitSet peerPieces) {
+        for (int i = peerPieces.nextSetBit(0); i >= 0 && i < numPieces; i = peerPieces.nextSetBit(i + 1)) {
+            availability[i]++;
+        }
+        notifyAll();
+    }
+
+    public synchronized void removePeer(BitSet peerPieces) {
+        for (int i = peerPieces.nextSetBit(0); i >= 0 && i < numPieces; i = peerPieces.nextSetBit(i + 1)) {
+            availability[i]--;
+        }
+    }
+
+    public synchronized void onHave(int index) {
+        if (index >= 0 && index < numPieces) {
+            availability[index]++;
+            notifyAll();
+        }
+    }
+
+    // for streaming: pieces are fetched in order, at most `windowPieces` ahead of the reader
+    public synchronized void setSequential(int windowPieces) {
+        sequentialWindow = Math.max(1, windowPieces);
+        notifyAll();
+    }
+
+    // back to rarest first over the whole torrent, e.g. once nobody is reading the stream any more
+    public synchronized void clearSequential() {
+        sequentialWindow = 0;
+        notifyAll();
+    }
+
+    // the reader has consumed every piece before `index`
+    public synchronized void advanceWindow(int index) {
+        windowStart = index;
+        notifyAll();
+    }
+
+    // returns the least available pending piece the peer has, ties broken at random so peers spread out,
+    // or in sequential mode the first pending piece in the window. In endgame a peer with nothing pending
+    // to offer is given a piece someone else is already fetching, whichever copy arrives first wins.
+    // Returns null if the peer has nothing we need right now.
+    public synchronized Integer pick(BitSet peerPieces) {
+        int from = sequentialWindow > 0 ? windowStart : 0;
+        int to = sequentialWindow > 0 ? (int) Math.min(numPieces, (long) windowStart + sequentialWindow) : numPieces;
+        int best = -1;
+        int bestAvailability = Integer.MAX_VALUE;
+        int ties = 0;
+        for (int i = pending.nextSetBit(from); i >= 0 && i < to; i = pending.nextSetBit(i + 1)) {
+            if (!peerPieces.get(i)) {
+                continue;
+            }
+            if (sequentialWindow > 0) {
+                best = i;
+                break;
+            }
+            if (availability[i] < bestAvailability) {
+                best = i;
+                bestAvailability = availability[i];
+                ties = 1;
+            } else if (availability[i] == bestAvailability && ThreadLocalRandom.current().nextInt(++ties) == 0) {
+                best = i;
+            }
+        }
+        if (best >= 0) {
+            pending.clear(best);
+            inProgress.set(best);
+            downloaders[best]++;
+            return best;
+        }
+        if (sequentialWindow > 0 && !isEndgame()) {
+            // nothing left to start in the window. A second peer on the piece the reader is waiting for
+            // keeps one slow peer from stalling the whole stream.
+            int head = completed.nextClearBit(windowStart);
+            if (head < to && inProgress.get(head) && !downloaded.get(head) && downloaders[head] < 2 && peerPieces.get(head)) {
+                downloaders[head]++;
+                duplicateRequests++;
+                return head;
+            }
+            return null;
+        }
+        if (!isEndgame()) {
+            return null;
+        }
+        // duplicate the in-progress piece with the fewest workers on it
+        for (int i = inProgress.nextSetBit(from); i >= 0 && i < to; i = inProgress.nextSetBit(i + 1)) {
+            if (peerPieces.get(i) && !downloaded.get(i) && (best < 0 || downloaders[i] < downloaders[best])) {
+                best = i;
+            }
+        }
+        if (best < 0) {
+            return null;
+        }
+        if (endgameStartNanos == 0) {
+            endgameStartNanos = System.nanoTime();
+            if (Log.INFO) {
+                System.out.println("Entering endgame with " + remainingBlocks + " blocks left");
+            }
+        }
+        downloaders[best]++;
+        duplicateRequests++;
+        return best;
+    }
+
+    public synchronized boolean isEndgame() {
+        return remainingBlocks <= endgameBlocks;
+    }
+
+    public synchronized void markDownloaded(int index) {
+        downloaded.set(index);
+    }
+
+    // returns false if another worker already delivered this piece, in which case this copy is discarded
+    public synchronized boolean complete(int index) {
+        downloaders[index]--;
+        if (completed.get(index)) {
+            return false;
+        }
+        inProgress.clear(index);
+        downloaded.clear(index);
+        completed.set(index);
+        remainingBlocks -= index == numPieces - 1 ? lastPieceBlocks : blocksPerPiece;
+        remainingBytes -= index == numPieces - 1 ? lastPieceLength : pieceLength;
+        int completedCount = completed.cardinality();
+        if (ninetyFivePercentNanos == 0 && completedCount * 100L >= numPieces * 95L) {
+            ninetyFivePercentNanos = System.nanoTime();
+        }
+        if (completedCount == numPieces) {
+            completeNanos = System.nanoTime();
+        }
+        notifyAll();
+        return true;
+    }
+
+    // a worker gave up on a piece; it only goes back up for grabs if nobody else is still fetching it
+    public synchronized void release(int index) {
+        downloaders[index]--;
+        downloaded.clear(index);
+        if (downloaders[index] == 0 && !completed.get(index)) {
+            inProgress.clear(index);
+            pending.set(index);
+        }
+        notifyAll();
+    }
+
+    public synchronized boolean isCompleted(int index) {
+        return completed.get(index);
+    }
+
+    // true if the peer could still serve some unfinished piece, either now or once another worker gives it up
+    public synchronized boolean peerHasRemaining(BitSet peerPieces) {
+        BitSet remaining = (BitSet) pending.clone();
+        remaining.or(inProgress);
+        return remaining.intersects(peerPieces);
+    }
+
+    // waits until a piece is released or completed, or a peer announces new pieces
+    public synchronized void awaitChange(long timeoutMillis) throws InterruptedException {
+        if (!isComplete()) {
+            wait(timeoutMillis);
+        }
+    }
+
+    public synchronized boolean isComplete() {
+        return completed.cardinality() == numPieces;
+    }
+
+    public synchronized long remainingBytes() {
+        return remainingBytes;
+    }
+
+    public synchronized int completedCount() {
+        return completed.cardinality();
+    }
+
+    public int getNumPieces() {
+        return numPieces;
+    }
+
+    // total time, the tail from 95% to 100% of pieces, and how much of it ran in endgame
+    public synchronized String completionSummary() {
+        if (completeNanos == 0) {
+            return "Download incomplete: " + completed.cardinality() + " of " + numPieces + " pieces";
+        }
+        return String.format("Download finished in %d ms, tail (95%% to 100%%) %d ms, endgame %d ms with %d duplicate piece requests",
+                (completeNanos - startNanos) / 1_000_000,
+                (completeNanos - ninetyFivePercentNanos) / 1_000_000,
+                endgameStartNanos == 0 ? 0 : (completeNanos - endgameStartNanos) / 1_000_000,
+                duplicateRequests);
+    }
+}
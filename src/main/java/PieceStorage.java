@@ -0,0 +1,225 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+// writes every piece straight to its offset in preallocated files, so nothing has to be held in memory
+// until the download finishes. A single-file torrent is stored at the given path, a multi-file torrent
+// under it as a directory; pieces that cross a file boundary are split using the torrent's FileLayout.
+public class PieceStorage implements Closeable {
+
+    public enum Mode {
+        CHANNEL,
+        MMAP
+    }
+
+    // a single MappedByteBuffer is limited to 2 GiB, so large files are mapped in regions
+    private static final long MAP_REGION_SIZE = 1L << 30;
+
+    private final FileLayout layout;
+    private final Torrent torrent;
+    // null for deselected files, and for missing files when opened read-only
+    private final FileChannel[] channels;
+    private final Mode mode;
+    private final MappedByteBuffer[][] regions;
+
+    private PieceStorage(Torrent torrent, FileChannel[] channels, Mode mode) {
+        this.torrent = torrent;
+        this.layout = torrent.getLayout();
+        this.channels = channels;
+        this.mode = mode;
+        this.regions = mode == Mode.MMAP ? new MappedByteBuffer[channels.length][] : null;
+        for (int i = 0; regions != null && i < channels.length; i++) {
+            regions[i] = new MappedByteBuffer[(int) ((layout.getFileLength(i) + MAP_REGION_SIZE - 1) / MAP_REGION_SIZE)];
+        }
+    }
+
+    // where each of the torrent's files lives
+    public static List<Path> filePaths(String storagePath, Torrent torrent) {
+        Path root = Paths.get(storagePath);
+        if (!torrent.isMultiFile()) {
+            return List.of(root);
+        }
+        List<Path> paths = new ArrayList<>();
+        for (Torrent.FileEntry file : torrent.getFiles()) {
+            Path path = root;
+            for (String component : file.getPath()) {
+                path = path.resolve(component);
+            }
+            paths.add(path);
+        }
+        return paths;
+    }
+
+    public static PieceStorage open(String storagePath, Torrent torrent, Set<Integer> skippedFiles, Mode mode) {
+        List<Path> paths = filePaths(storagePath, torrent);
+        FileChannel[] channels = new FileChannel[paths.size()];
+        try {
+            for (int i = 0; i < channels.length; i++) {
+                if (skippedFiles.contains(i)) {
+                    continue;
+                }
+                channels[i] = openPreallocated(paths.get(i), torrent.getLayout().getFileLength(i));
+            }
+            return new PieceStorage(torrent, channels, mode);
+        } catch (IOException e) {
+            closeAll(channels);
+            throw new RuntimeException("Error opening storage file " + storagePath + ": " + e.getMessage());
+        }
+    }
+
+    // for reading back pieces that are already on disk; files that don't exist are left out
+    public static PieceStorage openReadOnly(String storagePath, Torrent torrent) throws IOException {
+        List<Path> paths = filePaths(storagePath, torrent);
+        FileChannel[] channels = new FileChannel[paths.size()];
+        try {
+            for (int i = 0; i < channels.length; i++) {
+                if (Files.isRegularFile(paths.get(i))) {
+                    channels[i] = FileChannel.open(paths.get(i), StandardOpenOption.READ);
+                }
+            }
+        } catch (IOException e) {
+            closeAll(channels);
+            throw e;
+        }
+        return new PieceStorage(torrent, channels, Mode.CHANNEL);
+    }
+
+    private static FileChannel openPreallocated(Path path, long length) throws IOException {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.SPARSE);
+        if (channel.size() > length) {
+            channel.truncate(length);
+        } else if (channel.size() < length) {
+            // writing the last byte extends the file without touching the blocks in between
+            channel.write(ByteBuffer.wrap(new byte[1]), length - 1);
+        }
+        return channel;
+    }
+
+    // segments that fall in deselected files are dropped
+    public void writePiece(int index, byte[] piece) {
+        if (piece.length != torrent.getPieceLength(index)) {
+            throw new IllegalArgumentException("Piece " + index + " has length " + piece.length);
+        }
+        try {
+            layout.forEachPieceSegment(index, piece.length, (fileIndex, fileOffset, bufferOffset, length) -> {
+                if (channels[fileIndex] == null) {
+                    return;
+                }
+                if (mode == Mode.MMAP) {
+                    writeMapped(fileIndex, fileOffset, piece, bufferOffset, length);
+                } else {
+                    ByteBuffer buffer = ByteBuffer.wrap(piece, bufferOffset, length);
+                    while (buffer.hasRemaining()) {
+                        channels[fileIndex].write(buffer, fileOffset + buffer.position() - bufferOffset);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            throw new RuntimeException("Error writing piece " + index + " to file: " + e.getMessage());
+        }
+    }
+
+    // returns null if part of the piece lives in a file that isn't there
+    public byte[] readPiece(int index) throws IOException {
+        byte[] piece = new byte[(int) torrent.getPieceLength(index)];
+        boolean[] missing = new boolean[1];
+        layout.forEachPieceSegment(index, piece.length, (fileIndex, fileOffset, bufferOffset, length) -> {
+            FileChannel channel = channels[fileIndex];
+            if (channel == null || channel.size() < fileOffset + length) {
+                missing[0] = true;
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(piece, bufferOffset, length);
+            while (buffer.hasRemaining()) {
+                channel.read(buffer, fileOffset + buffer.position() - bufferOffset);
+            }
+        });
+        return missing[0] ? null : piece;
+    }
+
+    // sends part of a stored piece straight from the page cache to the target, without copying it
+    // through the heap
+    public void transferBlock(int index, int begin, int length, WritableByteChannel target) throws IOException {
+        layout.forEachSegment(index * torrent.getPieceLength(0) + begin, length, (fileIndex, fileOffset, bufferOffset, segmentLength) -> {
+            FileChannel channel = channels[fileIndex];
+            if (channel == null) {
+                throw new IOException("File " + fileIndex + " is not stored");
+            }
+            long sent = 0;
+            while (sent < segmentLength) {
+                long transferred = channel.transferTo(fileOffset + sent, segmentLength - sent, target);
+                if (transferred <= 0 && channel.size() < fileOffset + segmentLength) {
+                    throw new IOException("File " + fileIndex + " is shorter than expected");
+                }
+                sent += transferred;
+            }
+        });
+    }
+
+    private void writeMapped(int fileIndex, long offset, byte[] piece, int pieceOffset, int length) throws IOException {
+        int written = 0;
+        while (written < length) {
+            long position = offset + written;
+            int regionIndex = (int) (position / MAP_REGION_SIZE);
+            int regionOffset = (int) (position % MAP_REGION_SIZE);
+            // duplicate so concurrent writers don't share a position
+            ByteBuffer region = region(fileIndex, regionIndex).duplicate();
+            int chunk = Math.min(length - written, region.capacity() - regionOffset);
+            region.position(regionOffset);
+            region.put(piece, pieceOffset + written, chunk);
+            written += chunk;
+        }
+    }
+
+    private synchronized MappedByteBuffer region(int fileIndex, int regionIndex) throws IOException {
+        if (regions[fileIndex][regionIndex] == null) {
+            long start = regionIndex * MAP_REGION_SIZE;
+            regions[fileIndex][regionIndex] = channels[fileIndex].map(FileChannel.MapMode.READ_WRITE, start,
+                    Math.min(MAP_REGION_SIZE, layout.getFileLength(fileIndex) - start));
+        }
+        return regions[fileIndex][regionIndex];
+    }
+
+    private static void closeAll(FileChannel[] channels) {
+        for (FileChannel channel : channels) {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException ignored) {
+                // already failing
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (regions != null) {
+                for (MappedByteBuffer[] fileRegions : regions) {
+                    for (MappedByteBuffer region : fileRegions) {
+                        if (region != null) {
+                            region.force();
+                        }
+                    }
+                }
+            }
+        } finally {
+            closeAll(channels);
+        }
+    }
+}
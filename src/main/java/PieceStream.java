@@ -0,0 +1,204 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+// the torrent's content as an InputStream that can be read while the download is still running. The
+// picker fetches pieces in order, at most bufferBytes' worth ahead of the read cursor, so verified
+// pieces waiting for the reader never hold more memory than that and a slow reader slows the download
+// down instead. Pieces that were already on disk from an earlier run are read back from the file.
+public class PieceStream extends InputStream {
+
+    private final Torrent torrent;
+    private final String storageFilePath;
+    private final int windowPieces;
+    private final long createdNanos = System.nanoTime();
+
+    // the rest is guarded by this
+    private final Map<Integer, byte[]> buffered = new HashMap<>();
+    private long bufferedBytes;
+    private long peakBufferedBytes;
+    private PiecePicker picker;
+    private BitSet onDisk = new BitSet();
+    private PieceStorage diskReader;
+    // stops the download if the reader goes away early
+    private Runnable cancel;
+    private Thread downloadThread;
+    private int cursorPiece;
+    private byte[] current;
+    private int currentOffset;
+    private boolean finished;
+    private boolean closed;
+    private long firstByteNanos;
+
+    public PieceStream(Torrent torrent, String storageFilePath, long bufferBytes) {
+        this.torrent = torrent;
+        this.storageFilePath = storageFilePath;
+        this.windowPieces = (int) Math.max(1, Math.min(torrent.getPieceCount(), bufferBytes / torrent.getPieceLength(0)));
+    }
+
+    // called by the download once it knows what is on disk; picker is null if nothing is left to fetch
+    synchronized void attach(PiecePicker picker, BitSet onDisk, Runnable cancel) {
+        this.picker = picker;
+        this.onDisk = (BitSet) onDisk.clone();
+        this.cancel = cancel;
+        if (picker != null) {
+            picker.setSequential(windowPieces);
+            picker.advanceWindow(cursorPiece);
+        }
+        if (closed && cancel != null) {
+            cancel.run();
+        }
+        notifyAll();
+    }
+
+    synchronized void setDownloadThread(Thread downloadThread) {
+        this.downloadThread = downloadThread;
+    }
+
+    // a verified piece, called on a hashing thread
+    synchronized void offer(int index, byte[] piece) {
+        if (closed || index < cursorPiece || buffered.containsKey(index)) {
+            return;
+        }
+        buffered.put(index, piece);
+        bufferedBytes += piece.length;
+        peakBufferedBytes = Math.max(peakBufferedBytes, bufferedBytes);
+        notifyAll();
+    }
+
+    // the download is over, whether or not it got everything
+    synchronized void finish() {
+        finished = true;
+        notifyAll();
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if ((current == null || currentOffset == current.length) && !nextPiece()) {
+            return -1;
+        }
+        int n = Math.min(len, current.length - currentOffset);
+        System.arraycopy(current, currentOffset, b, off, n);
+        currentOffset += n;
+        if (firstByteNanos == 0) {
+            firstByteNanos = System.nanoTime();
+        }
+        return n;
+    }
+
+    @Override
+    public synchronized int available() {
+        return current == null ? 0 : current.length - currentOffset;
+    }
+
+    // moves the cursor on and waits for its piece; false at the end of the content
+    private boolean nextPiece() throws IOException {
+        if (current != null) {
+            current = null;
+            cursorPiece++;
+            if (picker != null) {
+                picker.advanceWindow(cursorPiece);
+            }
+        }
+        if (cursorPiece == torrent.getPieceCount()) {
+            return false;
+        }
+        while (true) {
+            byte[] piece = buffered.remove(cursorPiece);
+            if (piece != null) {
+                bufferedBytes -= piece.length;
+            } else if (onDisk.get(cursorPiece)) {
+                piece = readFromDisk(cursorPiece);
+            }
+            if (piece != null) {
+                current = piece;
+                currentOffset = 0;
+                return true;
+            }
+            if (finished) {
+                throw new IOException("Download stopped before piece " + cursorPiece + " arrived");
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for piece " + cursorPiece);
+            }
+        }
+    }
+
+    private byte[] readFromDisk(int index) throws IOException {
+        if (diskReader == null) {
+            diskReader = PieceStorage.openReadOnly(storageFilePath, torrent);
+        }
+        byte[] piece = diskReader.readPiece(index);
+        if (piece == null) {
+            throw new IOException("Piece " + index + " is missing from " + storageFilePath);
+        }
+        return piece;
+    }
+
+    // -1 before the first byte was read
+    public synchronized long getTimeToFirstByteMillis() {
+        return firstByteNanos == 0 ? -1 : (firstByteNanos - createdNanos) / 1_000_000;
+    }
+
+    // the most memory verified pieces took up while waiting for the reader
+    public synchronized long getPeakBufferedBytes() {
+        return peakBufferedBytes;
+    }
+
+    // closing before the end stops the download; either way this waits for it to wind down
+    @Override
+    public void close() throws IOException {
+        Runnable stop;
+        Thread thread;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            buffered.clear();
+            bufferedBytes = 0;
+            stop = finished ? null : cancel;
+            thread = downloadThread;
+        }
+        if (stop != null) {
+            stop.run();
+        }
+        try {
+            if (thread != null) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (this) {
+                if (diskReader != null) {
+                    diskReader.close();
+                }
+            }
+        }
+    }
+}
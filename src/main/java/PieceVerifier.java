@@ -0,0 +1,140 @@
+import java.io.Closeable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// SHA-1 checks downloaded pieces on a small pool of hashing threads so network threads can go straight
+// back to receiving. Each hashing thread owns one MessageDigest and compares raw 20-byte digests.
+public class PieceVerifier implements Closeable {
+
+    public interface Listener {
+        // called on a hashing thread for a piece whose digest matched
+        void verified(int index, byte[] piece) throws Exception;
+
+        // called on a hashing thread for a piece whose digest did not match
+        void failed(int index, String peer);
+
+        // called when verified() throws
+        void error(Exception e);
+    }
+
+    private static final int QUEUED_PIECES_PER_THREAD = 2;
+    private static final Job STOP = new Job(-1, null, null);
+
+    private final Torrent torrent;
+    private final Listener listener;
+    private final BlockingQueue<Job> queue;
+    private final List<Thread> threads = new ArrayList<>();
+    private final Map<String, AtomicInteger> hashFailures = new ConcurrentHashMap<>();
+    private final DownloadMetrics metrics;
+
+    private static class Job {
+        final int index;
+        final byte[] piece;
+        final String peer;
+        final long submittedNanos = System.nanoTime();
+
+        Job(int index, byte[] piece, String peer) {
+            this.index = index;
+            this.piece = piece;
+            this.peer = peer;
+        }
+    }
+
+    public PieceVerifier(Torrent torrent, int numThreads, Listener listener) {
+        this(torrent, numThreads, null, listener);
+    }
+
+    // metrics, if not null, get the time from submit() to the verdict, queueing included
+    public PieceVerifier(Torrent torrent, int numThreads, DownloadMetrics metrics, Listener listener) {
+        this.listener = listener;
+        this.torrent = torrent;
+        this.metrics = metrics;
+        this.queue = new ArrayBlockingQueue<>(numThreads * QUEUED_PIECES_PER_THREAD);
+        for (int i = 0; i < numThreads; i++) {
+            Thread thread = new Thread(this::run, "piece-verifier-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+    }
+
+    // blocks while the queue is full, which holds back network threads when hashing can't keep up
+    public void submit(int index, byte[] piece, String peer) throws InterruptedException {
+        queue.put(new Job(index, piece, peer));
+    }
+
+    public int getQueuedPieces() {
+        return queue.size();
+    }
+
+    public int hashFailures(String peer) {
+        AtomicInteger failures = hashFailures.get(peer);
+        return failures == null ? 0 : failures.get();
+    }
+
+    private void run() {
+        MessageDigest digest = newSha1Digest();
+        byte[] actual = new byte[20];
+        while (true) {
+            Job job;
+            try {
+                job = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (job == STOP) {
+                return;
+            }
+            try {
+                digest.update(job.piece);
+                digest.digest(actual, 0, actual.length);
+            } catch (Exception e) {
+                listener.error(e);
+                continue;
+            }
+            if (metrics != null) {
+                metrics.pieceVerified(System.nanoTime() - job.submittedNanos);
+            }
+            if (torrent.pieceHashMatches(job.index, actual)) {
+                try {
+                    listener.verified(job.index, job.piece);
+                } catch (Exception e) {
+                    listener.error(e);
+                }
+            } else {
+                hashFailures.computeIfAbsent(job.peer, peer -> new AtomicInteger()).incrementAndGet();
+                listener.failed(job.index, job.peer);
+            }
+        }
+    }
+
+    private static MessageDigest newSha1Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Error calculating SHA-1 hash: " + e.getMessage());
+        }
+    }
+
+    // finishes every piece already queued, then stops the hashing threads
+    @Override
+    public void close() {
+        try {
+            for (int i = 0; i < threads.size(); i++) {
+                queue.put(STOP);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+// how many block requests to keep outstanding with one peer. Every delivered block gives an RTT
+// sample and a delivery rate sample (bytes that arrived while it was in flight over its RTT), and the
+// target is the bandwidth-delay product, rate x min RTT / BLOCK_SIZE, doubled so a latency-bound peer
+// can show that it would go faster. The min RTT rather than the average keeps requests queued at a
+// bandwidth-bound peer from inflating the target. The result is smoothed, clamped, and never above
+// the reqq the peer announced.
+public class PipelineDepth {
+
+    public static final int MIN_DEPTH = 4;
+    public static final int MAX_DEPTH = 256;
+    // what a peer without reqq is assumed to accept, the usual default of mainstream clients
+    public static final int DEFAULT_PEER_LIMIT = 250;
+    private static final double GAIN = 2.0;
+    // weight of a new sample in the moving averages
+    private static final double RATE_ALPHA = 0.25;
+    private static final double DEPTH_ALPHA = 0.25;
+    // the min RTT is forgotten after this long so a route change can raise it again
+    private static final long MIN_RTT_WINDOW_NANOS = 10_000_000_000L;
+
+    private final boolean adaptive;
+    private int peerLimit = DEFAULT_PEER_LIMIT;
+    private double depth;
+    private long deliveredBytes;
+    private long minRttNanos = Long.MAX_VALUE;
+    private long minRttStampNanos;
+    private double bytesPerSecond;
+    private int samples;
+
+    private PipelineDepth(int initialDepth, boolean adaptive) {
+        this.depth = initialDepth;
+        this.adaptive = adaptive;
+    }
+
+    // starts at the configured window and adapts from the first delivered block
+    public static PipelineDepth adaptive(int initialDepth) {
+        return new PipelineDepth(Math.max(MIN_DEPTH, Math.min(MAX_DEPTH, initialDepth)), true);
+    }
+
+    // always the given window, the old behaviour
+    public static PipelineDepth fixed(int depth) {
+        return new PipelineDepth(depth, false);
+    }
+
+    public static PipelineDepth fromConfig(DownloadConfig config) {
+        return config.isAdaptivePipeline() ? adaptive(config.getPipelineWindow()) : fixed(config.getPipelineWindow());
+    }
+
+    public synchronized int current() {
+        return Math.max(1, Math.min(peerLimit, (int) Math.round(depth)));
+    }
+
+    // the peer's reqq from its extension handshake
+    public synchronized void setPeerLimit(int peerLimit) {
+        this.peerLimit = Math.max(1, peerLimit);
+    }
+
+    public synchronized int getPeerLimit() {
+        return peerLimit;
+    }
+
+    // stamped on a request so its reply can be turned into samples
+    public synchronized long deliveredBytes() {
+        return deliveredBytes;
+    }
+
+    public synchronized void onBlock(int length, long sentNanos, long deliveredAtSend) {
+        long now = System.nanoTime();
+        deliveredBytes += length;
+        if (!adaptive || sentNanos == 0) {
+            return;
+        }
+        long rtt = Math.max(1, now - sentNanos);
+        if (rtt <= minRttNanos || now - minRttStampNanos > MIN_RTT_WINDOW_NANOS) {
+            minRttNanos = rtt;
+            minRttStampNanos = now;
+        }
+        double rate = (deliveredBytes - deliveredAtSend) * 1e9 / rtt;
+        bytesPerSecond = samples == 0 ? rate : bytesPerSecond + RATE_ALPHA * (rate - bytesPerSecond);
+        samples++;
+        double target = GAIN * bytesPerSecond * minRttNanos / 1e9 / TorrentDownloader.BLOCK_SIZE;
+        target = Math.max(MIN_DEPTH, Math.min(Math.min(MAX_DEPTH, peerLimit), target));
+        depth += DEPTH_ALPHA * (target - depth);
+    }
+
+    public synchronized double getMinRttMillis() {
+        return minRttNanos == Long.MAX_VALUE ? 0 : minRttNanos / 1e6;
+    }
+
+    public synchronized double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (!adaptive) {
+            return "depth " + current() + " (fixed)";
+        }
+        return String.format("depth %d (min rtt %.1f ms, %.2f MiB/s, peer limit %d)", current(), getMinRttMillis(),
+                bytesPerSecond / (1024 * 1024), peerLimit);
+    }
+}
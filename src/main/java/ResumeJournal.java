@@ -0,0 +1,195 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// fast-resume journal: which pieces are already on disk, plus the storage files' total size and summed
+// mtimes when that was last recorded. Kept next to the storage path as .<name>.<infohash>.resume and
+// updated one byte at a time as pieces are written, so a restart only has to fetch the missing pieces.
+// The size and mtimes are only recorded on open and close; a run that never closed the journal leaves
+// them stale, and the next open re-hashes the pieces it claims.
+public class ResumeJournal implements Closeable {
+
+    private static final int MAGIC = 0x42545231; // "BTR1"
+    // magic, info hash, piece count, total file size, sum of file mtimes
+    private static final int HEADER_LENGTH = 4 + 20 + 4 + 8 + 8;
+    private static final int SIZE_OFFSET = 4 + 20 + 4;
+
+    private final FileChannel channel;
+    private final List<Path> storageFiles;
+    private final byte[] bitfield;
+    private final int numPieces;
+
+    private ResumeJournal(FileChannel channel, List<Path> storageFiles, byte[] bitfield, int numPieces) {
+        this.channel = channel;
+        this.storageFiles = storageFiles;
+        this.bitfield = bitfield;
+        this.numPieces = numPieces;
+    }
+
+    public static Path pathFor(String storageFilePath, Torrent torrent) {
+        Path storagePath = Paths.get(storageFilePath).toAbsolutePath();
+        return storagePath.resolveSibling("." + storagePath.getFileName() + "." + torrent.getInfoHash() + ".resume");
+    }
+
+    // skippedFiles are the deselected files of this run, which are expected to be missing
+    public static ResumeJournal open(String storageFilePath, Torrent torrent, Set<Integer> skippedFiles) {
+        Path journalPath = pathFor(storageFilePath, torrent);
+        List<Path> storageFiles = PieceStorage.filePaths(storageFilePath, torrent);
+        int numPieces = torrent.getPieceCount();
+        byte[] infoHash = Utils.hexStringToByteArray(torrent.getInfoHash());
+        try {
+            byte[] bitfield = load(journalPath, storageFilePath, storageFiles, skippedFiles, torrent, infoHash, numPieces);
+            FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            ByteBuffer journal = ByteBuffer.allocate(HEADER_LENGTH + bitfield.length);
+            journal.putInt(MAGIC);
+            journal.put(infoHash);
+            journal.putInt(numPieces);
+            journal.putLong(0);
+            journal.putLong(0);
+            journal.put(bitfield);
+            journal.flip();
+            channel.truncate(0);
+            channel.write(journal, 0);
+            ResumeJournal resumeJournal = new ResumeJournal(channel, storageFiles, bitfield, numPieces);
+            resumeJournal.recordStorageState();
+            return resumeJournal;
+        } catch (IOException e) {
+            throw new RuntimeException("Error opening resume journal " + journalPath + ": " + e.getMessage());
+        }
+    }
+
+    // returns the pieces that are known to be on disk, or an empty bitfield if nothing can be trusted
+    private static byte[] load(Path journalPath, String storageFilePath, List<Path> storageFiles,
+                               Set<Integer> skippedFiles, Torrent torrent, byte[] infoHash, int numPieces)
+            throws IOException {
+        byte[] empty = new byte[(numPieces + 7) / 8];
+        if (!Files.exists(journalPath) || storageFiles.stream().noneMatch(Files::exists)) {
+            return empty;
+        }
+        ByteBuffer journal = ByteBuffer.wrap(Files.readAllBytes(journalPath));
+        if (journal.remaining() != HEADER_LENGTH + empty.length || journal.getInt() != MAGIC) {
+            return empty;
+        }
+        byte[] journalInfoHash = new byte[20];
+        journal.get(journalInfoHash);
+        if (!Arrays.equals(journalInfoHash, infoHash) || journal.getInt() != numPieces) {
+            return empty;
+        }
+        long size = journal.getLong();
+        long mtime = journal.getLong();
+        byte[] bitfield = new byte[empty.length];
+        journal.get(bitfield);
+        // pieces that reach into a wanted file that isn't there (e.g. one that was deselected last time)
+        // can't be complete on disk, whatever the journal says
+        Set<Integer> missingFiles = new HashSet<>();
+        for (int i = 0; i < storageFiles.size(); i++) {
+            if (!skippedFiles.contains(i) && !Files.exists(storageFiles.get(i))) {
+                missingFiles.add(i);
+            }
+        }
+        BitSet unreachable = torrent.getLayout().piecesTouching(missingFiles);
+        for (int i = unreachable.nextSetBit(0); i >= 0 && i < numPieces; i = unreachable.nextSetBit(i + 1)) {
+            bitfield[i / 8] &= (byte) ~(0x80 >>> (i % 8));
+        }
+        if (totalSize(storageFiles) != size || modifiedTimes(storageFiles) != mtime) {
+            // the file changed after the journal was last closed (e.g. a crash mid-download, or mmap pages
+            // flushed late), so re-hash the pieces it claims instead of trusting or discarding all of them
+            System.out.println("Storage file changed since the resume journal was written, rechecking pieces");
+            recheck(storageFilePath, torrent, bitfield);
+        }
+        return bitfield;
+    }
+
+    private static void recheck(String storageFilePath, Torrent torrent, byte[] bitfield) throws IOException {
+        try (PieceStorage storage = PieceStorage.openReadOnly(storageFilePath, torrent)) {
+            for (int i = 0; i < torrent.getPieceCount(); i++) {
+                if ((bitfield[i / 8] & (0x80 >>> (i % 8))) == 0) {
+                    continue;
+                }
+                byte[] piece = storage.readPiece(i);
+                if (piece == null || !torrent.pieceHashMatches(i, Utils.sha1(piece))) {
+                    bitfield[i / 8] &= (byte) ~(0x80 >>> (i % 8));
+                }
+            }
+        }
+    }
+
+    public synchronized BitSet getCompletedPieces() {
+        BitSet completed = new BitSet(numPieces);
+        for (int i = 0; i < numPieces; i++) {
+            if ((bitfield[i / 8] & (0x80 >>> (i % 8))) != 0) {
+                completed.set(i);
+            }
+        }
+        return completed;
+    }
+
+    public synchronized boolean isComplete() {
+        return getCompletedPieces().cardinality() == numPieces;
+    }
+
+    // called after a piece has been written to the storage file
+    public synchronized void markComplete(int index) {
+        bitfield[index / 8] |= (byte) (0x80 >>> (index % 8));
+        try {
+            channel.write(ByteBuffer.wrap(bitfield, index / 8, 1), HEADER_LENGTH + index / 8);
+        } catch (IOException e) {
+            throw new RuntimeException("Error updating resume journal: " + e.getMessage());
+        }
+    }
+
+    // deselected files are never created, so only the files that exist count
+    private static long totalSize(List<Path> files) throws IOException {
+        long size = 0;
+        for (Path file : files) {
+            if (Files.exists(file)) {
+                size += Files.size(file);
+            }
+        }
+        return size;
+    }
+
+    // summed rather than the latest, so touching any one file shows up
+    private static long modifiedTimes(List<Path> files) throws IOException {
+        long mtime = 0;
+        for (Path file : files) {
+            if (Files.exists(file)) {
+                mtime += Files.getLastModifiedTime(file).toMillis();
+            }
+        }
+        return mtime;
+    }
+
+    private void recordStorageState() throws IOException {
+        if (storageFiles.stream().noneMatch(Files::exists)) {
+            return;
+        }
+        ByteBuffer state = ByteBuffer.allocate(16);
+        state.putLong(totalSize(storageFiles));
+        state.putLong(modifiedTimes(storageFiles));
+        state.flip();
+        channel.write(state, SIZE_OFFSET);
+    }
+
+    // close after the storage files so the recorded size and mtime are final
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            recordStorageState();
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+    }
+}
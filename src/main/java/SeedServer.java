@@ -0,0 +1,332 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// accepts incoming peers for the torrents we have data for and uploads to them: our real bitfield after
+// the handshake, an unchoke once they're interested, and every requested block sent from the stored
+// files with FileChannel.transferTo so block data never passes through the heap. Each peer's socket is
+// only ever written by that peer's own thread, so a leecher that stops reading stalls nobody else.
+public class SeedServer implements Closeable {
+
+    private static final int HANDSHAKE_LENGTH = 68;
+    // peers that ask for more than this in one request are dropped
+    private static final int MAX_REQUEST_LENGTH = TorrentDownloader.BLOCK_SIZE;
+    private static final int MAX_MESSAGE_LENGTH = 1 << 20;
+    private static final int MAX_INBOUND_PEERS = 128;
+    // how long a peer's thread waits on a quiet peer before sending the HAVEs queued for it
+    private static final int HAVE_FLUSH_MILLIS = 200;
+
+    private static SeedServer shared;
+
+    private final ServerSocketChannel serverChannel;
+    private final Map<String, Seed> seeds = new ConcurrentHashMap<>();
+    private final Set<InboundPeer> peers = ConcurrentHashMap.newKeySet();
+    private final AtomicLong uploadedBytes = new AtomicLong();
+    private final AtomicInteger peerCounter = new AtomicInteger();
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "seed-peer-" + peerCounter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public SeedServer(int port) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        Thread acceptor = new Thread(this::acceptLoop, "seed-listener");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    // the listener every download registers with; null if the port could not be bound
+    public static synchronized SeedServer shared(int port) {
+        if (shared == null) {
+            try {
+                shared = new SeedServer(port);
+                if (Log.INFO) {
+                    System.out.println("Accepting incoming peers on port " + shared.getPort());
+                }
+            } catch (IOException e) {
+                System.out.println("Not accepting incoming peers, could not listen on port " + port + ": " + e.getMessage());
+                return null;
+            }
+        }
+        return shared;
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public long getUploadedBytes() {
+        return uploadedBytes.get();
+    }
+
+    // makes the pieces in `have` available to peers until the returned registration is closed, which
+    // has to happen before the storage is closed
+    public Registration register(Torrent torrent, PieceStorage storage, BitSet have) {
+        Seed seed = new Seed(torrent, storage, have);
+        seeds.put(torrent.getInfoHash(), seed);
+        return new Registration(seed);
+    }
+
+    public class Registration implements Closeable {
+        private final Seed seed;
+
+        private Registration(Seed seed) {
+            this.seed = seed;
+        }
+
+        // tells every connected peer about a piece that just became available. Called on the verifier's
+        // threads, so the HAVEs are only queued; each peer's thread sends its own.
+        public void pieceCompleted(int index) {
+            seed.add(index);
+            for (InboundPeer peer : peers) {
+                if (peer.seed == seed) {
+                    peer.pendingHaves.add(index);
+                }
+            }
+        }
+
+        // bytes uploaded for this torrent, for the tracker announces
+        public long getUploadedBytes() {
+            return seed.uploaded.get();
+        }
+
+        @Override
+        public void close() {
+            seeds.remove(seed.torrent.getInfoHash(), seed);
+            for (InboundPeer peer : peers) {
+                if (peer.seed == seed) {
+                    peer.close();
+                }
+            }
+        }
+    }
+
+    private static class Seed {
+        final Torrent torrent;
+        final PieceStorage storage;
+        final AtomicLong uploaded = new AtomicLong();
+        private final BitSet have;
+
+        Seed(Torrent torrent, PieceStorage storage, BitSet have) {
+            this.torrent = torrent;
+            this.storage = storage;
+            this.have = (BitSet) have.clone();
+        }
+
+        synchronized void add(int index) {
+            have.set(index);
+        }
+
+        synchronized boolean has(int index) {
+            return have.get(index);
+        }
+
+        synchronized byte[] bitfield() {
+            byte[] bitfield = new byte[(torrent.getPieceCount() + 7) / 8];
+            for (int i = have.nextSetBit(0); i >= 0; i = have.nextSetBit(i + 1)) {
+                bitfield[i / 8] |= (byte) (0x80 >>> (i % 8));
+            }
+            return bitfield;
+        }
+
+        synchronized boolean isEmpty() {
+            return have.isEmpty();
+        }
+    }
+
+    private void acceptLoop() {
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                if (peers.size() >= MAX_INBOUND_PEERS) {
+                    channel.close();
+                    continue;
+                }
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                InboundPeer peer = new InboundPeer(channel);
+                peers.add(peer);
+                executor.submit(peer);
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) {
+                    System.out.println("Error accepting incoming peer: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private class InboundPeer implements Runnable {
+        private final SocketChannel channel;
+        private final InputStream in;
+        private final ConcurrentLinkedQueue<Integer> pendingHaves = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+        private ByteBuffer messageBuffer = ByteBuffer.allocate(64);
+        private final ByteBuffer pieceHeader = ByteBuffer.allocate(13);
+        private volatile Seed seed;
+        // set once the bitfield is out, HAVEs must not overtake it
+        private boolean ready;
+        private boolean unchoked;
+
+        InboundPeer(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            // reads through the socket's stream time out, which is when queued HAVEs go out to a quiet peer
+            channel.socket().setSoTimeout(HAVE_FLUSH_MILLIS);
+            this.in = channel.socket().getInputStream();
+        }
+
+        @Override
+        public void run() {
+            try {
+                ByteBuffer handshake = ByteBuffer.allocate(HANDSHAKE_LENGTH);
+                readFully(handshake);
+                byte[] request = handshake.array();
+                if (request[0] != 19 || !"BitTorrent protocol".equals(new String(request, 1, 19))) {
+                    return;
+                }
+                seed = seeds.get(Utils.byteToHexString(Arrays.copyOfRange(request, 28, 48)));
+                if (seed == null) {
+                    // not a torrent we are serving
+                    return;
+                }
+                send(ByteBuffer.wrap(TorrentDownloader.createHandshakeMessage(seed.torrent.getInfoHash(), false)));
+                if (!seed.isEmpty()) {
+                    byte[] bitfield = seed.bitfield();
+                    send(ByteBuffer.allocate(5 + bitfield.length).putInt(1 + bitfield.length)
+                            .put(TorrentDownloader.BITFIELD_MESSAGE_ID).put(bitfield).flip());
+                }
+                ready = true;
+                while (channel.isOpen()) {
+                    ByteBuffer message = readMessage();
+                    sendHaves();
+                    handle(message);
+                }
+            } catch (IOException e) {
+                // the peer went away or broke the protocol
+            } finally {
+                close();
+            }
+        }
+
+        private ByteBuffer readMessage() throws IOException {
+            lengthBuffer.clear();
+            readFully(lengthBuffer);
+            int length = lengthBuffer.getInt(0);
+            if (length < 0 || length > MAX_MESSAGE_LENGTH) {
+                throw new IOException("Invalid message length: " + length);
+            }
+            if (length > messageBuffer.capacity()) {
+                messageBuffer = ByteBuffer.allocate(length);
+            }
+            messageBuffer.clear().limit(length);
+            readFully(messageBuffer);
+            return messageBuffer.flip();
+        }
+
+        private void handle(ByteBuffer message) throws IOException {
+            if (!message.hasRemaining()) {
+                return;
+            }
+            byte messageId = message.get();
+            if (messageId == TorrentDownloader.INTERESTED_MESSAGE_ID && !unchoked) {
+                // no choking algorithm yet, everyone who asks is served
+                unchoked = true;
+                send(ByteBuffer.allocate(5).putInt(1).put(TorrentDownloader.UNCHOKE_MESSAGE_ID).flip());
+            } else if (messageId == TorrentDownloader.REQUEST_MESSAGE_ID && message.remaining() >= 12) {
+                int index = message.getInt();
+                int begin = message.getInt();
+                int length = message.getInt();
+                if (!unchoked) {
+                    return;
+                }
+                if (index < 0 || index >= seed.torrent.getPieceCount() || !seed.has(index) || begin < 0 || length <= 0
+                        || length > MAX_REQUEST_LENGTH || (long) begin + length > seed.torrent.getPieceLength(index)) {
+                    throw new IOException("Invalid request: piece " + index + ", begin " + begin + ", length " + length);
+                }
+                sendBlock(index, begin, length);
+            }
+            // requests are answered as soon as they arrive, so a CANCEL never finds one still queued
+        }
+
+        private void sendBlock(int index, int begin, int length) throws IOException {
+            pieceHeader.clear();
+            pieceHeader.putInt(9 + length).put(TorrentDownloader.PIECE_MESSAGE_ID).putInt(index).putInt(begin).flip();
+            while (pieceHeader.hasRemaining()) {
+                channel.write(pieceHeader);
+            }
+            seed.storage.transferBlock(index, begin, length, channel);
+            uploadedBytes.addAndGet(length);
+            seed.uploaded.addAndGet(length);
+        }
+
+        private void readFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                int read;
+                try {
+                    read = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                } catch (SocketTimeoutException e) {
+                    sendHaves();
+                    continue;
+                }
+                if (read < 0) {
+                    throw new EOFException("Peer closed the connection");
+                }
+                buffer.position(buffer.position() + read);
+            }
+        }
+
+        private void send(ByteBuffer message) throws IOException {
+            while (message.hasRemaining()) {
+                channel.write(message);
+            }
+        }
+
+        // a piece that completes while the bitfield is being built is announced again, which is harmless
+        private void sendHaves() throws IOException {
+            if (!ready || pendingHaves.isEmpty()) {
+                return;
+            }
+            ByteBuffer haves = ByteBuffer.allocate(9 * pendingHaves.size());
+            Integer index;
+            while (haves.hasRemaining() && (index = pendingHaves.poll()) != null) {
+                haves.putInt(5).put(TorrentDownloader.HAVE_MESSAGE_ID).putInt(index);
+            }
+            send(haves.flip());
+        }
+
+        void close() {
+            peers.remove(this);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing left to tell the peer
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverChannel.close();
+        for (InboundPeer peer : peers) {
+            peer.close();
+        }
+        executor.shutdownNow();
+    }
+}
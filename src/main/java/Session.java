@@ -0,0 +1,175 @@
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// downloads many torrents in one process. What was already process-wide stays shared as before (the
+// listen port and seed server, the NIO I/O threads, the half-open dial cap); on top of that the session
+// splits one cap on peer connections evenly between the running torrents, and so the threads their
+// workers run on, and optionally one download rate. Each torrent keeps its own picker, storage,
+// journal and trackers.
+public class Session implements Closeable {
+
+    private final ConnectionBudget connections;
+    private final BandwidthLimiter bandwidth;
+    private final List<Download> downloads = new CopyOnWriteArrayList<>();
+    private final AtomicInteger threadCounter = new AtomicInteger();
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "session-download-" + threadCounter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // maxBytesPerSecond 0 means unlimited
+    public Session(int maxConnections, long maxBytesPerSecond) {
+        this.connections = new ConnectionBudget(maxConnections);
+        this.bandwidth = maxBytesPerSecond > 0 ? new BandwidthLimiter(maxBytesPerSecond) : null;
+    }
+
+    public static Session fromConfig(DownloadConfig config) {
+        return new Session(config.getMaxConnections(), config.getMaxDownloadBytesPerSecond());
+    }
+
+    // starts downloading a .torrent file or magnet link into outputDirectory, named after the torrent
+    public Download add(String source, Path outputDirectory) {
+        Download download = new Download(source, outputDirectory);
+        downloads.add(download);
+        download.future = executor.submit(() -> run(download));
+        return download;
+    }
+
+    public List<Download> getDownloads() {
+        return downloads;
+    }
+
+    public int getConnectionsInUse() {
+        return connections.getInUse();
+    }
+
+    // waits for every download added so far
+    public void awaitAll() throws InterruptedException {
+        for (Download download : downloads) {
+            download.await();
+        }
+    }
+
+    private boolean run(Download download) {
+        try (Limits limits = new Limits(connections.newShare(), bandwidth == null ? null : bandwidth.newShare())) {
+            Torrent torrent;
+            List<PeerSession> openSessions = List.of();
+            boolean isMagnet = download.source.startsWith("magnet:");
+            if (isMagnet) {
+                Pair<Torrent, List<PeerSession>> pair = TorrentDownloader.getTorrentFromMagnetURL(download.source);
+                torrent = pair.getLeft();
+                openSessions = pair.getRight();
+            } else {
+                torrent = TorrentUtils.getTorrentFromPath(download.source);
+            }
+            // the name comes from the torrent, so it must not lead out of the output directory
+            String name = torrent.getName() != null ? Torrent.fileName(torrent.getName()) : torrent.getInfoHash();
+            Files.createDirectories(download.outputDirectory);
+            download.outputPath = download.outputDirectory.resolve(name).toString();
+            boolean complete = TorrentDownloader.downloadTorrent(torrent, download.outputPath, isMagnet, openSessions,
+                    null, limits);
+            if (!complete) {
+                download.error = "incomplete";
+            }
+            return complete;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Error downloading " + download.source + ": " + e.getMessage());
+            download.error = e.getMessage();
+            return false;
+        } finally {
+            download.endNanos = System.nanoTime();
+        }
+    }
+
+    // stops every running download
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    // one torrent's part of the session's caps; the bandwidth share is null when the rate is unlimited
+    static final class Limits implements AutoCloseable {
+        private final ConnectionBudget.Share connections;
+        private final BandwidthLimiter.Share bandwidth;
+
+        Limits(ConnectionBudget.Share connections, BandwidthLimiter.Share bandwidth) {
+            this.connections = connections;
+            this.bandwidth = bandwidth;
+        }
+
+        ConnectionBudget.Share getConnections() {
+            return connections;
+        }
+
+        BandwidthLimiter.Share getBandwidth() {
+            return bandwidth;
+        }
+
+        @Override
+        public void close() {
+            connections.close();
+            if (bandwidth != null) {
+                bandwidth.close();
+            }
+        }
+    }
+
+    public static final class Download {
+        private final String source;
+        private final Path outputDirectory;
+        private final long startNanos = System.nanoTime();
+        private volatile Future<Boolean> future;
+        private volatile String outputPath;
+        private volatile String error;
+        private volatile long endNanos;
+
+        private Download(String source, Path outputDirectory) {
+            this.source = source;
+            this.outputDirectory = outputDirectory;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        // null until the torrent's name is known, which for a magnet link is after the metadata arrived
+        public String getOutputPath() {
+            return outputPath;
+        }
+
+        public boolean isDone() {
+            return future.isDone();
+        }
+
+        // why the download failed, null while it runs or if it succeeded
+        public String getError() {
+            return error;
+        }
+
+        public long getElapsedMillis() {
+            long end = endNanos != 0 ? endNanos : System.nanoTime();
+            return (end - startNanos) / 1_000_000;
+        }
+
+        // true if every wanted piece ended up on disk
+        public boolean await() throws InterruptedException {
+            try {
+                return future.get();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+}
@@ -1,17 +1,26 @@
-import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 
-public class TCPService implements Closeable {
+public class TCPService implements PeerConnection {
 
+    private static final byte[] KEEP_ALIVE = new byte[0];
+
+    private final Socket socket;
     private InputStream in;
     private OutputStream out;
+    // length, id, index and begin of the frame being read
+    private final byte[] frameHeader = new byte[4 + 1 + 8];
+    // id, index and begin of the last PIECE message, handed back from waitForMessage(BlockTarget)
+    private final byte[] pieceHeader = new byte[1 + 8];
 
     public TCPService(Socket socket) {
+        this.socket = socket;
         try {
+            // pipelined requests are small writes that must not wait on Nagle's algorithm
+            socket.setTcpNoDelay(true);
             this.in = socket.getInputStream();
             this.out = socket.getOutputStream();
         } catch (IOException e) {
@@ -20,27 +29,65 @@ public class TCPService implements Closeable {
 
     }
 
+    // framing over any pair of streams, e.g. in-memory ones in the JMH benchmarks
+    public TCPService(InputStream in, OutputStream out) {
+        this.socket = null;
+        this.in = in;
+        this.out = out;
+    }
+
+    @Override
     public byte[] waitForMessage() {
+        return waitForMessage(null);
+    }
+
+    // reads the length and id into a reused scratch array first; a PIECE block then goes straight from
+    // the socket into the target's buffer, so receiving a block allocates nothing
+    @Override
+    public byte[] waitForMessage(BlockTarget target) {
         try {
-            // Read the length of the incoming message (assuming the length is sent as the first 4 bytes)
-            byte[] lengthBuffer = new byte[4];
-            int bytesRead = in.read(lengthBuffer);
-            if (bytesRead != 4) {
-                throw new IOException("Failed to read message length");
+            readFully(frameHeader, 0, 4);
+            int messageLength = getInt(frameHeader, 0);
+            if (messageLength < 0) {
+                throw new IOException("Invalid message length: " + messageLength);
+            }
+            if (messageLength == 0) {
+                return KEEP_ALIVE;
+            }
+            readFully(frameHeader, 4, 1);
+            byte messageId = frameHeader[4];
+            if (target == null || messageId != TorrentDownloader.PIECE_MESSAGE_ID || messageLength < 9) {
+                byte[] messageBuffer = new byte[messageLength];
+                messageBuffer[0] = messageId;
+                readFully(messageBuffer, 1, messageLength - 1);
+                return messageBuffer;
             }
-            int messageLength = ByteBuffer.wrap(lengthBuffer).getInt();
-            // Allocate a buffer of the appropriate size
-            byte[] messageBuffer = new byte[messageLength];
-            bytesRead = in.readNBytes(messageBuffer, 0, messageLength);
-            if (bytesRead != messageLength) {
-                throw new IOException("Failed to read the complete message");
+            readFully(frameHeader, 5, 8);
+            int blockLength = messageLength - 9;
+            byte[] buffer = target.bufferFor(getInt(frameHeader, 5), getInt(frameHeader, 9), blockLength);
+            if (buffer == null) {
+                in.skipNBytes(blockLength);
+            } else {
+                readFully(buffer, getInt(frameHeader, 9), blockLength);
             }
-            return messageBuffer;
+            System.arraycopy(frameHeader, 4, pieceHeader, 0, pieceHeader.length);
+            return pieceHeader;
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private void readFully(byte[] buffer, int offset, int length) throws IOException {
+        if (in.readNBytes(buffer, offset, length) != length) {
+            throw new IOException("Failed to read the complete message");
+        }
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16
+                | (bytes[offset + 2] & 0xff) << 8 | (bytes[offset + 3] & 0xff);
+    }
+
     public static byte[] createRequestPayload(int index, int begin, int length) {
         ByteBuffer buffer = ByteBuffer.allocate(12);
         buffer.putInt(index);
@@ -49,6 +96,7 @@ public class TCPService implements Closeable {
         return buffer.array();
     }
 
+    @Override
     public void sendMessage(byte messageId,
                                     byte[] payload) throws IOException {
         ByteBuffer buffer = ByteBuffer.allocate(4 +
@@ -60,6 +108,7 @@ public class TCPService implements Closeable {
         out.flush();
     }
 
+    @Override
     public void sendMessage(byte[] message) {
         try {
             out.write(message);
@@ -69,11 +118,11 @@ public class TCPService implements Closeable {
         }
     }
 
+    @Override
     public byte[] waitForHandshakeResponse() {
         try {
             byte[] handshakeResponse = new byte[68];
-            int bytesRead = in.read(handshakeResponse);
-            if (bytesRead != 68) {
+            if (in.readNBytes(handshakeResponse, 0, handshakeResponse.length) != handshakeResponse.length) {
                 throw new IOException("Failed to read handshake response");
             }
             return handshakeResponse;
@@ -82,6 +131,13 @@ public class TCPService implements Closeable {
         }
     }
 
+    @Override
+    public void setReadTimeout(int timeoutMillis) throws IOException {
+        if (socket != null) {
+            socket.setSoTimeout(timeoutMillis);
+        }
+    }
+
     @Override
     public void close() throws IOException {
         in.close();
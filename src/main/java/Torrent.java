@@ -1,76 +1,187 @@
-import com.dampcake.bencode.Bencode;
-import com.dampcake.bencode.Type;
-
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 public final class Torrent {
 
+    public static final int HASH_LENGTH = 20;
+
     private final String trackerURL;
 
+    // BEP 12 tiers, tried in order; a torrent without an announce-list has the single tier [announce]
+    private final List<List<String>> trackerTiers;
+
     private final long length;
 
     private final String infoHash;
 
     private final long pieceLength;
 
-    private final List<String> pieces;
+    // every piece's SHA-1 back to back, 20 bytes each, exactly as in the info dict
+    private final byte[] pieceHashes;
+
+    private final String name;
+
+    // a single-file torrent has exactly one entry, named after the torrent
+    private final List<FileEntry> files;
+
+    private final boolean multiFile;
+
+    // BEP 27: peers may only come from the trackers, so no peer exchange
+    private final boolean privateTorrent;
+
+    private final FileLayout layout;
 
     public static Torrent fromBytes(byte[] fileBytes) {
-        Bencode bencode = new Bencode(false);
-        Map<String, Object> decodedDict = bencode.decode(fileBytes, Type.DICTIONARY);
-        Map<String, Object> infoDict = (Map<String, Object>) decodedDict.get("info");
-        String trackerURL = (String) decodedDict.get("announce");
-        long length = (long) infoDict.get("length");
-        long pieceLength = (long) infoDict.get("piece length");
-        Bencode bencode2 = new Bencode(true);
-        Map<String, Object> bencodedInfoDict = (Map<String, Object>) bencode2.decode(fileBytes, Type.DICTIONARY).get("info");
-        byte[] pieceHashBytes = ((ByteBuffer) bencodedInfoDict.get("pieces")).array();
-        List<String> pieces = TorrentUtils.splitPieceHashes(pieceHashBytes, 20, new ArrayList<>());
-        String infoHash = Utils.calculateSHA1(bencode2.encode(bencodedInfoDict));
-
-        return new Torrent.Builder()
+        BencodeReader.Dict torrentDict = BencodeReader.readDict(fileBytes);
+        String announce = torrentDict.containsKey("announce") ? torrentDict.getString("announce") : null;
+        List<List<String>> announceList = torrentDict.isList("announce-list")
+                ? torrentDict.getStringLists("announce-list") : null;
+        return fromInfoDict(torrentDict.getDict("info"), announce, announceList);
+    }
+
+    // builds a torrent from a raw info dict, e.g. metadata fetched over ut_metadata
+    public static Torrent fromMetadata(byte[] metadata, String trackerURL) {
+        return fromInfoDict(BencodeReader.readDict(metadata), trackerURL, null);
+    }
+
+    private static Torrent fromInfoDict(BencodeReader.Dict infoDict, String trackerURL, List<List<String>> announceList) {
+        // the info hash covers the info dict exactly as it was encoded, so hash that span directly
+        String infoHash = Utils.byteToHexString(Utils.sha1(infoDict.data(), infoDict.start(), infoDict.length()));
+        Builder builder = new Torrent.Builder()
                 .setTrackerURL(trackerURL)
-                .setLength(length)
+                .setAnnounceList(announceList)
                 .setInfoHash(infoHash)
-                .setPieceLength(pieceLength)
-                .setPieces(pieces)
-                .build();
+                .setName(infoDict.containsKey("name") ? infoDict.getString("name") : null)
+                .setPieceLength(infoDict.getLong("piece length"))
+                .setPieceHashes(infoDict.getByteArray("pieces"))
+                .setPrivate(infoDict.isLong("private") && infoDict.getLong("private") == 1);
+        if (infoDict.containsKey("files")) {
+            List<FileEntry> files = new ArrayList<>();
+            for (BencodeReader.Dict fileDict : infoDict.getDictList("files")) {
+                files.add(new FileEntry(fileDict.getStringList("path"), fileDict.getLong("length")));
+            }
+            builder.setFiles(files);
+        } else {
+            builder.setLength(infoDict.getLong("length"));
+        }
+        return builder.build();
+    }
+
+    public static final class FileEntry {
+        private final List<String> path;
+        private final long length;
+
+        public FileEntry(List<String> path, long length) {
+            if (path.isEmpty() || path.stream().anyMatch(p -> p.isEmpty() || p.equals(".") || p.equals("..") || p.contains("/"))) {
+                throw new IllegalArgumentException("Invalid file path in torrent: " + path);
+            }
+            this.path = List.copyOf(path);
+            this.length = length;
+        }
+
+        public List<String> getPath() {
+            return path;
+        }
+
+        public long getLength() {
+            return length;
+        }
     }
 
     private Torrent(Builder builder) {
-        this.trackerURL = builder.trackerURL;
-        this.length = builder.length;
+        this.trackerTiers = trackerTiers(builder.trackerURL, builder.announceList);
+        // clients that predate announce-list only know the first tracker
+        this.trackerURL = builder.trackerURL != null || trackerTiers.isEmpty()
+                ? builder.trackerURL : trackerTiers.get(0).get(0);
         this.infoHash = builder.infoHash;
         this.pieceLength = builder.pieceLength;
-        this.pieces = builder.pieces;
+        this.pieceHashes = builder.pieceHashes;
+        this.name = builder.name;
+        this.multiFile = builder.files != null;
+        this.privateTorrent = builder.privateTorrent;
+        if (multiFile) {
+            this.files = List.copyOf(builder.files);
+            this.length = files.stream().mapToLong(FileEntry::getLength).sum();
+        } else {
+            // the name is only a suggestion for the output file, so one that isn't a single path component
+            // is cleaned up rather than rejected
+            this.files = List.of(new FileEntry(List.of(fileName(name)), builder.length));
+            this.length = builder.length;
+        }
+        this.layout = new FileLayout(files.stream().mapToLong(FileEntry::getLength).toArray(), pieceLength);
+    }
+
+    // a name that is safe to use as one path component: separators become '_', and an empty name, "." or
+    // ".." falls back to "download"
+    static String fileName(String name) {
+        if (name == null) {
+            return "download";
+        }
+        String cleaned = name.replace('/', '_').replace('\\', '_');
+        return cleaned.isEmpty() || cleaned.equals(".") || cleaned.equals("..") ? "download" : cleaned;
+    }
+
+    // empty tiers are dropped, and so is the whole list if nothing is left, in which case BEP 12 says to
+    // fall back to the announce key
+    private static List<List<String>> trackerTiers(String trackerURL, List<List<String>> announceList) {
+        List<List<String>> tiers = new ArrayList<>();
+        if (announceList != null) {
+            for (List<String> tier : announceList) {
+                if (!tier.isEmpty()) {
+                    tiers.add(List.copyOf(tier));
+                }
+            }
+        }
+        if (tiers.isEmpty() && trackerURL != null) {
+            tiers.add(List.of(trackerURL));
+        }
+        return List.copyOf(tiers);
     }
 
     public void printInfo() {
         System.out.println("Tracker URL: " + trackerURL);
+        if (trackerTiers.size() > 1 || (trackerTiers.size() == 1 && trackerTiers.get(0).size() > 1)) {
+            for (int i = 0; i < trackerTiers.size(); i++) {
+                System.out.println("Tier " + i + ": " + String.join(" ", trackerTiers.get(i)));
+            }
+        }
         System.out.println("Length: " + length);
         System.out.println("Info Hash: " + infoHash);
         System.out.println("Piece Length: " + pieceLength);
+        if (multiFile) {
+            System.out.println("Files:");
+            for (FileEntry file : files) {
+                System.out.println(String.join("/", file.getPath()) + " (" + file.getLength() + ")");
+            }
+        }
         System.out.println("Piece Hashes:");
-        for (String piece : pieces) {
-            System.out.println(piece);
+        for (int i = 0; i < getPieceCount(); i++) {
+            System.out.println(getPieceHash(i));
         }
     }
 
     public static class Builder {
         private String trackerURL;
+        private List<List<String>> announceList;
         private long length;
         private String infoHash;
         private long pieceLength;
-        private List<String> pieces;
+        private byte[] pieceHashes;
+        private String name;
+        private List<FileEntry> files;
+        private boolean privateTorrent;
 
         public Builder setTrackerURL(String trackerURL) {
             this.trackerURL = trackerURL;
             return this;
         }
 
+        public Builder setAnnounceList(List<List<String>> announceList) {
+            this.announceList = announceList;
+            return this;
+        }
+
         public Builder setLength(long length) {
             this.length = length;
             return this;
@@ -86,8 +197,27 @@ public final class Torrent {
             return this;
         }
 
-        public Builder setPieces(List<String> pieces) {
-            this.pieces = pieces;
+        public Builder setPieceHashes(byte[] pieceHashes) {
+            if (pieceHashes.length % HASH_LENGTH != 0) {
+                throw new IllegalArgumentException("Piece hashes length " + pieceHashes.length + " is not a multiple of " + HASH_LENGTH);
+            }
+            this.pieceHashes = pieceHashes;
+            return this;
+        }
+
+        public Builder setName(String name) {
+            this.name = name;
+            return this;
+        }
+
+        // makes this a multi-file torrent, its length is the sum of the file lengths
+        public Builder setFiles(List<FileEntry> files) {
+            this.files = files;
+            return this;
+        }
+
+        public Builder setPrivate(boolean privateTorrent) {
+            this.privateTorrent = privateTorrent;
             return this;
         }
 
@@ -101,6 +231,10 @@ public final class Torrent {
         return trackerURL;
     }
 
+    public List<List<String>> getTrackerTiers() {
+        return trackerTiers;
+    }
+
     public long getLength() {
         return length;
     }
@@ -112,11 +246,42 @@ public final class Torrent {
         return pieceLength;
     }
 
+    public String getName() {
+        return name;
+    }
+
+    public List<FileEntry> getFiles() {
+        return files;
+    }
+
+    public boolean isPrivate() {
+        return privateTorrent;
+    }
+
+    public boolean isMultiFile() {
+        return multiFile;
+    }
+
+    public FileLayout getLayout() {
+        return layout;
+    }
+
     public String getInfoHash() {
         return infoHash;
     }
 
-    public List<String> getPieces() {
-        return pieces;
+    public int getPieceCount() {
+        return pieceHashes.length / HASH_LENGTH;
+    }
+
+    // hex form, for printing
+    public String getPieceHash(int index) {
+        return Utils.byteToHexString(Arrays.copyOfRange(pieceHashes, index * HASH_LENGTH, (index + 1) * HASH_LENGTH));
+    }
+
+    // compares a raw digest against the stored hash without allocating
+    public boolean pieceHashMatches(int index, byte[] digest) {
+        int offset = index * HASH_LENGTH;
+        return digest.length == HASH_LENGTH && Arrays.equals(pieceHashes, offset, offset + HASH_LENGTH, digest, 0, HASH_LENGTH);
     }
 }
@@ -1,45 +1,79 @@
+import org.apache.commons.lang3.tuple.Pair;
 import com.dampcake.bencode.Bencode;
 import com.dampcake.bencode.Type;
-import org.apache.commons.lang3.tuple.Pair;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.URISyntaxException;
-import java.net.http.HttpResponse;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 public class TorrentDownloader {
 
-    private static final int PORT = 6881;
+    static final int PORT = 6881;
+
+    static final byte CHOKE_MESSAGE_ID = 0;
+    static final byte UNCHOKE_MESSAGE_ID = 1;
+    static final byte INTERESTED_MESSAGE_ID = 2;
+    static final byte HAVE_MESSAGE_ID = 4;
+    static final byte BITFIELD_MESSAGE_ID = 5;
+    static final byte REQUEST_MESSAGE_ID = 6;
+    static final byte PIECE_MESSAGE_ID = 7;
+    static final byte CANCEL_MESSAGE_ID = 8;
+    static final byte EXTENSION_MESSAGE_ID = 20;
+    static final int BLOCK_SIZE = 16384;
+    static final List<String> SUPPORTED_EXTENSIONS = List.of("ut_metadata", "ut_pex");
+
+    // a worker gives up on its peer after this many failed pieces in a row
+    private static final int MAX_CONSECUTIVE_FAILURES = 3;
+    // how long an idle worker waits before checking the picker again
+    private static final long IDLE_WAIT_MILLIS = 1000;
+    // a peer is dropped once it has sent this many pieces that failed the hash check
+    private static final int MAX_HASH_FAILURES = 2;
+    // worker threads kept available for peers that trackers report after the download has started
+    private static final int MIN_WORKER_THREADS = 64;
+
+    private static DownloadConfig config = DownloadConfig.fromSystemProperties();
+    private static volatile DownloadMetrics lastMetrics;
 
-    private static final byte UNCHOKE_MESSAGE_ID = 1;
-    private static final byte INTERESTED_MESSAGE_ID = 2;
-    private static final byte BITFIELD_MESSAGE_ID = 5;
-    private static final byte REQUEST_MESSAGE_ID = 6;
-    private static final byte PIECE_MESSAGE_ID = 7;
-    private static final int BLOCK_SIZE = 16384;
+    public static void setConfig(DownloadConfig downloadConfig) {
+        config = downloadConfig;
+    }
 
-    private static Queue<Integer> pieceQueue = new ConcurrentLinkedQueue<>();
-    private static Map<Integer, byte[]> bufferMap = new ConcurrentHashMap<>();
-    private static Lock bufferLock = new ReentrantLock();
+    static DownloadConfig getConfig() {
+        return config;
+    }
+
+    // kept once the download is over so a harness that ran it through Main can read the results
+    static DownloadMetrics getLastMetrics() {
+        return lastMetrics;
+    }
+
+    static PeerConnection connectToPeer(String peer) throws IOException {
+        String host = peer.split(":")[0];
+        int port = Integer.parseInt(peer.split(":")[1]);
+        if (config.getNetworkEngine() == DownloadConfig.NetworkEngine.NIO) {
+            return NioPeerEngine.shared(config.getIoThreads()).connect(host, port, config.getConnectTimeoutMillis());
+        }
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), config.getConnectTimeoutMillis());
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return new TCPService(socket);
+    }
 
     public static byte[] downloadPieceFromPeer(Torrent torrent, String peer, int index, boolean isMagnetHandshake) {
-        try (Socket socket = new Socket(peer.split(":")[0], Integer.parseInt(peer.split(":")[1]))) {
-            TCPService tcpService = new TCPService(socket);
-            int pieceLength = (int) torrent.getPieceLength(index);
-            if (isMagnetHandshake) {
-                performMagnetHandshakeOnPeer(tcpService, torrent.getInfoHash());
-                return downloadPieceHelper(tcpService, pieceLength, index);
-            } else {
-                performHandshake(torrent.getInfoHash(), tcpService, false);
-                return downloadPieceHelper(pieceLength, tcpService, index);
-            }
+        try (PeerSession session = PeerSession.open(peer, torrent.getInfoHash(), torrent.getPieceCount(),
+                isMagnetHandshake)) {
+            return session.downloadPiece(index, (int) torrent.getPieceLength(index), () -> false);
         } catch (Exception e) {
             throw new RuntimeException("Error downloading piece from peer: " + e.getMessage());
         }
@@ -56,81 +90,39 @@ public class TorrentDownloader {
             throw new RuntimeException("No peers available to download from");
         }
         byte piece[] = null;
-        for (String peer : peerList) {
-            try {
-                System.out.println("Downloading piece from peer: " + peer);
-                piece = downloadPieceFromPeer(torrent, peer, index, isMagnetHandshake);
-                break;
-            } catch (Exception e) {
-                System.out.println("Error downloading piece from peer: " + peer + ", " + e.getMessage());
+        // every peer is dialed at once, the piece is fetched from whichever handshakes first
+        try (ConnectionManager.Dial dial = ConnectionManager.dial(peerList, torrent.getInfoHash(), torrent.getPieceCount(),
+                isMagnetHandshake, config.getMaxHalfOpen())) {
+            PeerSession session;
+            while (piece == null && (session = dial.next()) != null) {
+                try (PeerSession current = session) {
+                    if (Log.INFO) {
+                        System.out.println("Downloading piece from peer: " + current.getPeer());
+                    }
+                    piece = current.downloadPiece(index, (int) torrent.getPieceLength(index), () -> false);
+                } catch (Exception e) {
+                    System.out.println("Error downloading piece from peer: " + session.getPeer() + ", " + e.getMessage());
+                }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
         if (piece == null) {
             throw new RuntimeException("Failed to download piece: " + index);
         }
-        if (!validatePieceHash(torrent.getPieces().get(index), piece)) {
+        if (!validatePieceHash(torrent, index, piece)) {
             throw new RuntimeException("Piece hash validation failed: " + index);
         }
         return piece;
     }
 
-    private static boolean validatePieceHash(String expectedPieceHash, byte[] piece) {
-        String actualPieceHash = Utils.calculateSHA1(piece);
-        if (!expectedPieceHash.equals(actualPieceHash)) {
-            System.out.println("Hash validation failed. Expected hash: " + expectedPieceHash + ", Actual hash: " + actualPieceHash);
-        }
-        return expectedPieceHash.equals(actualPieceHash);
-    }
-
-    public static byte[] downloadPieceHelper(int pieceLength, TCPService tcpService, int index) throws Exception {
-        byte[] bitfieldMessage = tcpService.waitForMessage();
-        if (bitfieldMessage[0] != BITFIELD_MESSAGE_ID) {
-            throw new RuntimeException("Expected bitfield message (5) from peer, but received different message: " + bitfieldMessage[0]);
-        }
-        System.out.println("Received bitfield message");
-        byte[] piece = downloadPieceHelper(tcpService, pieceLength, index);
-        return piece;
-    }
-    public static byte[] downloadPieceHelper(TCPService tcpService, int pieceLength, int index) throws Exception {
-        // send an interested message to the peer
-        byte[] interestedMessage = new byte[]{0, 0, 0, 1, INTERESTED_MESSAGE_ID};
-        tcpService.sendMessage(interestedMessage);
-        byte[] unchokeMessage = tcpService.waitForMessage();
-        if (unchokeMessage[0] != UNCHOKE_MESSAGE_ID) {
-            throw new RuntimeException("Expected unchoke message (1) from peer, but received different message: " + unchokeMessage[0]);
-        }
-        System.out.println("Received unchoke message");
-        int blocks = (int) Math.ceil((double) pieceLength / BLOCK_SIZE);
-        int offset = 0;
-        byte[] piece = new byte[pieceLength];
-        for (int blockIndex = 0; blockIndex < blocks; blockIndex++) {
-            int blockLength = Math.min(BLOCK_SIZE, pieceLength - offset);
-            byte[] requestPayload = TCPService.createRequestPayload(index, offset, blockLength);
-            tcpService.sendMessage(REQUEST_MESSAGE_ID, requestPayload);
-            byte[] pieceMessage = tcpService.waitForMessage();
-            if (pieceMessage[0] != PIECE_MESSAGE_ID) {
-                throw new RuntimeException("Expected piece message (7) from peer, but received different message: " + pieceMessage[0]);
-            }
-            System.out.println("Received piece message for block: " + blockIndex + " out of " + blocks);
-            System.arraycopy(pieceMessage, 9, piece, offset, blockLength);
-            offset += blockLength;
-        }
-        return piece;
-    }
-
-    private static List<String> getPeerListFromHTTPResponse(HttpResponse<byte[]> response) {
-        Bencode bencode = new Bencode(true);
-        Map<String, Object> decodedResponse = bencode.decode(response.body(), Type.DICTIONARY);
-        byte[] peersBytes = ((ByteBuffer) decodedResponse.get("peers")).array();
-
-        List<String> peerList = new ArrayList<>();
-        for (int i = 0; i < peersBytes.length; i += 6) {
-            String ip = String.format("%d.%d.%d.%d", peersBytes[i] & 0xff, peersBytes[i + 1] & 0xff,
-                    peersBytes[i + 2] & 0xff, peersBytes[i + 3] & 0xff);
-            int port = ((peersBytes[i + 4] & 0xff) << 8) | (peersBytes[i + 5] & 0xff);
-            peerList.add(ip + ":" + port);
+    private static boolean validatePieceHash(Torrent torrent, int index, byte[] piece) {
+        byte[] actualPieceHash = Utils.sha1(piece);
+        boolean matches = torrent.pieceHashMatches(index, actualPieceHash);
+        if (!matches) {
+            System.out.println("Hash validation failed. Expected hash: " + torrent.getPieceHash(index) + ", Actual hash: " + Utils.byteToHexString(actualPieceHash));
         }
-        return peerList;
+        return matches;
     }
 
     private static void validateHandshakeResponse(byte[] response,
@@ -155,14 +147,29 @@ public class TorrentDownloader {
     }
 
 
-    static void performHandshake(String infoHash, TCPService tcpService, boolean isMagnetHandshake) {
-        byte[] handshakeMessage = createHandshakeMessage(infoHash, isMagnetHandshake);
-        tcpService.sendMessage(handshakeMessage);
-        byte[] handshakeResponse = tcpService.waitForHandshakeResponse();
+    // the `handshake` command: the peer ID is its result
+    static void performHandshake(String infoHash, PeerConnection connection, boolean isMagnetHandshake) {
+        byte[] response = performHandshake(infoHash, connection, isMagnetHandshake, isMagnetHandshake);
+        System.out.println("Peer ID: " + peerIdOf(response));
+    }
+
+    // advertiseExtensions sets the extension protocol bit (BEP 10); returns the peer's validated handshake
+    static byte[] performHandshake(String infoHash, PeerConnection connection, boolean isMagnetHandshake,
+                                   boolean advertiseExtensions) {
+        byte[] handshakeMessage = createHandshakeMessage(infoHash, advertiseExtensions);
+        connection.sendMessage(handshakeMessage);
+        byte[] handshakeResponse = connection.waitForHandshakeResponse();
         validateHandshakeResponse(handshakeResponse, Utils.hexStringToByteArray(infoHash), isMagnetHandshake);
-        byte[] peerIdBytes = Arrays.copyOfRange(handshakeResponse, handshakeResponse.length - 20, handshakeResponse.length);
-        String peerId = Utils.byteToHexString(peerIdBytes);
-        System.out.println("Peer ID: " + peerId);
+        return handshakeResponse;
+    }
+
+    static String peerIdOf(byte[] handshake) {
+        return Utils.byteToHexString(Arrays.copyOfRange(handshake, handshake.length - 20, handshake.length));
+    }
+
+    // whether the peer set the extension protocol bit in its handshake
+    static boolean supportsExtensions(byte[] handshake) {
+        return (handshake[25] & 0x10) != 0;
     }
 
     static byte[] createHandshakeMessage(String infoHash, boolean isMagnetHandshake) {
@@ -186,138 +193,590 @@ public class TorrentDownloader {
     }
 
     public static void downloadTorrent(Torrent torrent, String storageFilePath, boolean isMagnetDownload) {
-        int numPieces = torrent.getPieces().size();
+        downloadTorrent(torrent, storageFilePath, isMagnetDownload, List.of());
+    }
 
-        // create a queue of pieces to download
-        // add all the pieces to the queue
-        for (int i = 0; i < numPieces; i++) {
-            pieceQueue.add(i);
+    // openSessions are already handshaken connections (e.g. the magnet metadata peer) that get reused
+    // instead of dialing those peers again
+    public static void downloadTorrent(Torrent torrent, String storageFilePath, boolean isMagnetDownload,
+                                       List<PeerSession> openSessions) {
+        downloadTorrent(torrent, storageFilePath, isMagnetDownload, openSessions, null, null);
+    }
+
+    // starts downloading in the background and returns the content as a stream that can be read while
+    // pieces are still arriving; the file at storageFilePath is written as usual
+    public static PieceStream stream(Torrent torrent, String storageFilePath) {
+        if (!config.getSkippedFiles().isEmpty()) {
+            throw new IllegalArgumentException("Streaming needs every file, it can't be combined with skipFiles");
         }
-        // create a connection pool to each peer
-        List<String> peerList;
-        try {
-            peerList = getPeerList(torrent);
-            int numPeers = peerList.size();
-            ExecutorService executorService = Executors.newFixedThreadPool(numPeers);
-            for (String peer : peerList) {
-                executorService.submit(() -> worker(torrent, peer, isMagnetDownload));
-            }
-            executorService.shutdown();
+        PieceStream stream = new PieceStream(torrent, storageFilePath, config.getStreamBufferBytes());
+        Thread thread = new Thread(() -> {
             try {
-                executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
-            } catch (InterruptedException e) {
-                System.out.println("Error waiting for executor service to terminate: " + e.getMessage());
+                downloadTorrent(torrent, storageFilePath, false, List.of(), stream, null);
+            } finally {
+                stream.finish();
+            }
+        }, "stream-download");
+        stream.setDownloadThread(thread);
+        thread.start();
+        return stream;
+    }
+
+    // stream, if not null, is fed every verified piece and decides the order they are fetched in; limits
+    // are the torrent's part of a Session's caps, null outside one. Returns true once every wanted piece
+    // is on disk.
+    static boolean downloadTorrent(Torrent torrent, String storageFilePath, boolean isMagnetDownload,
+                                   List<PeerSession> openSessions, PieceStream stream, Session.Limits limits) {
+        // until downloadFromPeers takes them over, the metadata sessions are ours to close
+        boolean handedOver = false;
+        boolean complete = false;
+        try (ResumeJournal journal = ResumeJournal.open(storageFilePath, torrent, config.getSkippedFiles())) {
+            // the journal only trusts pieces whose files are still there with the recorded size
+            BitSet needed = new BitSet();
+            needed.set(0, torrent.getPieceCount());
+            needed.andNot(torrent.getLayout().piecesOnlyIn(config.getSkippedFiles()));
+            needed.andNot(journal.getCompletedPieces());
+            if (needed.isEmpty()) {
+                System.out.println("All pieces already downloaded according to the resume journal");
+                if (stream != null) {
+                    stream.attach(null, journal.getCompletedPieces(), null);
+                }
+                return true;
             }
-            // write the pieces to the file
-            for (int i = 0; i < numPieces; i++) {
-                bufferLock.lock();
+            // every tier of the announce-list keeps feeding this store for as long as the download runs
+            PeerStore peerStore = new PeerStore();
+            try (Announcer announcer = new Announcer(torrent, config.getListenPort(), peerStore,
+                    TrackerClient.progress(0, 0, bytesOf(torrent, needed)))) {
                 try {
-                    Utils.writePieceToFile(storageFilePath, bufferMap.get(i));
+                    if (!announcer.start()) {
+                        System.out.println("Error getting peer list: no tracker answered");
+                        return false;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                handedOver = true;
+                complete = downloadFromPeers(torrent, storageFilePath, isMagnetDownload, peerStore, announcer, journal,
+                        openSessions, stream, limits);
+            }
+        } catch (IOException e) {
+            System.out.println("Error closing resume journal: " + e.getMessage());
+        } finally {
+            if (!handedOver) {
+                openSessions.forEach(TorrentDownloader::closeQuietly);
+            }
+        }
+        return complete;
+    }
+
+    private static long bytesOf(Torrent torrent, BitSet pieces) {
+        long bytes = 0;
+        for (int i = pieces.nextSetBit(0); i >= 0 && i < torrent.getPieceCount(); i = pieces.nextSetBit(i + 1)) {
+            bytes += torrent.getPieceLength(i);
+        }
+        return bytes;
+    }
+
+    static void downloadFromPeers(Torrent torrent, String storageFilePath, boolean isMagnetDownload,
+                                  List<String> peers, List<PeerSession> openSessions) {
+        try (ResumeJournal journal = ResumeJournal.open(storageFilePath, torrent, config.getSkippedFiles())) {
+            downloadFromPeers(torrent, storageFilePath, isMagnetDownload, new PeerStore(peers), null, journal,
+                    openSessions, null, null);
+        } catch (IOException e) {
+            System.out.println("Error closing resume journal: " + e.getMessage());
+        }
+    }
+
+    // announcer is null when the peers are fixed up front. The caller owns the journal and closes it once
+    // this returns, which is after the storage file is final; the open sessions are closed here.
+    private static boolean downloadFromPeers(Torrent torrent, String storageFilePath, boolean isMagnetDownload,
+                                             PeerStore peerStore, Announcer announcer, ResumeJournal journal,
+                                             List<PeerSession> openSessions, PieceStream stream,
+                                             Session.Limits limits) {
+        int numPieces = torrent.getPieceCount();
+        PiecePicker picker = new PiecePicker(numPieces, torrent.getPieceLength(0), torrent.getLength(),
+                config.getEndgameBlocks());
+        Map<String, PeerSession> sessionsByPeer = new ConcurrentHashMap<>();
+        for (PeerSession session : openSessions) {
+            sessionsByPeer.put(session.getPeer(), session);
+        }
+        peerStore.addAll(sessionsByPeer.keySet(), "metadata");
+        // one task per peer; the scope cancels everything once the download completes or a task fails.
+        // Seeding stops before the storage it reads from is closed.
+        try (DownloadMetrics metrics = DownloadMetrics.start(torrent, picker, config.getStatsIntervalSeconds());
+             PieceStorage storage = PieceStorage.open(storageFilePath, torrent, config.getSkippedFiles(),
+                     config.getStorageMode());
+             SeedServer.Registration seeding = startSeeding(torrent, storage, journal);
+             PeerTaskScope scope = new PeerTaskScope(config.getExecutionMode(),
+                     Math.max(peerStore.size(), MIN_WORKER_THREADS))) {
+            WorkerGate workers = new WorkerGate(limits == null ? null : limits.getConnections());
+            // closing the verifier lets anything the workers handed off before the scope finished still
+            // get checked and written before the outcome is read
+            try (PieceVerifier verifier = new PieceVerifier(torrent, config.getVerifyThreads(), metrics,
+                    verificationListener(torrent, storage, journal, seeding, picker, scope, metrics, stream))) {
+                lastMetrics = metrics;
+                metrics.setVerifyQueueLength(verifier::getQueuedPieces);
+                BitSet alreadyHave = journal.getCompletedPieces();
+                picker.markAlreadyHave(alreadyHave);
+                BitSet skipped = torrent.getLayout().piecesOnlyIn(config.getSkippedFiles());
+                skipped.andNot(alreadyHave);
+                picker.skip(skipped);
+                if (Log.INFO && !config.getSkippedFiles().isEmpty()) {
+                    System.out.println("Skipping " + skipped.cardinality()
+                            + " pieces that only cover deselected files");
+                }
+                if (Log.INFO && alreadyHave.cardinality() > 0) {
+                    System.out.println("Resuming with " + alreadyHave.cardinality() + " of " + numPieces
+                            + " pieces already on disk");
+                }
+                if (stream != null) {
+                    stream.attach(picker, alreadyHave, scope::shutdown);
+                }
+                if (announcer != null) {
+                    long startRemaining = picker.remainingBytes();
+                    announcer.setProgress(new TrackerClient.Progress() {
+                        @Override
+                        public long uploaded() {
+                            return seeding == null ? 0 : seeding.getUploadedBytes();
+                        }
+
+                        @Override
+                        public long downloaded() {
+                            return startRemaining - picker.remainingBytes();
+                        }
+
+                        @Override
+                        public long left() {
+                            return picker.remainingBytes();
+                        }
+                    });
+                }
+                BandwidthLimiter.Share bandwidth = limits == null ? null : limits.getBandwidth();
+                // BEP 27 keeps private torrents to the peers their trackers hand out
+                PeerExchange peerExchange = config.isPeerExchange() && !torrent.isPrivate()
+                        ? new PeerExchange(peerStore) : null;
+                workers.setLauncher((peer, session) -> {
+                    if (picker.isComplete() || scope.isShutdown()) {
+                        closeQuietly(session);
+                        workers.release();
+                        return;
+                    }
+                    peerStore.workerStarted(peer);
+                    scope.fork(() -> {
+                        try {
+                            worker(torrent, peer, isMagnetDownload, session, verifier, picker, scope, metrics,
+                                    bandwidth, peerStore, peerExchange);
+                        } finally {
+                            peerStore.workerFinished(peer, !picker.isComplete() && !scope.isShutdown());
+                            workers.finished();
+                        }
+                        if (announcer != null && !picker.isComplete() && !scope.isShutdown()) {
+                            // a peer was lost, ask for more as soon as the trackers allow it
+                            announcer.requestPeers();
+                        }
+                        return null;
+                    });
+                });
+                BiConsumer<String, PeerSession> startWorker = workers::offer;
+                // peers that re-announces turn up while the download runs get a worker of their own
+                Consumer<String> newPeers = peer -> {
+                    if (!picker.isComplete() && !scope.isShutdown()) {
+                        if (Log.INFO) {
+                            System.out.println("Connecting to new peer " + peer + " from " + peerStore.getSource(peer));
+                        }
+                        startWorker.accept(peer, null);
+                    }
+                };
+                try {
+                    for (String peer : peerStore.subscribe(newPeers)) {
+                        if (picker.isComplete()) {
+                            break;
+                        }
+                        startWorker.accept(peer, sessionsByPeer.remove(peer));
+                    }
+                    scope.join();
                 } finally {
-                    bufferLock.unlock();
+                    peerStore.unsubscribe(newPeers);
                 }
             }
+            workers.dropWaiting().forEach(TorrentDownloader::closeQuietly);
+            scope.throwIfFailed();
+            System.out.println(picker.completionSummary());
+            System.out.println(peerStore.summary());
+            if (announcer != null && picker.isComplete()) {
+                announcer.completed();
+            }
+            if (!picker.isComplete() && stream != null && stream.isClosed()) {
+                System.out.println("Stopped with " + (numPieces - picker.completedCount()) + " pieces left, the stream was closed");
+                return false;
+            }
+            if (!picker.isComplete()) {
+                throw new RuntimeException("Ran out of peers with " + (numPieces - picker.completedCount()) + " pieces left");
+            }
+            return true;
         } catch (Exception e) {
-            System.out.println("Error getting peer list: " + e.getMessage());
+            System.out.println("Error downloading torrent: " + e.getMessage());
+            return false;
+        } finally {
+            // sessions whose peers never got a worker, because there was nothing left to fetch or the
+            // download failed before it started
+            sessionsByPeer.values().forEach(TorrentDownloader::closeQuietly);
         }
     }
-    private static void worker(Torrent torrent, String peer, boolean isMagnetDownload) {
-        while (true) {
-            Integer pieceIndex = pieceQueue.poll();
-            if (pieceIndex == null) {
-                break;
+
+    // starts peer workers. In a Session only as many run as the torrent's connection share allows, the
+    // other peers queue in arrival order until a worker exits or the share grows; outside one every
+    // peer starts straight away.
+    private static final class WorkerGate {
+        private final ConnectionBudget.Share connections;
+        private final Deque<Map.Entry<String, PeerSession>> waiting = new ArrayDeque<>();
+        private BiConsumer<String, PeerSession> launcher;
+
+        WorkerGate(ConnectionBudget.Share connections) {
+            this.connections = connections;
+            if (connections != null) {
+                connections.setOnAvailable(this::drain);
             }
-            // calculate the piece length based on the piece index
-            try {
-                byte[] piece = downloadPieceFromPeer(torrent, peer, pieceIndex, isMagnetDownload);
-                bufferLock.lock();
+        }
+
+        void setLauncher(BiConsumer<String, PeerSession> launcher) {
+            this.launcher = launcher;
+        }
+
+        void offer(String peer, PeerSession session) {
+            synchronized (this) {
+                waiting.add(new AbstractMap.SimpleEntry<>(peer, session));
+            }
+            drain();
+        }
+
+        // a worker exited, its slot can go to the next peer
+        void finished() {
+            release();
+            drain();
+        }
+
+        void release() {
+            if (connections != null) {
+                connections.release();
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                Map.Entry<String, PeerSession> next;
+                synchronized (this) {
+                    if (waiting.isEmpty() || (connections != null && !connections.tryAcquire())) {
+                        return;
+                    }
+                    next = waiting.poll();
+                }
+                launcher.accept(next.getKey(), next.getValue());
+            }
+        }
+
+        // the sessions of peers that never got a worker
+        synchronized List<PeerSession> dropWaiting() {
+            List<PeerSession> sessions = new ArrayList<>();
+            for (Map.Entry<String, PeerSession> entry : waiting) {
+                if (entry.getValue() != null) {
+                    sessions.add(entry.getValue());
+                }
+            }
+            waiting.clear();
+            return sessions;
+        }
+    }
+
+    private static void worker(Torrent torrent, String peer, boolean isMagnetDownload, PeerSession session,
+                               PieceVerifier verifier, PiecePicker picker, PeerTaskScope scope,
+                               DownloadMetrics metrics, BandwidthLimiter.Share bandwidth, PeerStore peerStore,
+                               PeerExchange peerExchange) {
+        int consecutiveFailures = 0;
+        try {
+            while (consecutiveFailures < MAX_CONSECUTIVE_FAILURES && !scope.isShutdown() && !picker.isComplete()) {
+                if (verifier.hashFailures(peer) >= MAX_HASH_FAILURES) {
+                    if (Log.INFO) {
+                        System.out.println("Dropping peer " + peer + " after " + verifier.hashFailures(peer)
+                                + " corrupt pieces");
+                    }
+                    break;
+                }
+                Integer pieceIndex = null;
+                byte[] piece;
                 try {
-                    bufferMap.put(pieceIndex, piece);
-                    System.out.println("Downloaded piece: " + pieceIndex);
-                } finally {
-                    bufferLock.unlock();
+                    if (session == null) {
+                        session = PeerSession.open(peer, torrent.getInfoHash(), torrent.getPieceCount(),
+                                isMagnetDownload);
+                    }
+                    if (!session.isAttached()) {
+                        // a session left over from fetching the metadata checks its bitfield here, now
+                        // that the piece count is known
+                        session.attach(picker);
+                        scope.register(session);
+                    }
+                    if (!session.hasMetrics()) {
+                        session.setMetrics(metrics.peerConnected(peer, session.getPipelineDepth()));
+                        peerStore.connected(peer);
+                    }
+                    session.setBandwidth(bandwidth);
+                    if (peerExchange != null && !session.hasPeerExchange()) {
+                        session.setPeerExchange(peerExchange.link(session));
+                    }
+                    session.exchangePeers();
+                    pieceIndex = picker.pick(session.getPeerPieces());
+                    if (pieceIndex == null) {
+                        if (picker.peerHasRemaining(session.getPeerPieces())) {
+                            // everything this peer has is being fetched elsewhere, wait in case one fails
+                            picker.awaitChange(IDLE_WAIT_MILLIS);
+                        } else {
+                            // the peer has nothing we need yet, block until it announces a new piece
+                            session.readMessage();
+                        }
+                        continue;
+                    }
+                    int index = pieceIndex;
+                    long pieceStart = System.nanoTime();
+                    piece = session.downloadPiece(pieceIndex, (int) torrent.getPieceLength(pieceIndex),
+                            () -> picker.isCompleted(index));
+                    if (piece != null) {
+                        metrics.pieceDownloaded(System.nanoTime() - pieceStart);
+                    }
+                    consecutiveFailures = 0;
+                } catch (InterruptedException e) {
+                    break;
+                } catch (Exception e) {
+                    if (scope.isShutdown()) {
+                        // the download finished or failed elsewhere and closed this session under us
+                        break;
+                    }
+                    System.out.println("Error downloading piece: " + e.getMessage());
+                    if (pieceIndex != null) {
+                        picker.release(pieceIndex);
+                        metrics.pieceFailed();
+                    }
+                    consecutiveFailures++;
+                    // the connection is in an unknown state, reconnect for the next piece
+                    closeSession(session, scope);
+                    peerStore.disconnected(peer);
+                    session = null;
+                    continue;
+                }
+                if (piece == null || picker.isCompleted(pieceIndex)) {
+                    // another peer won the endgame race for this piece
+                    picker.release(pieceIndex);
+                    continue;
+                }
+                // hashing happens on the verifier's threads, this one goes straight back to the network
+                picker.markDownloaded(pieceIndex);
+                try {
+                    verifier.submit(pieceIndex, piece, peer);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        } finally {
+            if (Log.INFO && session != null) {
+                System.out.println("Peer " + peer + " finished with pipeline " + session.getPipelineDepth());
+            }
+            closeSession(session, scope);
+        }
+    }
+
+    // serves whatever the resume journal says is on disk until the process is stopped
+    public static void seed(Torrent torrent, String storageFilePath) {
+        try (ResumeJournal journal = ResumeJournal.open(storageFilePath, torrent, config.getSkippedFiles());
+             PieceStorage storage = PieceStorage.openReadOnly(storageFilePath, torrent)) {
+            SeedServer server = SeedServer.shared(config.getListenPort());
+            if (server == null) {
+                return;
+            }
+            BitSet pieces = servablePieces(torrent, journal.getCompletedPieces());
+            try (SeedServer.Registration registration = server.register(torrent, storage, pieces)) {
+                System.out.println("Seeding " + pieces.cardinality() + " of " + torrent.getPieceCount() + " pieces");
+                long left = torrent.getLength() - bytesOf(torrent, pieces);
+                // the announces let the trackers hand our address to other peers, the peers they
+                // return are of no use to a seed
+                Announcer announcer = new Announcer(torrent, config.getListenPort(), new PeerStore(),
+                        new TrackerClient.Progress() {
+                            @Override
+                            public long uploaded() {
+                                return registration.getUploadedBytes();
+                            }
+
+                            @Override
+                            public long downloaded() {
+                                return 0;
+                            }
+
+                            @Override
+                            public long left() {
+                                return left;
+                            }
+                        });
+                if (!announcer.start()) {
+                    System.out.println("Error announcing to tracker: no tracker answered, only peers that already know us can connect");
+                }
+                Thread.sleep(Long.MAX_VALUE);
+            }
+        } catch (IOException e) {
+            System.out.println("Error seeding torrent: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // returns null when seeding is turned off or the listen port is taken
+    private static SeedServer.Registration startSeeding(Torrent torrent, PieceStorage storage, ResumeJournal journal) {
+        if (!config.isSeeding()) {
+            return null;
+        }
+        SeedServer server = SeedServer.shared(config.getListenPort());
+        if (server == null) {
+            return null;
+        }
+        return server.register(torrent, storage, servablePieces(torrent, journal.getCompletedPieces()));
+    }
+
+    // pieces that reach into a deselected file are only partly on disk and can't be uploaded
+    private static BitSet servablePieces(Torrent torrent, BitSet pieces) {
+        BitSet servable = (BitSet) pieces.clone();
+        servable.andNot(torrent.getLayout().piecesTouching(config.getSkippedFiles()));
+        return servable;
+    }
+
+    private static PieceVerifier.Listener verificationListener(Torrent torrent, PieceStorage storage, ResumeJournal journal,
+                                                               SeedServer.Registration seeding, PiecePicker picker,
+                                                               PeerTaskScope scope, DownloadMetrics metrics,
+                                                               PieceStream stream) {
+        BitSet unservable = torrent.getLayout().piecesTouching(config.getSkippedFiles());
+        return new PieceVerifier.Listener() {
+            @Override
+            public void verified(int index, byte[] piece) {
+                // each piece goes to its own offset as soon as it is verified
+                storage.writePiece(index, piece);
+                if (!picker.complete(index)) {
+                    // a duplicate from endgame, the first copy already counted
+                    return;
+                }
+                journal.markComplete(index);
+                if (stream != null) {
+                    stream.offer(index, piece);
+                }
+                if (seeding != null && !unservable.get(index)) {
+                    seeding.pieceCompleted(index);
+                }
+                if (Log.INFO) {
+                    System.out.println("Downloaded piece: " + index);
                 }
-            } catch (Exception e) {
-                System.out.println("Error downloading piece: " + e.getMessage());
-                pieceQueue.add(pieceIndex);
+                if (picker.isComplete()) {
+                    scope.shutdown();
+                }
+            }
+
+            @Override
+            public void failed(int index, String peer) {
+                System.out.println("Piece " + index + " from peer " + peer + " failed the hash check");
+                metrics.hashFailed();
+                picker.release(index);
+            }
+
+            @Override
+            public void error(Exception e) {
+                // a storage or journal failure fails the whole download
+                scope.fail(e);
             }
+        };
+    }
+
+    private static void closeSession(PeerSession session, PeerTaskScope scope) {
+        if (session != null) {
+            scope.unregister(session);
+            closeQuietly(session);
         }
     }
 
-    static List<String> getPeerList(Torrent torrent) throws URISyntaxException, IOException, InterruptedException {
-        String url = torrent.getTrackerURL();
-        String infoHash = new String(Utils.hexStringToByteArray(torrent.getInfoHash()),
-                StandardCharsets.ISO_8859_1);
-        byte[] peerIdBytes = Utils.getRandomBytes(10);
-        String peerId = Utils.byteToHexString(peerIdBytes);
+    private static void closeQuietly(PeerSession session) {
+        if (session == null) {
+            return;
+        }
+        try {
+            session.close();
+        } catch (IOException e) {
+            System.out.println("Error closing connection to peer " + session.getPeer() + ": " + e.getMessage());
+        }
+    }
 
-        HttpClientService httpClientService = new HttpClientService();
-        String requestURL = httpClientService.newRequestURLBuilder(torrent.getTrackerURL())
-                .addParam("info_hash", infoHash)
-                .addParam("peer_id", peerId)
-                .addParam("port", String.valueOf(PORT))
-                .addParam("uploaded", "0")
-                .addParam("downloaded", "0")
-                .addParam("left", String.valueOf(torrent.getLength()))
-                .addParam("compact", "1")
-                .build();
+    static List<String> getPeerList(Torrent torrent) throws IOException, InterruptedException {
+        return getPeerList(torrent, torrent.getTrackerURL());
+    }
 
-        HttpResponse<byte[]> response = httpClientService.sendGetRequest(requestURL);
-        return getPeerListFromHTTPResponse(response);
+    static List<String> getPeerList(Torrent torrent, String trackerURL) throws IOException, InterruptedException {
+        return TrackerClient.announce(trackerURL, Utils.hexStringToByteArray(torrent.getInfoHash()),
+                config.getListenPort(), TrackerClient.progress(0, 0, torrent.getLength()),
+                TrackerClient.Event.NONE).getPeers();
+    }
+
+    // fetches the info dict from several peers at once and returns it with the sessions it came over
+    static Pair<Torrent, List<PeerSession>> getTorrentFromMagnetURL(String magnetURL) {
+        Map<String, String> params = TorrentUtils.getParamsFromMagnetURL(magnetURL);
+        String infoHash = params.get("xt").split(":")[2];
+        String trackerURL = params.get("tr");
+        List<String> peers = getPeerListFromMagnetInfo(params);
+        int maxHalfOpen = config.getMaxHalfOpen();
+        MetadataFetcher fetcher = new MetadataFetcher(infoHash, MetadataFetcher.DEFAULT_MAX_PEERS);
+        byte[] metadata;
+        try (ConnectionManager.Dial dial = ConnectionManager.dial(peers, infoHash, PeerSession.UNKNOWN_PIECE_COUNT,
+                true, maxHalfOpen)) {
+            metadata = fetcher.fetch(dial);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while fetching metadata");
+        }
+        if (fetcher.getSessions().isEmpty()) {
+            throw new RuntimeException("Lost every peer after fetching the metadata");
+        }
+        return Pair.of(Torrent.fromMetadata(metadata, trackerURL), fetcher.getSessions());
     }
 
     public static List<String> getPeerListFromMagnetInfo(Map<String, String> magnetInfoMap) {
-        // parse the magnet URL to extract the xt, dn, and tr parameters
-        // perform a GET request to the tracker URL
-        String infoHash = new String(Utils.hexStringToByteArray(magnetInfoMap.get("xt").split(":")[2]),
-                StandardCharsets.ISO_8859_1);
-        byte[] peerIdBytes = Utils.getRandomBytes(10);
-        String peerId = Utils.byteToHexString(peerIdBytes);
-
-        HttpClientService httpClientService = new HttpClientService();
-        String requestURL = httpClientService.newRequestURLBuilder(magnetInfoMap.get("tr"))
-                .addParam("info_hash", infoHash)
-                .addParam("dn", magnetInfoMap.get("dn"))
-                .addParam("port", String.valueOf(PORT))
-                .addParam("downloaded", "0")
-                .addParam("uploaded", "0")
-                .addParam("left", "1")
-                .addParam("compact", "1")
-                .addParam("peer_id", peerId)
-                .build();
+        // the torrent's length isn't known before the metadata arrives, so claim a single byte is left
+        byte[] infoHash = Utils.hexStringToByteArray(magnetInfoMap.get("xt").split(":")[2]);
         try {
-            HttpResponse<byte[]> response = httpClientService.sendGetRequest(requestURL);
-            return getPeerListFromHTTPResponse(response);
+            return TrackerClient.announce(magnetInfoMap.get("tr"), infoHash, config.getListenPort(),
+                    TrackerClient.progress(0, 0, 1), TrackerClient.Event.NONE).getPeers();
         } catch (Exception e) {
             throw new RuntimeException("Error getting peer list from tracker: " + e.getMessage());
         }
     }
 
+    // the ID peers must use for messages of one of our extensions
+    static int localExtensionId(String extension) {
+        return SUPPORTED_EXTENSIONS.indexOf(extension) + 1;
+    }
+
     public static byte[] createExtensionHandshakeMessage(List<String> extensionList) {
         Map<String, Map<String, Integer>> extensionDict = new HashMap<>();
         Map<String, Integer> m = new HashMap<>();
-        for (String extension : extensionList) {
-            m.put(extension, 1);
+        // each extension needs its own ID so incoming messages can be told apart
+        for (int i = 0; i < extensionList.size(); i++) {
+            m.put(extensionList.get(i), i + 1);
         }
         extensionDict.put("m", m);
         byte[] extensionDictBytes = new Bencode(true).encode(extensionDict);
         // create byte array for the extension handshake message with a 4 byte length prefix, 1 byte message ID, 1 byte extension messageid, and the extension dictionary
         ByteBuffer buffer = ByteBuffer.allocate(4 + 1 + 1 + extensionDictBytes.length);
         buffer.putInt(1 + 1 + extensionDictBytes.length);
-        buffer.put((byte) 20);
+        buffer.put(EXTENSION_MESSAGE_ID);
         buffer.put((byte) 0);
         buffer.put(extensionDictBytes);
-        System.out.println("Extension handshake message created");
+        if (Log.DEBUG) {
+            System.out.println("Extension handshake message created");
+        }
         return buffer.array();
     }
 
-    public static Map<String, Object> parseExtensionHandshakeResponse(byte[] extensionHandshakeResponse) {
-        byte[] extensionDictBytes = Arrays.copyOfRange(extensionHandshakeResponse, 2, extensionHandshakeResponse.length);
-        Map<String, Object> extensionDict = new Bencode(false).decode(extensionDictBytes, Type.DICTIONARY);
-        Map<String, Object> m = (Map<String, Object>) extensionDict.get("m");
-        return m;
-    }
-
     public static byte[] createMetadataRequestMessage(int messageType, int pieceIndex, long extensionId) {
 Map<String, Integer> metadataRequestDict = new HashMap<>();
         metadataRequestDict.put("msg_type", messageType);
@@ -326,62 +785,40 @@ Map<String, Integer> metadataRequestDict = new HashMap<>();
         // create byte array for the metadata request message with a 4 byte length prefix, 1 byte message ID, and the metadata request dictionary
         ByteBuffer buffer = ByteBuffer.allocate(4 + 1 + 1 + metadataRequestDictBytes.length);
         buffer.putInt(2 + metadataRequestDictBytes.length);
-        buffer.put((byte) 20);
+        buffer.put(EXTENSION_MESSAGE_ID);
         buffer.put((byte) extensionId);
         buffer.put(metadataRequestDictBytes);
-        System.out.println("Metadata request message created");
+        if (Log.DEBUG) {
+            System.out.println("Metadata request message created");
+        }
         return buffer.array();
     }
 
-    public static Pair<TCPService, Long> performMagnetHandshakeOnPeer(TCPService tcpService, String infohash) {
-        TorrentDownloader.performHandshake(infohash, tcpService, true);
-        // wait for bitfield message
-        byte[] bitfieldMessage = tcpService.waitForMessage();
-        if (bitfieldMessage[0] != 5) {
-            System.out.println("Expected bitfield message, received different message type: " + bitfieldMessage[4]);
-        }
-        System.out.println("Received bitfield message");
-        // send extension handshake
-        List<String> extensionList = new ArrayList<>();
-        extensionList.add("ut_metadata");
-        extensionList.add("ut_pex");
-        byte[] extensionHandshakeMessage = TorrentDownloader.createExtensionHandshakeMessage(extensionList);
-        tcpService.sendMessage(extensionHandshakeMessage);
-        byte[] extensionHandshakeResponse = tcpService.waitForMessage();
-        Map<String, Object> metaDataIDMap = TorrentDownloader.parseExtensionHandshakeResponse(extensionHandshakeResponse);
-        System.out.println("Peer Metadata Extension ID: " + metaDataIDMap.get("ut_metadata"));
-        return Pair.of(tcpService, (long) metaDataIDMap.get("ut_metadata"));
-    }
-    public static Pair<TCPService, Long> performMagnetHandshakeOnPeer(Map<String, String> magnetInfo, String peerIP, int peerPort) {
-        TCPService tcpService = null;
+    public static PeerSession performMagnetHandshakeOnPeer(Map<String, String> magnetInfo, String peerIP, int peerPort) {
+        String peer = peerIP + ":" + peerPort;
         try {
-            Socket socket = new Socket(peerIP, peerPort);
-            tcpService = new TCPService(socket);
-            return performMagnetHandshakeOnPeer(tcpService, magnetInfo.get("xt").split(":")[2]);
+            return PeerSession.open(peer, magnetInfo.get("xt").split(":")[2], PeerSession.UNKNOWN_PIECE_COUNT, true);
         } catch (Exception e) {
-            System.out.println("Failed to connect to peer: " + peerIP + ":" + peerPort + " - " + e.getMessage());
+            System.out.println("Failed to connect to peer: " + peer + " - " + e.getMessage());
         }
         return null;
     }
 
-    public static Pair<TCPService, Long> performMagnetHandshake(String magnetURL) {
+    // races every peer the tracker returned and keeps the first that completes the extension handshake
+    public static PeerSession performMagnetHandshake(String magnetURL) {
         Map<String, String> magnetInfo = TorrentUtils.getParamsFromMagnetURL(magnetURL);
         List<String> peerList = TorrentDownloader.getPeerListFromMagnetInfo(magnetInfo);
-        for (String peer : peerList) {
-            String peerIP = peer.split(":")[0];
-            int peerPort = Integer.parseInt(peer.split(":")[1]);
-            Pair<TCPService, Long> handshakeResult = TorrentDownloader.performMagnetHandshakeOnPeer(magnetInfo, peerIP, peerPort);
-            return handshakeResult;
+        try {
+            PeerSession session = ConnectionManager.race(peerList, magnetInfo.get("xt").split(":")[2],
+                    PeerSession.UNKNOWN_PIECE_COUNT, true, config.getMaxHalfOpen());
+            if (session != null) {
+                System.out.println("Peer ID: " + session.getPeerId());
+                System.out.println("Peer Metadata Extension ID: " + session.getMetadataExtensionId());
+            }
+            return session;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
         }
-        return null;
-    }
-
-    public static Map<String, Object> getMetadataFromMessage(byte[] metadataResponse) {
-        byte[] payloadBytes = Arrays.copyOfRange(metadataResponse, 2, metadataResponse.length);
-        Map<String, Object> metadataDict = new Bencode(false).decode(payloadBytes, Type.DICTIONARY);
-        int metadataPieceLength = ((Number) metadataDict.get("total_size")).intValue();
-        byte[] metadataPieceBytes = Arrays.copyOfRange(payloadBytes, payloadBytes.length - metadataPieceLength, payloadBytes.length);
-        Map<String, Object> metadataPieceDict = new Bencode(true).decode(metadataPieceBytes, Type.DICTIONARY);
-        return metadataPieceDict;
     }
 }
@@ -1,19 +1,9 @@
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 public class TorrentUtils {
-    public static List<String> splitPieceHashes(byte[] pieces, int pieceLength, List<String> pieceHashes) {
-        for (int i = 0; i < pieces.length; i += pieceLength) {
-            String pieceHashString = Utils.byteToHexString(Arrays.copyOfRange(pieces, i, i + pieceLength));
-            pieceHashes.add(pieceHashString);
-        }
-        return pieceHashes;
-    }
-
     static Torrent getTorrentFromPath(String torrentFilePath) {
         byte[] torrentFileBytes = Utils.readTorrentFile(torrentFilePath);
         Torrent torrent = Torrent.fromBytes(torrentFileBytes);
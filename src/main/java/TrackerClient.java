@@ -0,0 +1,169 @@
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// a single announce to a single tracker. udp:// trackers are handed to UdpTrackerClient; HTTP requests
+// go through the shared HttpClient so that re-announces reuse the tracker connection, and responses are
+// read in place with BencodeReader in either the compact or the dictionary peer format.
+public final class TrackerClient {
+
+    // what we have transferred so far, reported with every announce
+    public interface Progress {
+        long uploaded();
+
+        long downloaded();
+
+        long left();
+    }
+
+    // the HTTP event parameter and the BEP 15 event code
+    public enum Event {
+        NONE(null, 0),
+        COMPLETED("completed", 1),
+        STARTED("started", 2),
+        STOPPED("stopped", 3);
+
+        private final String param;
+        final int udpCode;
+
+        Event(String param, int udpCode) {
+            this.param = param;
+            this.udpCode = udpCode;
+        }
+    }
+
+    // used when a tracker doesn't say how often to come back
+    static final int DEFAULT_INTERVAL_SECONDS = 1800;
+
+    // one id per run, so trackers see our re-announces as the same peer
+    static final String PEER_ID = Utils.byteToHexString(Utils.getRandomBytes(10));
+
+    private TrackerClient() {
+    }
+
+    public static final class Response {
+        private final List<String> peers;
+        private final int interval;
+        private final int minInterval;
+
+        Response(List<String> peers, int interval, int minInterval) {
+            this.peers = peers;
+            this.interval = interval;
+            this.minInterval = minInterval;
+        }
+
+        public List<String> getPeers() {
+            return peers;
+        }
+
+        // seconds until the tracker expects the next announce
+        public int getInterval() {
+            return interval;
+        }
+
+        // seconds before which the tracker doesn't want to hear from us again, 0 if it didn't say
+        public int getMinInterval() {
+            return minInterval;
+        }
+    }
+
+    public static Progress progress(long uploaded, long downloaded, long left) {
+        return new Progress() {
+            @Override
+            public long uploaded() {
+                return uploaded;
+            }
+
+            @Override
+            public long downloaded() {
+                return downloaded;
+            }
+
+            @Override
+            public long left() {
+                return left;
+            }
+        };
+    }
+
+    public static Response announce(String trackerURL, byte[] infoHash, int port, Progress progress, Event event)
+            throws IOException, InterruptedException {
+        if (trackerURL.startsWith("udp://")) {
+            return UdpTrackerClient.shared().announce(trackerURL, infoHash, port, progress, event);
+        }
+        if (!trackerURL.startsWith("http://") && !trackerURL.startsWith("https://")) {
+            throw new IOException("Unsupported tracker protocol: " + trackerURL);
+        }
+        HttpClientService httpClientService = HttpClientService.shared();
+        HttpClientService.RequestURLBuilder request = httpClientService.newRequestURLBuilder(trackerURL)
+                .addParam("info_hash", new String(infoHash, StandardCharsets.ISO_8859_1))
+                .addParam("peer_id", PEER_ID)
+                .addParam("port", String.valueOf(port))
+                .addParam("uploaded", String.valueOf(progress.uploaded()))
+                .addParam("downloaded", String.valueOf(progress.downloaded()))
+                .addParam("left", String.valueOf(progress.left()))
+                .addParam("compact", "1");
+        if (event.param != null) {
+            request.addParam("event", event.param);
+        }
+        HttpResponse<byte[]> response;
+        try {
+            response = httpClientService.sendGetRequest(request.build());
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid tracker URL: " + trackerURL);
+        } catch (IOException e) {
+            // e.g. a refused connection, which HttpClient reports without a message
+            throw e.getMessage() != null ? e : new IOException(e.getClass().getSimpleName(), e);
+        }
+        if (response.statusCode() != 200) {
+            throw new IOException("Tracker returned HTTP " + response.statusCode());
+        }
+        return parseResponse(response.body());
+    }
+
+    public static Response parseResponse(byte[] body) throws IOException {
+        try {
+            return parseResponse(BencodeReader.readDict(body));
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid tracker response: " + e.getMessage());
+        }
+    }
+
+    private static Response parseResponse(BencodeReader.Dict dict) throws IOException {
+        if (dict.containsKey("failure reason")) {
+            throw new IOException("Tracker error: " + dict.getString("failure reason"));
+        }
+        if (dict.containsKey("warning message")) {
+            System.out.println("Tracker warning: " + dict.getString("warning message"));
+        }
+        List<String> peers = new ArrayList<>();
+        if (dict.isString("peers")) {
+            peers = parseCompactPeers(dict.getBytes("peers"));
+        } else if (dict.isList("peers")) {
+            for (BencodeReader.Dict peer : dict.getDictList("peers")) {
+                peers.add(peer.getString("ip") + ":" + peer.getLong("port"));
+            }
+        }
+        int interval = dict.containsKey("interval") ? (int) dict.getLong("interval") : DEFAULT_INTERVAL_SECONDS;
+        int minInterval = dict.containsKey("min interval") ? (int) dict.getLong("min interval") : 0;
+        return new Response(peers, interval, minInterval);
+    }
+
+    // 6 bytes per peer: IPv4 address then port, both big-endian
+    public static List<String> parseCompactPeers(ByteBuffer peersBytes) {
+        List<String> peerList = new ArrayList<>();
+        while (peersBytes.remaining() >= 6) {
+            String ip = (peersBytes.get() & 0xff) + "." + (peersBytes.get() & 0xff) + "."
+                    + (peersBytes.get() & 0xff) + "." + (peersBytes.get() & 0xff);
+            int port = peersBytes.getShort() & 0xffff;
+            if (port != 0) {
+                peerList.add(ip + ":" + port);
+            }
+        }
+        return peerList;
+    }
+}
@@ -0,0 +1,202 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+// announces over the UDP tracker protocol (BEP 15): a connect transaction gets a connection ID, which
+// is cached and reused for a minute, then a 98-byte announce comes back as interval plus compact
+// peers. Lost packets are retransmitted after 15 * 2^n seconds, up to a retry limit, and a tracker
+// error drops the cached ID and connects once more.
+public class UdpTrackerClient {
+
+    private static final long PROTOCOL_ID = 0x41727101980L;
+    private static final int ACTION_CONNECT = 0;
+    private static final int ACTION_ANNOUNCE = 1;
+    private static final int ACTION_ERROR = 3;
+    // a connection ID may be used for one minute after it was received
+    private static final long CONNECTION_ID_LIFETIME_NANOS = 60_000_000_000L;
+    private static final int BASE_TIMEOUT_MILLIS = 15_000;
+    // BEP 15 allows up to 8, which is over an hour; give up well before the next announce is due
+    private static final int MAX_RETRANSMITS = 2;
+    private static final int MAX_PACKET_LENGTH = 65_507;
+    // lets a tracker recognise us if our address changes, the same for every announce of this run
+    private static final int KEY = ThreadLocalRandom.current().nextInt();
+
+    private static final UdpTrackerClient shared = new UdpTrackerClient(BASE_TIMEOUT_MILLIS, MAX_RETRANSMITS);
+
+    private final int baseTimeoutMillis;
+    private final int maxRetransmits;
+    private final Map<InetSocketAddress, ConnectionId> connectionIds = new ConcurrentHashMap<>();
+
+    public UdpTrackerClient(int baseTimeoutMillis, int maxRetransmits) {
+        this.baseTimeoutMillis = baseTimeoutMillis;
+        this.maxRetransmits = maxRetransmits;
+    }
+
+    public static UdpTrackerClient shared() {
+        return shared;
+    }
+
+    // an error response from the tracker itself, as opposed to a lost or garbled packet
+    private static final class TrackerErrorException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TrackerErrorException(String message) {
+            super(message);
+        }
+    }
+
+    private static final class ConnectionId {
+        final long id;
+        final long receivedNanos;
+
+        ConnectionId(long id, long receivedNanos) {
+            this.id = id;
+            this.receivedNanos = receivedNanos;
+        }
+
+        boolean isExpired() {
+            return System.nanoTime() - receivedNanos > CONNECTION_ID_LIFETIME_NANOS;
+        }
+    }
+
+    public TrackerClient.Response announce(String trackerURL, byte[] infoHash, int port, TrackerClient.Progress progress,
+                                           TrackerClient.Event event) throws IOException {
+        InetSocketAddress tracker = trackerAddress(trackerURL);
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.connect(tracker);
+            try {
+                return announce(socket, tracker, trackerURL, infoHash, port, progress, event);
+            } catch (TrackerErrorException e) {
+                // a tracker that restarted no longer knows the cached ID and rejects it, so get a fresh one
+                connectionIds.remove(tracker);
+                return announce(socket, tracker, trackerURL, infoHash, port, progress, event);
+            }
+        }
+    }
+
+    private TrackerClient.Response announce(DatagramSocket socket, InetSocketAddress tracker, String trackerURL,
+                                            byte[] infoHash, int port, TrackerClient.Progress progress,
+                                            TrackerClient.Event event) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            long connectionId = connectionId(socket, tracker);
+            int transactionId = ThreadLocalRandom.current().nextInt();
+            ByteBuffer request = ByteBuffer.allocate(98);
+            request.putLong(connectionId);
+            request.putInt(ACTION_ANNOUNCE);
+            request.putInt(transactionId);
+            request.put(infoHash);
+            request.put(TrackerClient.PEER_ID.getBytes(StandardCharsets.ISO_8859_1));
+            request.putLong(progress.downloaded());
+            request.putLong(progress.left());
+            request.putLong(progress.uploaded());
+            request.putInt(event.udpCode);
+            // ip (0 = the sender's), key, num_want (-1 = tracker's default), port
+            request.putInt(0);
+            request.putInt(KEY);
+            request.putInt(-1);
+            request.putShort((short) port);
+            ByteBuffer response = exchange(socket, request.array(), ACTION_ANNOUNCE, transactionId, timeout(attempt));
+            if (response != null) {
+                if (response.remaining() < 12) {
+                    throw new IOException("Truncated announce response from " + trackerURL);
+                }
+                int interval = response.getInt();
+                // leechers and seeders, not used yet
+                response.getInt();
+                response.getInt();
+                return new TrackerClient.Response(TrackerClient.parseCompactPeers(response), interval, 0);
+            }
+            if (attempt >= maxRetransmits) {
+                throw new IOException("UDP tracker " + trackerURL + " did not answer");
+            }
+            // retransmitted with the same connection ID unless its minute ran out while we waited
+        }
+    }
+
+    private static InetSocketAddress trackerAddress(String trackerURL) throws IOException {
+        try {
+            URI uri = new URI(trackerURL);
+            if (uri.getHost() == null || uri.getPort() < 0) {
+                throw new IOException("UDP tracker URL needs a host and port: " + trackerURL);
+            }
+            InetSocketAddress address = new InetSocketAddress(uri.getHost(), uri.getPort());
+            if (address.isUnresolved()) {
+                throw new IOException("Unknown tracker host: " + uri.getHost());
+            }
+            return address;
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid tracker URL: " + trackerURL);
+        }
+    }
+
+    private long connectionId(DatagramSocket socket, InetSocketAddress tracker) throws IOException {
+        ConnectionId cached = connectionIds.get(tracker);
+        if (cached != null && !cached.isExpired()) {
+            return cached.id;
+        }
+        for (int attempt = 0; attempt <= maxRetransmits; attempt++) {
+            int transactionId = ThreadLocalRandom.current().nextInt();
+            byte[] request = ByteBuffer.allocate(16).putLong(PROTOCOL_ID).putInt(ACTION_CONNECT).putInt(transactionId).array();
+            ByteBuffer response = exchange(socket, request, ACTION_CONNECT, transactionId, timeout(attempt));
+            if (response != null) {
+                if (response.remaining() < 8) {
+                    throw new IOException("Truncated connect response from " + tracker);
+                }
+                long id = response.getLong();
+                connectionIds.put(tracker, new ConnectionId(id, System.nanoTime()));
+                return id;
+            }
+        }
+        throw new IOException("UDP tracker " + tracker + " did not answer");
+    }
+
+    private int timeout(int attempt) {
+        return baseTimeoutMillis << attempt;
+    }
+
+    // sends the request and returns the body of the matching response after its action and transaction
+    // ID, or null on timeout; replies to other transactions are ignored
+    private ByteBuffer exchange(DatagramSocket socket, byte[] request, int action, int transactionId, int timeoutMillis)
+            throws IOException {
+        socket.send(new DatagramPacket(request, request.length));
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+        byte[] buffer = new byte[MAX_PACKET_LENGTH];
+        while (true) {
+            long remainingMillis = (deadline - System.nanoTime()) / 1_000_000;
+            if (remainingMillis <= 0) {
+                return null;
+            }
+            socket.setSoTimeout((int) remainingMillis);
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                return null;
+            }
+            ByteBuffer response = ByteBuffer.wrap(buffer, 0, packet.getLength());
+            if (response.remaining() < 8) {
+                continue;
+            }
+            int responseAction = response.getInt();
+            if (response.getInt() != transactionId) {
+                continue;
+            }
+            if (responseAction == ACTION_ERROR) {
+                throw new TrackerErrorException("Tracker error: " + StandardCharsets.UTF_8.decode(response));
+            }
+            if (responseAction != action) {
+                throw new IOException("Unexpected action " + responseAction + " from UDP tracker");
+            }
+            return response;
+        }
+    }
+}
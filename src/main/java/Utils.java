@@ -59,10 +59,18 @@ public class Utils {
     }
 
     public static String calculateSHA1(byte[] bytes) {
+        return byteToHexString(sha1(bytes));
+    }
+
+    public static byte[] sha1(byte[] bytes) {
+        return sha1(bytes, 0, bytes.length);
+    }
+
+    public static byte[] sha1(byte[] bytes, int offset, int length) {
         try {
             MessageDigest digest = MessageDigest.getInstance("SHA-1");
-            byte[] hash = digest.digest(bytes);
-            return byteToHexString(hash);
+            digest.update(bytes, offset, length);
+            return digest.digest();
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException("Error calculating SHA-1 hash: " + e.getMessage());
         }